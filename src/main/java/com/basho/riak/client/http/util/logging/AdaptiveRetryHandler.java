@@ -0,0 +1,249 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.NoHttpResponseException;
+
+/**
+ * A {@link LogNoHttpResponseRetryHandler} that backs off, and gives up early,
+ * on hosts that keep failing.
+ * <p>
+ * {@link NoHttpResponseException}s and connect failures are counted per host
+ * (see {@link HostStatistics}). The in memory trace is dumped at most once a
+ * burst, on the first failure the appender's {@link DumpTrigger} accepts,
+ * failures less than <code>burstMillis</code> apart are the same burst. If the {@link DefaultHttpMethodRetryHandler} would retry,
+ * the retry is refused when the host has had <code>failureBudget</code>
+ * failures in the last <code>windowMillis</code>, otherwise it waits a random
+ * time between 0 and <code>min(maxBackoffMillis, baseBackoffMillis * 2^(executionCount - 1))</code>
+ * first.
+ * </p>
+ * <p>
+ * Other exceptions are handled exactly as by
+ * {@link LogNoHttpResponseRetryHandler}.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public class AdaptiveRetryHandler extends LogNoHttpResponseRetryHandler {
+
+    private static final String UNKNOWN_HOST = "unknown";
+
+    private final ConcurrentMap<String, HostStatistics> hosts = new ConcurrentHashMap<String, HostStatistics>();
+    private volatile long baseBackoffMillis = 50;
+    private volatile long maxBackoffMillis = 2000;
+    private volatile long windowMillis = 10000;
+    private volatile int failureBudget = 10;
+    private volatile long burstMillis = 1000;
+
+    /**
+     * Create a handler which dumps the appender named
+     * {@link InMemoryAppender#DEFAULT_NAME}
+     */
+    public AdaptiveRetryHandler() {
+        this(InMemoryAppender.DEFAULT_NAME);
+    }
+
+    /**
+     * @param inMemAppenderName
+     *            the name of the "httpclient.wire" appender to dump
+     */
+    public AdaptiveRetryHandler(String inMemAppenderName) {
+        super(inMemAppenderName);
+    }
+
+    /**
+     * Defaults to 50ms, if not set.
+     *
+     * @param baseBackoffMillis
+     *            the backoff ceiling for the first retry, doubled for each
+     *            retry after, 0 for no backoff
+     */
+    public void setBaseBackoffMillis(long baseBackoffMillis) {
+        this.baseBackoffMillis = baseBackoffMillis;
+    }
+
+    /**
+     * Defaults to 2000ms, if not set.
+     *
+     * @param maxBackoffMillis
+     *            the most any one retry waits
+     */
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Defaults to 10 failures in 10000ms, if not set.
+     *
+     * @param failureBudget
+     *            the failures a host may have in the window before retries
+     *            to it are refused, 0 to 63
+     * @param windowMillis
+     *            the length of the sliding window
+     * @throws IllegalArgumentException
+     *             if <code>failureBudget</code> is out of range, a window
+     *             counts at most 64 failures so a larger budget could never
+     *             be exceeded
+     */
+    public void setFailureBudget(int failureBudget, long windowMillis) {
+        if (failureBudget < 0 || failureBudget >= HostStatistics.WINDOW_SLOTS) {
+            throw new IllegalArgumentException("failureBudget must be between 0 and "
+                                               + (HostStatistics.WINDOW_SLOTS - 1) + ", was " + failureBudget);
+        }
+        this.failureBudget = failureBudget;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Defaults to 1000ms, if not set.
+     *
+     * @param burstMillis
+     *            failures closer together than this are one burst, and
+     *            dump once
+     */
+    public void setBurstMillis(long burstMillis) {
+        this.burstMillis = burstMillis;
+    }
+
+    /**
+     * @return the statistics of every host that has failed
+     */
+    public Collection<HostStatistics> getHostStatistics() {
+        return Collections.unmodifiableCollection(hosts.values());
+    }
+
+    /**
+     * @param route
+     *            a <code>host:port</code> route, see {@link Routes}
+     * @return the statistics for <code>route</code>, or <code>null</code> if
+     *         it has never failed
+     */
+    public HostStatistics getHostStatistics(String route) {
+        return hosts.get(route);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * com.basho.riak.client.http.util.logging.LogNoHttpResponseRetryHandler#
+     * retryMethod(org.apache.commons.httpclient.HttpMethod,
+     * java.io.IOException, int)
+     */
+    @Override public boolean retryMethod(HttpMethod method, IOException exception, int executionCount) {
+        if (!isHostFailure(exception)) {
+            return super.retryMethod(method, exception, executionCount);
+        }
+
+        InMemoryAppender inMemoryAppender = getInMemoryAppender();
+        String route = inMemoryAppender.routeOf(method);
+        HostStatistics stats = statisticsFor(route);
+        long now = System.currentTimeMillis();
+
+        stats.recordFailure(now, burstMillis);
+        if (inMemoryAppender.getDumpTrigger().shouldDump(exception, executionCount) && stats.recordDump()) {
+            inMemoryAppender.beginIncident(route, exception, executionCount);
+            try {
+                inMemoryAppender.dump(route);
+            } finally {
+                inMemoryAppender.endIncident();
+            }
+        }
+
+        if (!defaultRetryMethod(method, exception, executionCount)) {
+            return false;
+        }
+
+        if (stats.getFailuresInWindow(now, windowMillis) > failureBudget) {
+            stats.recordFastFail();
+            return false;
+        }
+
+        if (!backoff(executionCount)) {
+            return false;
+        }
+
+        stats.recordRetry();
+        return true;
+    }
+
+    /**
+     * @return true if <code>exception</code> says the host itself is
+     *         unavailable
+     */
+    protected boolean isHostFailure(IOException exception) {
+        return exception instanceof NoHttpResponseException || exception instanceof ConnectException
+               || exception instanceof ConnectTimeoutException;
+    }
+
+    /**
+     * Sleep for a jittered, exponentially growing time.
+     *
+     * @return false if interrupted (the interrupt is restored)
+     */
+    private boolean backoff(int executionCount) {
+        long ceiling = backoffCeiling(executionCount);
+        if (ceiling <= 0) {
+            return true;
+        }
+
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the most the retry after <code>executionCount</code> executions
+     *         may wait
+     */
+    long backoffCeiling(int executionCount) {
+        long base = baseBackoffMillis;
+        long max = maxBackoffMillis;
+        int shift = Math.min(Math.max(executionCount - 1, 0), 30);
+        long ceiling = base << shift;
+        if (ceiling < base || ceiling > max) {
+            ceiling = max;
+        }
+        return ceiling;
+    }
+
+    private HostStatistics statisticsFor(String route) {
+        String host = route == null ? UNKNOWN_HOST : route;
+        HostStatistics stats = hosts.get(host);
+        if (stats == null) {
+            HostStatistics created = new HostStatistics(host);
+            stats = hosts.putIfAbsent(host, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+}
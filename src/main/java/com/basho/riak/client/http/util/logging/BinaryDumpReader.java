@@ -0,0 +1,229 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Reads {@link LoggingEvent}s back from the binary dump format written by
+ * {@link BinaryDumpWriter}. Only the current version is read.
+ * <p>
+ * Lengths and counts are checked against generous limits before anything is
+ * allocated for them, so a corrupt dump fails with an {@link IOException}.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class BinaryDumpReader implements Closeable {
+
+    private static final String FQCN = BinaryDumpReader.class.getName();
+
+    /** The longest string read, 64MB */
+    static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+    /** The most throwable lines, or MDC entries, read for one event */
+    static final int MAX_COUNT = 64 * 1024;
+
+    private final InputStream in;
+    private final List<Logger> loggers = new ArrayList<Logger>();
+    private final List<String> threads = new ArrayList<String>();
+    private long lastTimestamp = 0;
+    private boolean finished = false;
+
+    /**
+     * Create a reader and check the format header of <code>in</code>
+     *
+     * @param in
+     *            the stream to read from, it is buffered by the reader
+     * @throws IOException
+     *             if the stream is not a binary dump
+     */
+    public BinaryDumpReader(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 64 * 1024);
+
+        if (readInt() != BinaryDumpWriter.MAGIC) {
+            throw new IOException("Not an InMemoryAppender binary dump");
+        }
+
+        int version = readByte();
+        if (version != BinaryDumpWriter.VERSION) {
+            throw new IOException("Unsupported binary dump version " + version);
+        }
+    }
+
+    /**
+     * @return the next {@link LoggingEvent} in the dump or <code>null</code>
+     *         at the end of the dump
+     * @throws IOException
+     */
+    public LoggingEvent next() throws IOException {
+        while (!finished) {
+            int tag = readByte();
+
+            switch (tag) {
+            case BinaryDumpWriter.TAG_END:
+                finished = true;
+                break;
+            case BinaryDumpWriter.TAG_LOGGER:
+                readVarint();
+                loggers.add(Logger.getLogger(readName()));
+                break;
+            case BinaryDumpWriter.TAG_THREAD:
+                readVarint();
+                threads.add(readName());
+                break;
+            case BinaryDumpWriter.TAG_EVENT:
+                return readEvent();
+            default:
+                throw new IOException("Corrupt binary dump, unknown record tag " + tag);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private LoggingEvent readEvent() throws IOException {
+        Logger logger = loggers.get(readId(loggers.size()));
+        String thread = threads.get(readId(threads.size()));
+        Level level = Level.toLevel(readVarint());
+        long delta = readVarlong();
+        lastTimestamp += (delta >>> 1) ^ -(delta & 1);
+        String message = readString();
+
+        ThrowableInformation throwable = null;
+        long packed = readVarlong();
+        boolean context = (packed & 1) != 0;
+        int lines = checkCount(packed >>> 1);
+        if (lines > 0) {
+            String[] rep = new String[lines];
+            for (int i = 0; i < lines; i++) {
+                rep[i] = readString();
+            }
+            throwable = new ThrowableInformation(rep);
+        }
+
+        String ndc = null;
+        Map<String, String> mdc = null;
+        if (context) {
+            ndc = readString();
+            int entries = checkCount(readVarlong());
+            if (entries > 0) {
+                mdc = new HashMap<String, String>(entries * 2);
+                for (int i = 0; i < entries; i++) {
+                    String key = readString();
+                    String value = readString();
+                    if (key != null && value != null) {
+                        mdc.put(key, value);
+                    }
+                }
+            }
+        }
+
+        return new LoggingEvent(FQCN, logger, lastTimestamp, level, message, thread, throwable, ndc, null, mdc);
+    }
+
+    private int readId(int defined) throws IOException {
+        int id = readVarint();
+        if (id < 0 || id >= defined) {
+            throw new IOException("Corrupt binary dump, undefined dictionary id " + id);
+        }
+        return id;
+    }
+
+    private static int checkCount(long count) throws IOException {
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IOException("Corrupt binary dump, count " + count + " is over " + MAX_COUNT);
+        }
+        return (int) count;
+    }
+
+    private String readName() throws IOException {
+        String name = readString();
+        return name == null ? "" : name;
+    }
+
+    private String readString() throws IOException {
+        long encoded = readVarlong();
+        if (encoded == 0) {
+            return null;
+        }
+        encoded--;
+        if (encoded < 0 || encoded > MAX_STRING_BYTES) {
+            throw new IOException("Corrupt binary dump, string length " + encoded + " is over " + MAX_STRING_BYTES);
+        }
+        int length = (int) encoded;
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Truncated binary dump");
+            }
+            read += n;
+        }
+        return new String(bytes, BinaryDumpWriter.UTF8);
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Truncated binary dump");
+        }
+        return b;
+    }
+
+    private int readInt() throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private int readVarint() throws IOException {
+        return (int) readVarlong();
+    }
+
+    private long readVarlong() throws IOException {
+        long result = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Corrupt binary dump, varint too long");
+            }
+            b = readByte();
+            result |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Writes {@link LoggingEvent}s in the compact binary dump format read by
+ * {@link BinaryDumpReader}.
+ * <p>
+ * The format is a four byte magic number and a version byte followed by a
+ * sequence of tagged records:
+ * <ul>
+ * <li><code>LOGGER id name</code> and <code>THREAD id name</code> define a
+ * dictionary entry the first time a logger or thread name is seen</li>
+ * <li><code>EVENT loggerId threadId level timestampDelta message throwable [ndc mdc]</code>
+ * refers to the dictionary, stores the timestamp as a zig-zag encoded delta
+ * from the previous event, the rendered message as a string, and the
+ * throwable as a count of strings. The count is shifted left one bit, the low
+ * bit set if the NDC, as a string, and the MDC, as a count of key and value
+ * strings, follow</li>
+ * <li><code>END</code> terminates the stream</li>
+ * </ul>
+ * All integers are unsigned LEB128 varints. Strings are UTF-8 prefixed with
+ * their length plus one, so that a length of 0 is <code>null</code>.
+ * </p>
+ * <p>
+ * Not thread safe, one writer per stream.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class BinaryDumpWriter implements Closeable {
+
+    /** File name suffix used for binary dump files */
+    public static final String FILE_SUFFIX = ".imd";
+
+    static final int MAGIC = 0x494D4144; // "IMAD"
+    static final int VERSION = 2;
+
+    static final int TAG_END = 0;
+    static final int TAG_LOGGER = 1;
+    static final int TAG_THREAD = 2;
+    static final int TAG_EVENT = 3;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final Map<String, Integer> loggers = new HashMap<String, Integer>();
+    private final Map<String, Integer> threads = new HashMap<String, Integer>();
+    private long lastTimestamp = 0;
+    private int eventCount = 0;
+
+    /**
+     * Create a writer and write the format header to <code>out</code>
+     *
+     * @param out
+     *            the stream to write to, it is buffered by the writer
+     * @throws IOException
+     */
+    public BinaryDumpWriter(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        writeInt(MAGIC);
+        this.out.write(VERSION);
+    }
+
+    /**
+     * Append <code>event</code> to the dump
+     *
+     * @param event
+     *            the {@link LoggingEvent} to write
+     * @throws IOException
+     */
+    public void write(LoggingEvent event) throws IOException {
+        int loggerId = define(loggers, TAG_LOGGER, event.getLoggerName());
+        int threadId = define(threads, TAG_THREAD, event.getThreadName());
+
+        out.write(TAG_EVENT);
+        writeVarint(loggerId);
+        writeVarint(threadId);
+        writeVarint(event.getLevel().toInt());
+        long timestamp = event.getTimeStamp();
+        writeVarlong(zigzag(timestamp - lastTimestamp));
+        lastTimestamp = timestamp;
+        writeString(event.getRenderedMessage());
+
+        String[] throwable = event.getThrowableStrRep();
+        String ndc = event.getNDC();
+        @SuppressWarnings("unchecked") Set<Map.Entry<Object, Object>> mdc = event.getProperties().entrySet();
+        boolean context = ndc != null || !mdc.isEmpty();
+
+        writeVarint((throwable == null ? 0 : throwable.length) << 1 | (context ? 1 : 0));
+        if (throwable != null) {
+            for (String line : throwable) {
+                writeString(line);
+            }
+        }
+
+        if (context) {
+            writeString(ndc);
+            writeVarint(mdc.size());
+            for (Map.Entry<Object, Object> entry : mdc) {
+                writeString(String.valueOf(entry.getKey()));
+                writeString(entry.getValue() == null ? null : entry.getValue().toString());
+            }
+        }
+        eventCount++;
+    }
+
+    /**
+     * @return the number of events written so far
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Flushes what is written so far to the underlying stream
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the end marker and flushes, but does not close the underlying
+     * stream.
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        out.write(TAG_END);
+        out.flush();
+    }
+
+    /**
+     * Writes the end marker and closes the underlying stream.
+     *
+     * @see java.io.Closeable#close()
+     */
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private int define(Map<String, Integer> dictionary, int tag, String name) throws IOException {
+        String key = name == null ? "" : name;
+        Integer id = dictionary.get(key);
+
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.put(key, id);
+            out.write(tag);
+            writeVarint(id);
+            writeString(key);
+        }
+        return id;
+    }
+
+    private void writeString(String s) throws IOException {
+        if (s == null) {
+            writeVarint(0);
+            return;
+        }
+        byte[] bytes = s.getBytes(UTF8);
+        writeVarint(bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(i >>> 24);
+        out.write(i >>> 16);
+        out.write(i >>> 8);
+        out.write(i);
+    }
+
+    private void writeVarint(int i) throws IOException {
+        writeVarlong(i & 0xFFFFFFFFL);
+    }
+
+    private void writeVarlong(long l) throws IOException {
+        while ((l & ~0x7FL) != 0) {
+            out.write((int) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        out.write((int) l);
+    }
+
+    private static long zigzag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Counts the body bytes of the request in flight on one connection (or one
+ * thread, see {@link ConnectionStates}), each direction separately, and cuts
+ * the body off at a limit. Where a body is cut a summary event is made at
+ * once, the bytes cut off are only counted.
+ * <p>
+ * Only ever touched by one thread at a time, so not synchronized.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class BodyLimiter {
+
+    private static final String FQCN = BodyLimiter.class.getName();
+
+    private final Direction outgoing = new Direction(">>");
+    private final Direction incoming = new Direction("<<");
+    private final WireBody body = new WireBody();
+    private final AtomicLong truncatedBytes;
+    private LoggingEvent summary;
+
+    /**
+     * @param truncatedBytes
+     *            where to count the body bytes cut off
+     */
+    BodyLimiter(AtomicLong truncatedBytes) {
+        this.truncatedBytes = truncatedBytes;
+    }
+
+    /**
+     * Call once for each wire event, in order.
+     * 
+     * @return true if <code>event</code> is a body chunk, see
+     *         {@link WireBody}
+     */
+    boolean isBody(LoggingEvent event) {
+        return body.isBody(event);
+    }
+
+    /**
+     * @param event
+     *            a body chunk
+     * @param limit
+     *            the body bytes to keep per direction
+     * @return <code>event</code>, a copy cut to fit the limit, or
+     *         <code>null</code> if it is over the limit
+     */
+    LoggingEvent admit(LoggingEvent event, long limit) {
+        Object m = event.getMessage();
+        if (!(m instanceof String)) {
+            return event;
+        }
+
+        String message = WireMessages.withoutConnection((String) m);
+        Direction direction;
+        if (message.startsWith(WireMessages.OUTGOING)) {
+            direction = outgoing;
+        } else if (message.startsWith(WireMessages.INCOMING)) {
+            direction = incoming;
+        } else {
+            return event;
+        }
+
+        int bytes = WireMessages.payloadBytes(message);
+        long room = Math.max(0, limit - direction.kept);
+        if (bytes <= room) {
+            direction.kept += bytes;
+            return event;
+        }
+
+        direction.kept += room;
+        truncatedBytes.addAndGet(bytes - room);
+        // keeping the connection id, if any
+        String connection = ((String) m).substring(0, ((String) m).length() - message.length());
+        if (!direction.truncated) {
+            direction.truncated = true;
+            summary = copy(event, Level.DEBUG, connection + direction.marker + " [body truncated at " + limit
+                                                + " bytes]");
+        }
+        if (room == 0) {
+            return null;
+        }
+        return copy(event, event.getLevel(), connection + WireMessages.truncate(message, (int) room));
+    }
+
+    /**
+     * @return the event marking where the body <code>admit</code> was last
+     *         called with was cut, once, or <code>null</code> if it wasn't
+     */
+    LoggingEvent takeSummary() {
+        LoggingEvent taken = summary;
+        summary = null;
+        return taken;
+    }
+
+    /**
+     * A new request, count from zero again
+     */
+    void reset() {
+        outgoing.reset();
+        incoming.reset();
+        body.reset();
+        summary = null;
+    }
+
+    private static LoggingEvent copy(LoggingEvent event, Level level, String message) {
+        return new LoggingEvent(FQCN, Logger.getLogger(event.getLoggerName()), event.getTimeStamp(), level, message,
+                                event.getThreadName(), null, null, null, event.getProperties());
+    }
+
+    private static final class Direction {
+        private final String marker;
+        private long kept = 0;
+        private boolean truncated = false;
+
+        Direction(String marker) {
+            this.marker = marker;
+        }
+
+        void reset() {
+            kept = 0;
+            truncated = false;
+        }
+    }
+}
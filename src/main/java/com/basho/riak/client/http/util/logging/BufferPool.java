@@ -0,0 +1,202 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * A budget shared by several {@link InMemoryAppender}s, so that together they
+ * hold no more than a fixed number of events, or an estimated number of bytes.
+ * <p>
+ * When the budget is exceeded the oldest event of the member holding the most
+ * is evicted, until the pool is back within budget. With equal shares that is
+ * the member furthest over its fair share.
+ * </p>
+ * <p>
+ * Pools are looked up by name, configure them through any member appender: eg.
+ *
+ * <pre>
+ * log4j.appender.InMem.Pool=wire
+ * log4j.appender.InMem.PoolEvents=5000
+ * log4j.appender.Headers.Pool=wire
+ * </pre>
+ *
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class BufferPool {
+
+    private static final ConcurrentMap<String, BufferPool> POOLS = new ConcurrentHashMap<String, BufferPool>();
+
+    /** Rough fixed heap cost of a {@link LoggingEvent}, used in byte mode */
+    static final int EVENT_OVERHEAD = 96;
+
+    private final String name;
+    private final AtomicLong used = new AtomicLong();
+    private final CopyOnWriteArrayList<InMemoryAppender> members = new CopyOnWriteArrayList<InMemoryAppender>();
+    private volatile long budget = Long.MAX_VALUE;
+    private volatile boolean bytes = false;
+
+    private BufferPool(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param name
+     * @return the pool called <code>name</code>, created if it doesn't exist
+     */
+    public static BufferPool get(String name) {
+        BufferPool pool = POOLS.get(name);
+        if (pool == null) {
+            BufferPool created = new BufferPool(name);
+            pool = POOLS.putIfAbsent(name, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Bound the pool to <code>events</code> {@link LoggingEvent}s across all
+     * members. Set before any member buffers events.
+     */
+    public void setEventBudget(long events) {
+        this.bytes = false;
+        this.budget = events;
+    }
+
+    /**
+     * Bound the pool to an estimated <code>bytes</code> of heap across all
+     * members. Set before any member buffers events.
+     */
+    public void setByteBudget(long bytes) {
+        this.bytes = true;
+        this.budget = bytes;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return true if the budget is in bytes, false if in events
+     */
+    public boolean isByteBudget() {
+        return bytes;
+    }
+
+    /**
+     * @return the events, or estimated bytes, held by all members
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return the events, or estimated bytes, held by each member, by
+     *         appender name
+     */
+    public Map<String, Long> getOccupancy() {
+        Map<String, Long> occupancy = new LinkedHashMap<String, Long>();
+        for (InMemoryAppender member : members) {
+            occupancy.put(String.valueOf(member.getName()), member.getPoolUsage());
+        }
+        return occupancy;
+    }
+
+    void register(InMemoryAppender appender) {
+        members.addIfAbsent(appender);
+    }
+
+    void unregister(InMemoryAppender appender) {
+        members.remove(appender);
+    }
+
+    /**
+     * @return what <code>event</code> costs against the budget
+     */
+    long costOf(LoggingEvent event) {
+        if (!bytes) {
+            return 1;
+        }
+
+        long size = EVENT_OVERHEAD;
+        String message = event.getRenderedMessage();
+        if (message != null) {
+            size += 2 * message.length();
+        }
+        String[] throwable = event.getThrowableStrRep();
+        if (throwable != null) {
+            for (String line : throwable) {
+                size += 2 * line.length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Account for <code>delta</code> more (or less) use by a member, evicting
+     * from the largest members while over budget. A positive
+     * <code>delta</code> must be added without holding any member's buffer
+     * lock.
+     */
+    void adjust(long delta) {
+        adjust(delta, true);
+    }
+
+    /**
+     * As <code>adjust(delta)</code>, but if <code>wait</code> is false a
+     * member busy with its buffer is not waited for, and the pool is left over
+     * budget until the next adjustment.
+     */
+    void adjust(long delta, boolean wait) {
+        long current = used.addAndGet(delta);
+
+        while (delta > 0 && current > budget) {
+            InMemoryAppender victim = largestMember();
+            if (victim == null || !victim.evictForPool(wait)) {
+                return;
+            }
+            current = used.get();
+        }
+    }
+
+    private InMemoryAppender largestMember() {
+        InMemoryAppender largest = null;
+        long largestUsage = 0;
+
+        for (InMemoryAppender member : members) {
+            long usage = member.getPoolUsage();
+            if (usage > largestUsage) {
+                largest = member;
+                largestUsage = usage;
+            }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * State that follows a stream of wire events, kept per connection.
+ * <p>
+ * HttpClient 4.x and 5.x prefix each wire line with its connection id, eg.
+ * <code>http-outgoing-3</code>, and a pooled connection may be used by a
+ * different thread for each request, so their state is kept by connection
+ * id. Lines without one, eg. from HttpClient 3.x, fall back to the logging
+ * thread's state. Only the {@value #MAX_CONNECTIONS} most recently used
+ * connections are kept, the state of a closed connection is forgotten once
+ * it is the least recently used.
+ * </p>
+ * <p>
+ * The state is not synchronized: a connection is used by one thread at a
+ * time and handed between threads through the connection pool's locks,
+ * which orders the updates to its state.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+abstract class ConnectionStates<T> {
+
+    static final int MAX_CONNECTIONS = 1024;
+
+    private final ThreadLocal<T> threads = new ThreadLocal<T>() {
+        @Override protected T initialValue() {
+            return create();
+        }
+    };
+
+    // what get(LoggingEvent) last returned to each thread
+    private final ThreadLocal<T> recent = new ThreadLocal<T>();
+
+    private final Map<String, T> connections = new LinkedHashMap<String, T>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+            return size() > MAX_CONNECTIONS;
+        }
+    };
+
+    /**
+     * @return new state, for a connection or thread seen for the first time
+     */
+    protected abstract T create();
+
+    /**
+     * @return the state of <code>event</code>'s connection, or of the
+     *         calling thread if it has no connection id
+     */
+    T get(LoggingEvent event) {
+        String connection = WireMessages.connectionOf(event);
+        T state = connection == null ? threads.get() : get(connection);
+        recent.set(state);
+        return state;
+    }
+
+    /**
+     * @return the state of <code>connection</code>
+     */
+    T get(String connection) {
+        synchronized (connections) {
+            T state = connections.get(connection);
+            if (state == null) {
+                state = create();
+                connections.put(connection, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * @return the state of the connection the calling thread last logged a
+     *         wire line on, or the thread's own if none
+     */
+    T lastUsed() {
+        T state = recent.get();
+        return state == null ? threads.get() : state;
+    }
+
+    /**
+     * Forget every connection's state, and the calling thread's
+     */
+    void clear() {
+        synchronized (connections) {
+            connections.clear();
+        }
+        threads.remove();
+        recent.remove();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.List;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.basho.riak.client.http.util.logging.core.DumpRange;
+
+/**
+ * The events drained from an {@link InMemoryAppender} by one
+ * <code>dump</code>, with the {@link DumpRange} they cover.
+ *
+ * @author russell
+ *
+ */
+final class Dump {
+
+    private final List<LoggingEvent> events;
+    private final DumpRange range;
+
+    /**
+     * @param events
+     *            events not drained from the buffer, so without a sequence
+     *            range
+     */
+    Dump(List<LoggingEvent> events) {
+        this(events, new DumpRange(events.size(), -1, -1, 0, 0));
+    }
+
+    Dump(List<LoggingEvent> events, DumpRange range) {
+        this.events = events;
+        this.range = range;
+    }
+
+    List<LoggingEvent> getEvents() {
+        return events;
+    }
+
+    DumpRange getRange() {
+        return range;
+    }
+
+    /**
+     * @return true if there is nothing to report, no events, evictions or
+     *         drops
+     */
+    boolean isEmpty() {
+        return range.isEmpty();
+    }
+
+    /**
+     * @return the time between the oldest and newest events, in ms
+     */
+    long getTimeSpan() {
+        if (events.isEmpty()) {
+            return 0;
+        }
+        return events.get(events.size() - 1).getTimeStamp() - events.get(0).getTimeStamp();
+    }
+
+    /**
+     * @param appenderName
+     * @return a one line summary of the dump, eg.
+     *         <code>InMem dumping 100 events #901-#1000, 900 evicted since last dump, spanning 1234 ms</code>
+     */
+    String summary(String appenderName) {
+        return range.summary(appenderName, getTimeSpan());
+    }
+
+    /**
+     * @return the summary line followed by <code>, incident id</code>
+     */
+    String summary(String appenderName, Incident incident) {
+        StringBuilder sb = range.summaryTo(new StringBuilder(192), appenderName, getTimeSpan());
+        return incident.appendId(sb.append(", incident ")).toString();
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.Level;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Command line decoder for binary dumps written by {@link InMemoryAppender}.
+ * <p>
+ * Renders each event with a {@link PatternLayout}, optionally filtered by
+ * thread, time range and minimum level:
+ *
+ * <pre>
+ * java -cp ... com.basho.riak.client.http.util.logging.DumpDecoder \
+ *     [-p pattern] [-t thread] [-l level] [-from time] [-to time] file...
+ * </pre>
+ *
+ * Times are either epoch milliseconds or <code>yyyy-MM-dd HH:mm:ss</code>.
+ * Files ending <code>.gz</code>, eg. archive segments, are decompressed.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class DumpDecoder {
+
+    static final String DEFAULT_PATTERN = "%d{ISO8601} [%t] %5p [%c] %m%n";
+
+    private Layout layout = new PatternLayout(DEFAULT_PATTERN);
+    private String thread;
+    private Level level = Level.ALL;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+
+    /**
+     * @param layout
+     *            the {@link Layout} to render events with
+     */
+    public void setLayout(Layout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * @param thread
+     *            only render events logged by this thread, <code>null</code>
+     *            for all threads
+     */
+    public void setThread(String thread) {
+        this.thread = thread;
+    }
+
+    /**
+     * @param level
+     *            only render events at or above this level
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param from
+     *            only render events logged at or after this time (epoch ms)
+     * @param to
+     *            only render events logged at or before this time (epoch ms)
+     */
+    public void setTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @param event
+     * @return true if <code>event</code> passes the configured filters
+     */
+    public boolean accept(LoggingEvent event) {
+        long ts = event.getTimeStamp();
+        return ts >= from && ts <= to && event.getLevel().isGreaterOrEqual(level)
+               && (thread == null || thread.equals(event.getThreadName()));
+    }
+
+    /**
+     * Render every accepted event in <code>reader</code> to <code>out</code>
+     *
+     * @return the number of events rendered
+     * @throws IOException
+     */
+    public int decode(BinaryDumpReader reader, PrintStream out) throws IOException {
+        int rendered = 0;
+        LoggingEvent event;
+
+        while ((event = reader.next()) != null) {
+            if (!accept(event)) {
+                continue;
+            }
+            out.print(layout.format(event));
+            if (layout.ignoresThrowable()) {
+                String[] throwable = event.getThrowableStrRep();
+                if (throwable != null) {
+                    for (String line : throwable) {
+                        out.println(line);
+                    }
+                }
+            }
+            rendered++;
+        }
+        return rendered;
+    }
+
+    public static void main(String[] args) throws IOException {
+        DumpDecoder decoder = new DumpDecoder();
+        List<String> files = new ArrayList<String>();
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-p".equals(arg) && i + 1 < args.length) {
+                decoder.setLayout(new PatternLayout(args[++i]));
+            } else if ("-t".equals(arg) && i + 1 < args.length) {
+                decoder.setThread(args[++i]);
+            } else if ("-l".equals(arg) && i + 1 < args.length) {
+                decoder.setLevel(Level.toLevel(args[++i], Level.ALL));
+            } else if ("-from".equals(arg) && i + 1 < args.length) {
+                from = parseTime(args[++i]);
+            } else if ("-to".equals(arg) && i + 1 < args.length) {
+                to = parseTime(args[++i]);
+            } else if (arg.startsWith("-")) {
+                usage();
+                return;
+            } else {
+                files.add(arg);
+            }
+        }
+
+        if (files.isEmpty()) {
+            usage();
+            return;
+        }
+
+        decoder.setTimeRange(from, to);
+
+        for (String file : files) {
+            InputStream in = new FileInputStream(file);
+            if (file.endsWith(".gz")) {
+                // an archive segment
+                in = new GZIPInputStream(in);
+            }
+            BinaryDumpReader reader = new BinaryDumpReader(in);
+            try {
+                decoder.decode(reader, System.out);
+            } finally {
+                reader.close();
+            }
+        }
+        System.out.flush();
+    }
+
+    static long parseTime(String time) {
+        try {
+            return Long.parseLong(time);
+        } catch (NumberFormatException e) {
+            try {
+                return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(time).getTime();
+            } catch (ParseException pe) {
+                throw new IllegalArgumentException("Can't parse time " + time);
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: DumpDecoder [-p pattern] [-t thread] [-l level] [-from time] [-to time] file...");
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Recognises dumps that repeat one seen recently.
+ * <p>
+ * A dump's fingerprint is a 64 bit FNV-1a hash of its structure, not its
+ * values: each event's logger and level, the method of a request line, the
+ * name of a header (not its value), a status line, and any other message
+ * with its numbers blanked. Body chunks are left out and runs of identical
+ * lines count once. So two dumps of the same failure against different keys,
+ * at different times, on different connections, match.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class DumpFingerprints {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final Map<Long, Occurrence> seen = new LinkedHashMap<Long, Occurrence>();
+
+    /**
+     * @return the structural fingerprint of <code>events</code>
+     */
+    static long of(List<LoggingEvent> events) {
+        long hash = FNV_OFFSET;
+        long previous = 0;
+        WireBody body = new WireBody();
+
+        for (LoggingEvent e : events) {
+            if (WireMessages.isWire(e) && body.isBody(e)) {
+                continue;
+            }
+            long line = lineOf(e);
+            if (line == previous) {
+                continue;
+            }
+            previous = line;
+            hash = mix(hash, line);
+        }
+        return hash;
+    }
+
+    /**
+     * Record a dump with <code>fingerprint</code> at <code>now</code>.
+     * 
+     * @param windowMillis
+     *            how long after its first occurrence a dump counts as a
+     *            repeat
+     * @return the number of times it has been repeated in the window,
+     *         including this time, 0 if this is the first occurrence
+     */
+    synchronized long record(long fingerprint, long now, long windowMillis) {
+        // oldest first, so expired entries are all at the front
+        Iterator<Occurrence> oldest = seen.values().iterator();
+        while (oldest.hasNext() && now - oldest.next().first > windowMillis) {
+            oldest.remove();
+        }
+
+        Occurrence occurrence = seen.get(fingerprint);
+        if (occurrence == null) {
+            seen.put(fingerprint, new Occurrence(now));
+            return 0;
+        }
+        return ++occurrence.repeats;
+    }
+
+    /**
+     * @return when the window of <code>fingerprint</code> started, epoch ms,
+     *         or -1
+     */
+    synchronized long firstSeen(long fingerprint) {
+        Occurrence occurrence = seen.get(fingerprint);
+        return occurrence == null ? -1 : occurrence.first;
+    }
+
+    private static long lineOf(LoggingEvent e) {
+        long hash = hash(FNV_OFFSET, e.getLoggerName(), false);
+        hash = mixByte(hash, e.getLevel().toInt());
+
+        String message = e.getRenderedMessage();
+        if (message != null) {
+            // connection ids vary from dump to dump
+            message = WireMessages.withoutConnection(message);
+            if (WireMessages.isRequestLine(message)) {
+                // the method, not the path
+                hash = hash(hash, message.substring(0, message.indexOf(' ', WireMessages.OUTGOING.length())), false);
+            } else if (isWireLine(message) && message.indexOf(':') > 0) {
+                // the header's name, not its value
+                hash = hash(hash, message.substring(0, message.indexOf(':')), false);
+            } else {
+                hash = hash(hash, message, true);
+            }
+        }
+
+        String[] throwable = e.getThrowableStrRep();
+        if (throwable != null && throwable.length > 0) {
+            String first = throwable[0];
+            int colon = first.indexOf(':');
+            hash = hash(hash, colon > 0 ? first.substring(0, colon) : first, false);
+        }
+        return hash;
+    }
+
+    private static boolean isWireLine(String message) {
+        return message.startsWith(WireMessages.OUTGOING) || message.startsWith(WireMessages.INCOMING);
+    }
+
+    private static long hash(long hash, String s, boolean blankNumbers) {
+        if (s == null) {
+            return hash;
+        }
+        boolean inNumber = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (blankNumbers && c >= '0' && c <= '9') {
+                if (!inNumber) {
+                    hash = mixByte(hash, '#');
+                }
+                inNumber = true;
+                continue;
+            }
+            inNumber = false;
+            hash = mixByte(hash, c);
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash = mixByte(hash, (int) (value >>> (i * 8)));
+        }
+        return hash;
+    }
+
+    private static long mixByte(long hash, int b) {
+        return (hash ^ (b & 0xff)) * FNV_PRIME;
+    }
+
+    private static final class Occurrence {
+        private final long first;
+        private long repeats = 0;
+
+        Occurrence(long first) {
+            this.first = first;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.log4j.Level;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.TriggeringEventEvaluator;
+
+/**
+ * Decides when an {@link InMemoryAppender} should be dumped.
+ * <p>
+ * On the retry path an exception triggers a dump if its class, or a super
+ * class, is one of the configured exception types (and optionally if any
+ * exception in its cause chain is), and the execution count has reached the
+ * configured threshold. The class hierarchy lookup is cached per exception
+ * class. Only the first {@value #MAX_CAUSE_DEPTH} exceptions of a cause chain
+ * are looked at, which also stops at chains that loop.
+ * </p>
+ * <p>
+ * On the append path an event at or above the configured level triggers a
+ * dump, like <code>SMTPAppender</code>'s evaluator.
+ * </p>
+ * <p>
+ * Neither check allocates once the cache is warm. Configure through the
+ * appender: eg.
+ *
+ * <pre>
+ * log4j.appender.InMem.TriggerExceptions=org.apache.commons.httpclient.NoHttpResponseException,java.net.SocketTimeoutException
+ * log4j.appender.InMem.TriggerCauses=true
+ * log4j.appender.InMem.TriggerMinExecutionCount=2
+ * log4j.appender.InMem.TriggerLevel=ERROR
+ * </pre>
+ *
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class DumpTrigger implements TriggeringEventEvaluator {
+
+    /**
+     * The exception types that trigger a dump if not configured, the
+     * NoHttpResponseException of commons-httpclient 3.x, HttpClient 4.x and
+     * 5.x
+     */
+    public static final String DEFAULT_EXCEPTIONS = NoHttpResponseException.class.getName()
+                                                    + ",org.apache.http.NoHttpResponseException"
+                                                    + ",org.apache.hc.core5.http.NoHttpResponseException";
+
+    /** How far down a cause chain to look */
+    public static final int MAX_CAUSE_DEPTH = 32;
+
+    // replaced, never changed, so a lookup never caches against stale types
+    private volatile Matcher matcher = new Matcher(parse(DEFAULT_EXCEPTIONS));
+    private volatile boolean causes = false;
+    private volatile int minExecutionCount = 0;
+    private volatile Level level;
+
+    /**
+     * @param exceptionTypes
+     *            comma separated names of the exception classes that trigger
+     *            a dump, sub classes trigger too
+     */
+    public void setExceptions(String exceptionTypes) {
+        this.matcher = new Matcher(parse(exceptionTypes));
+    }
+
+    /**
+     * @param causes
+     *            if true an exception also triggers when any exception in its
+     *            cause chain matches
+     */
+    public void setCauses(boolean causes) {
+        this.causes = causes;
+    }
+
+    /**
+     * @param minExecutionCount
+     *            only trigger once the retry handler's execution count reaches
+     *            this
+     */
+    public void setMinExecutionCount(int minExecutionCount) {
+        this.minExecutionCount = minExecutionCount;
+    }
+
+    /**
+     * @param level
+     *            the level at or above which an appended event triggers a
+     *            dump, <code>null</code> for none
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param exception
+     *            the exception passed to the retry handler
+     * @param executionCount
+     *            the retry handler's execution count
+     * @return true if the buffer should be dumped
+     */
+    public boolean shouldDump(Throwable exception, int executionCount) {
+        if (exception == null || executionCount < minExecutionCount) {
+            return false;
+        }
+
+        Matcher m = matcher;
+        if (!causes) {
+            return m.matches(exception.getClass());
+        }
+
+        Throwable t = exception;
+        for (int depth = 0; t != null && depth < MAX_CAUSE_DEPTH; depth++) {
+            if (m.matches(t.getClass())) {
+                return true;
+            }
+            t = t.getCause() == t ? null : t.getCause();
+        }
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.apache.log4j.spi.TriggeringEventEvaluator#isTriggeringEvent(org.apache
+     * .log4j.spi.LoggingEvent)
+     */
+    public boolean isTriggeringEvent(LoggingEvent event) {
+        Level trigger = level;
+        return trigger != null && event.getLevel().isGreaterOrEqual(trigger);
+    }
+
+    /**
+     * The configured exception types, and the lookups cached against them.
+     */
+    private static final class Matcher {
+        private final Set<String> types;
+        private final ConcurrentMap<Class<?>, Boolean> matches = new ConcurrentHashMap<Class<?>, Boolean>();
+
+        Matcher(Set<String> types) {
+            this.types = types;
+        }
+
+        boolean matches(Class<?> type) {
+            Boolean match = matches.get(type);
+
+            if (match == null) {
+                match = Boolean.FALSE;
+                for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                    if (types.contains(c.getName())) {
+                        match = Boolean.TRUE;
+                        break;
+                    }
+                }
+                matches.put(type, match);
+            }
+            return match.booleanValue();
+        }
+    }
+
+    private static Set<String> parse(String exceptionTypes) {
+        Set<String> types = new HashSet<String>();
+        if (exceptionTypes != null) {
+            for (String type : exceptionTypes.split(",")) {
+                if (type.trim().length() > 0) {
+                    types.add(type.trim());
+                }
+            }
+        }
+        return Collections.unmodifiableSet(types);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Recorded when a retry handler decides to dump a flight recorder
+ * {@link InMemoryAppender}. See {@link FlightRecorderBridge}.
+ *
+ * @author russell
+ *
+ */
+@Name(DumpTriggeredEvent.NAME)
+@Label("Wire Dump Triggered")
+@Category({ "log4j", "HTTP Client" })
+@Description("A retry handler dumped the InMemoryAppender")
+final class DumpTriggeredEvent extends Event {
+
+    static final String NAME = "com.basho.riak.client.http.DumpTriggered";
+
+    @Label("Appender") String appender;
+
+    @Label("Route") String route;
+
+    @Label("Exception") String exception;
+
+    @Label("Message") String message;
+
+    @Label("Execution Count") int executionCount;
+}
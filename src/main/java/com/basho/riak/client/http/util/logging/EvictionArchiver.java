@@ -0,0 +1,360 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.ErrorHandler;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Streams the events an {@link InMemoryAppender} evicts to rolling, gzipped
+ * binary dump segments on local disk, so a trace nothing dumped can still be
+ * found after the fact.
+ * <p>
+ * Appending threads only <code>offer</code> evicted events to a bounded
+ * queue; if it is full the event is lost and counted, the append path never
+ * waits on disk. A single minimum priority daemon thread drains the queue in
+ * batches and writes them sequentially to the current segment. A segment is
+ * closed when it reaches <code>segmentBytes</code> compressed, or is
+ * <code>segmentMillis</code> old.
+ * </p>
+ * <p>
+ * <code>maxBytes</code> covers every segment, the one being written
+ * included. Each batch is flushed through the compressor, so the open
+ * segment's size on disk is always known. Before a segment is opened the
+ * oldest segments are deleted until a full one would fit, and after each
+ * batch they are deleted until the archive, open segment and all, fits
+ * again; if deleting every closed segment isn't enough the open one is
+ * closed, and deleted, too. A segment can only outgrow
+ * <code>segmentBytes</code> by the batch that reaches it, so
+ * <code>segmentBytes</code> must be well under <code>maxBytes</code>.
+ * After each batch the thread
+ * sleeps as long as the batch took to write, so a slow, busy disk slows the
+ * archiver down rather than the other way round.
+ * </p>
+ * <p>
+ * Segments are named <code>name-startMillis-counter.imd.gz</code> and can be
+ * read with {@link DumpDecoder}, or a {@link BinaryDumpReader} over a
+ * {@link java.util.zip.GZIPInputStream}. The segment being written is not
+ * readable until it is closed.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class EvictionArchiver implements Runnable {
+
+    static final String SEGMENT_SUFFIX = BinaryDumpWriter.FILE_SUFFIX + ".gz";
+
+    private static final int BATCH_SIZE = 1024;
+    private static final long MAX_PAUSE_MILLIS = 1000;
+    // what closing a segment adds: the end marker, the last deflate block
+    // and the gzip trailer
+    private static final long CLOSE_BYTES = 64;
+
+    private final String name;
+    private final File directory;
+    private final long segmentBytes;
+    private final long segmentMillis;
+    private final long maxBytes;
+    private final ErrorHandler errorHandler;
+    private final BlockingQueue<LoggingEvent> queue;
+    private final AtomicLong lost = new AtomicLong();
+    private final List<LoggingEvent> batch = new ArrayList<LoggingEvent>(BATCH_SIZE);
+    private volatile long archived = 0;
+    private volatile boolean running = true;
+    private Thread thread;
+    private int segmentCounter = 0;
+    private BinaryDumpWriter writer;
+    private CountingOutputStream written;
+    private File segment;
+    private long segmentStart;
+    // oldest first
+    private final List<Segment> closed = new ArrayList<Segment>();
+    private long closedBytes = 0;
+
+    /**
+     * @throws IllegalArgumentException
+     *             if a segment of <code>segmentBytes</code> doesn't fit in
+     *             <code>maxBytes</code>
+     */
+    EvictionArchiver(String name, File directory, int queueCapacity, long segmentBytes, long segmentMillis,
+            long maxBytes, ErrorHandler errorHandler) {
+        if (segmentBytes <= 0 || segmentBytes + CLOSE_BYTES > maxBytes) {
+            throw new IllegalArgumentException("archive segments of " + segmentBytes + " bytes don't fit in "
+                                               + maxBytes + " bytes");
+        }
+        this.name = name;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.segmentMillis = segmentMillis;
+        this.maxBytes = maxBytes;
+        this.errorHandler = errorHandler;
+        this.queue = new ArrayBlockingQueue<LoggingEvent>(queueCapacity);
+    }
+
+    void start() {
+        thread = new Thread(this, name + "-archiver");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Hand an evicted event to the archiver, never blocks.
+     * 
+     * @return false if the queue was full and the event is lost, or the
+     *         archiver is stopped
+     */
+    boolean offer(LoggingEvent evicted) {
+        if (!running) {
+            return false;
+        }
+        if (queue.offer(evicted)) {
+            return true;
+        }
+        lost.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Write what is queued, close the current segment and stop the thread.
+     */
+    void stop() {
+        running = false;
+        Thread t = thread;
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of events written to segments
+     */
+    long getArchivedCount() {
+        return archived;
+    }
+
+    /**
+     * @return the number of evicted events lost because the queue was full
+     */
+    long getLostCount() {
+        return lost.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        try {
+            // left by an earlier run, they count against the budget too
+            listSegments();
+            while (running) {
+                LoggingEvent first;
+                try {
+                    first = queue.poll(rollCheckMillis(), TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                }
+                long took = writeBatch();
+                if (took > 0 && running) {
+                    pause(Math.min(took, MAX_PAUSE_MILLIS));
+                }
+            }
+            // stopping, write whatever is left
+            while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                writeBatch();
+            }
+        } finally {
+            closeSegment();
+            enforceBudget(0);
+        }
+    }
+
+    /**
+     * Writes and clears the batch, rolling the segment if due.
+     * 
+     * @return how long the write took, ms
+     */
+    private long writeBatch() {
+        long start = System.currentTimeMillis();
+        try {
+            if (!batch.isEmpty()) {
+                if (writer == null) {
+                    // room for a full segment before starting one
+                    enforceBudget(segmentBytes + CLOSE_BYTES);
+                    openSegment(start);
+                }
+                for (LoggingEvent e : batch) {
+                    writer.write(e);
+                }
+                writer.flush();
+                if (!enforceBudget(written.count + CLOSE_BYTES)) {
+                    // the open segment alone is over budget
+                    closeSegment();
+                    enforceBudget(0);
+                }
+                archived += batch.size();
+            }
+            if (writer != null && (written.count >= segmentBytes || start - segmentStart >= segmentMillis)) {
+                closeSegment();
+            }
+        } catch (IOException e) {
+            errorHandler.error("Failed to archive to " + segment, e, ErrorCode.WRITE_FAILURE);
+            closeSegment();
+        } finally {
+            batch.clear();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private void openSegment(long now) throws IOException {
+        segment = new File(directory, name + "-" + now + "-" + segmentCounter++ + SEGMENT_SUFFIX);
+        segmentStart = now;
+        written = new CountingOutputStream(new FileOutputStream(segment));
+        // sync flushed, so a flush puts every byte written so far on disk
+        writer = new BinaryDumpWriter(new GZIPOutputStream(written, 64 * 1024, true));
+    }
+
+    private void closeSegment() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            errorHandler.error("Failed to close archive segment " + segment, e, ErrorCode.CLOSE_FAILURE);
+        }
+        writer = null;
+        written = null;
+        addClosed(segment);
+    }
+
+    /**
+     * Delete the oldest closed segments until they fit in the budget with
+     * <code>reserved</code> bytes to spare.
+     * 
+     * @return false if they still don't once every closed segment is gone
+     */
+    private boolean enforceBudget(long reserved) {
+        while (closedBytes + reserved > maxBytes && !closed.isEmpty()) {
+            Segment oldest = closed.remove(0);
+            closedBytes -= oldest.bytes;
+            if (!oldest.file.delete() && oldest.file.exists()) {
+                errorHandler.error("Can't delete archive segment " + oldest.file);
+            }
+        }
+        return closedBytes + reserved <= maxBytes;
+    }
+
+    /**
+     * Find the segments already in the directory, oldest first.
+     */
+    private void listSegments() {
+        File[] segments = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().startsWith(name + "-")
+                       && file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) {
+            return;
+        }
+
+        Arrays.sort(segments, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : a.getName().compareTo(b.getName());
+            }
+        });
+
+        for (File f : segments) {
+            addClosed(f);
+        }
+    }
+
+    private void addClosed(File file) {
+        Segment closedSegment = new Segment(file, file.length());
+        closed.add(closedSegment);
+        closedBytes += closedSegment.bytes;
+    }
+
+    private long rollCheckMillis() {
+        return writer == null ? segmentMillis : Math.max(1, segmentMillis - (System.currentTimeMillis() - segmentStart));
+    }
+
+    private void pause(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // stopping, run() notices
+        }
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final long bytes;
+
+        Segment(File file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.File;
+import java.io.IOException;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Records {@link LoggingEvent}s, and dump triggers, as JDK Flight Recorder
+ * events so the recorder's thread local buffers do the buffering.
+ * <p>
+ * This is the only class (with {@link WireEvent} and
+ * {@link DumpTriggeredEvent}) that touches <code>jdk.jfr</code>, so the
+ * appender still loads on a JVM without it; check <code>isAvailable()</code>
+ * first.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class FlightRecorderBridge {
+
+    private static final boolean AVAILABLE = detect();
+
+    private FlightRecorderBridge() {}
+
+    /**
+     * @return true if this JVM has a flight recorder
+     */
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Record <code>loggingEvent</code>, if a recording wants it
+     */
+    static void emit(LoggingEvent loggingEvent) {
+        WireEvent event = new WireEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.logger = loggingEvent.getLoggerName();
+        event.level = loggingEvent.getLevel().toString();
+        event.thread = loggingEvent.getThreadName();
+        event.message = loggingEvent.getRenderedMessage();
+        String[] throwable = loggingEvent.getThrowableStrRep();
+        if (throwable != null) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : throwable) {
+                sb.append(line).append('\n');
+            }
+            event.throwable = sb.toString();
+        }
+        event.timestamp = loggingEvent.getTimeStamp();
+        event.commit();
+    }
+
+    /**
+     * Record that <code>appender</code> was dumped because of
+     * <code>cause</code>
+     */
+    static void dumpTriggered(String appender, String route, Throwable cause, int executionCount) {
+        DumpTriggeredEvent event = new DumpTriggeredEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.appender = appender;
+        event.route = route;
+        if (cause != null) {
+            event.exception = cause.getClass().getName();
+            event.message = cause.getMessage();
+        }
+        event.executionCount = executionCount;
+        event.commit();
+    }
+
+    /**
+     * Write what the running recordings hold to <code>file</code>.
+     *
+     * @return false if nothing is being recorded, so nothing was written
+     * @throws IOException
+     */
+    static boolean snapshot(File file) throws IOException {
+        if (FlightRecorder.getFlightRecorder().getRecordings().isEmpty()) {
+            return false;
+        }
+
+        Recording snapshot = FlightRecorder.getFlightRecorder().takeSnapshot();
+        try {
+            if (snapshot.getSize() == 0) {
+                return false;
+            }
+            snapshot.dump(file.toPath());
+            return true;
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static boolean detect() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return FlightRecorder.isAvailable();
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+}
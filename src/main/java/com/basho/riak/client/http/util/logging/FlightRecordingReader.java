@@ -0,0 +1,149 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Replays the wire events in a <code>.jfr</code> file, recorded by a flight
+ * recorder {@link InMemoryAppender}, to a delegate {@link Logger} as if they
+ * had been dumped from the buffer. Dump triggers are replayed as INFO events.
+ *
+ * <pre>
+ * java -cp ... com.basho.riak.client.http.util.logging.FlightRecordingReader \
+ *     [-c log4j.properties] [-d delegateLogger] file...
+ * </pre>
+ *
+ * @author russell
+ *
+ */
+public final class FlightRecordingReader {
+
+    private static final String FQCN = FlightRecordingReader.class.getName();
+
+    private static final Comparator<RecordedEvent> BY_START_TIME = new Comparator<RecordedEvent>() {
+        public int compare(RecordedEvent o1, RecordedEvent o2) {
+            return o1.getStartTime().compareTo(o2.getStartTime());
+        }
+    };
+
+    private final Logger delegate;
+
+    /**
+     * @param delegateLoggerName
+     *            the logger to replay events to
+     */
+    public FlightRecordingReader(String delegateLoggerName) {
+        this.delegate = Logger.getLogger(delegateLoggerName);
+    }
+
+    /**
+     * Replay every wire event and dump trigger in <code>file</code>, in the
+     * order recorded (recordings are written per thread, so they are sorted
+     * first)
+     *
+     * @return the number of events replayed
+     * @throws IOException
+     */
+    public int replay(File file) throws IOException {
+        List<RecordedEvent> recorded = new ArrayList<RecordedEvent>(RecordingFile.readAllEvents(file.toPath()));
+        Collections.sort(recorded, BY_START_TIME);
+        int replayed = 0;
+
+        for (RecordedEvent e : recorded) {
+            LoggingEvent event = toLoggingEvent(e);
+            if (event != null) {
+                delegate.callAppenders(event);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the {@link LoggingEvent} for a recorded wire event or dump
+     *         trigger, <code>null</code> for any other recorded event
+     */
+    LoggingEvent toLoggingEvent(RecordedEvent e) {
+        String type = e.getEventType().getName();
+
+        if (WireEvent.NAME.equals(type)) {
+            ThrowableInformation throwable = null;
+            String trace = e.getString("throwable");
+            if (trace != null) {
+                throwable = new ThrowableInformation(trace.split("\n"));
+            }
+            return new LoggingEvent(FQCN, Logger.getLogger(e.getString("logger")), e.getLong("timestamp"),
+                                    Level.toLevel(e.getString("level")), e.getString("message"),
+                                    e.getString("thread"), throwable, null, null, null);
+        }
+
+        if (DumpTriggeredEvent.NAME.equals(type)) {
+            String message = e.getString("appender") + " dump triggered by " + e.getString("exception") + " ("
+                             + e.getString("message") + ") on " + e.getString("route") + ", execution "
+                             + e.getInt("executionCount");
+            String thread = e.getThread() == null ? null : e.getThread().getJavaName();
+            return new LoggingEvent(FQCN, delegate, e.getStartTime().toEpochMilli(), Level.INFO, message, thread,
+                                    null, null, null, null);
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String delegateName = "basho.WireSink";
+        List<File> files = new ArrayList<File>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-c".equals(arg) && i + 1 < args.length) {
+                PropertyConfigurator.configure(args[++i]);
+            } else if ("-d".equals(arg) && i + 1 < args.length) {
+                delegateName = args[++i];
+            } else if (arg.startsWith("-")) {
+                usage();
+                return;
+            } else {
+                files.add(new File(arg));
+            }
+        }
+
+        if (files.isEmpty()) {
+            usage();
+            return;
+        }
+
+        FlightRecordingReader reader = new FlightRecordingReader(delegateName);
+        for (File file : files) {
+            reader.replay(file);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: FlightRecordingReader [-c log4j.properties] [-d delegateLogger] file...");
+    }
+}
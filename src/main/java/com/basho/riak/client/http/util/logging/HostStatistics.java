@@ -0,0 +1,149 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+/**
+ * Failure statistics for one host, kept by {@link AdaptiveRetryHandler}.
+ * <p>
+ * Recent failure times are held in a small ring, so the number of failures in
+ * the sliding window is cheap to find. Only failures update the statistics,
+ * so a healthy host never touches its lock.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class HostStatistics {
+
+    /** The most failures a window can count */
+    static final int WINDOW_SLOTS = 64;
+
+    private final String host;
+    private final long[] failureTimes = new long[WINDOW_SLOTS];
+    private int next = 0;
+    private long failures = 0;
+    private long retries = 0;
+    private long fastFails = 0;
+    private long dumps = 0;
+    private long lastFailure = 0;
+    private boolean burstDumped = false;
+
+    HostStatistics(String host) {
+        this.host = host;
+    }
+
+    /**
+     * Record a failure at <code>now</code>
+     *
+     * @param burstMillis
+     *            failures closer together than this are one burst
+     */
+    synchronized void recordFailure(long now, long burstMillis) {
+        if (failures == 0 || now - lastFailure > burstMillis) {
+            burstDumped = false;
+        }
+        failureTimes[next] = now;
+        next = (next + 1) % WINDOW_SLOTS;
+        failures++;
+        lastFailure = now;
+    }
+
+    synchronized void recordRetry() {
+        retries++;
+    }
+
+    synchronized void recordFastFail() {
+        fastFails++;
+    }
+
+    /**
+     * Record a dump, unless the current burst has already been dumped
+     *
+     * @return true if the caller should dump
+     */
+    synchronized boolean recordDump() {
+        if (burstDumped) {
+            return false;
+        }
+        burstDumped = true;
+        dumps++;
+        return true;
+    }
+
+    /**
+     * @return the number of failures since <code>now - windowMillis</code>
+     *         (at most 64)
+     */
+    public synchronized int getFailuresInWindow(long now, long windowMillis) {
+        int count = 0;
+        long since = now - windowMillis;
+        int recorded = (int) Math.min(failures, WINDOW_SLOTS);
+        for (int i = 0; i < recorded; i++) {
+            if (failureTimes[i] > since) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return all failures ever recorded
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return the number of retries allowed
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * @return the number of retries refused because the host was over its
+     *         failure budget
+     */
+    public synchronized long getFastFails() {
+        return fastFails;
+    }
+
+    /**
+     * @return the number of times the in memory trace was dumped
+     */
+    public synchronized long getDumps() {
+        return dumps;
+    }
+
+    /**
+     * @return the time of the last failure, epoch ms, 0 if none
+     */
+    public synchronized long getLastFailure() {
+        return lastFailure;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override public synchronized String toString() {
+        return host + ": failures=" + failures + " retries=" + retries + " fastFails=" + fastFails + " dumps="
+               + dumps;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+/**
+ * Latency histograms, in ms, of the requests to one host, fed by an
+ * {@link InMemoryAppender} timing its wire events (see
+ * {@link RequestTiming}).
+ *
+ * @author russell
+ *
+ */
+public final class HostTimings {
+
+    private final String host;
+    private final LatencyHistogram send = new LatencyHistogram();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram transfer = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    HostTimings(String host) {
+        this.host = host;
+    }
+
+    void record(RequestTiming timing) {
+        send.record(timing.getSendMillis());
+        if (timing.isAnswered()) {
+            firstByte.record(timing.getFirstByteMillis());
+            transfer.record(timing.getHeaderMillis() + timing.getBodyMillis());
+        }
+        total.record(timing.getTotalMillis());
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the time taken to write requests
+     */
+    public LatencyHistogram getSend() {
+        return send;
+    }
+
+    /**
+     * @return the time from the end of each request to the first byte of its
+     *         response, answered requests only
+     */
+    public LatencyHistogram getFirstByte() {
+        return firstByte;
+    }
+
+    /**
+     * @return the time taken to read responses, headers and body, answered
+     *         requests only
+     */
+    public LatencyHistogram getTransfer() {
+        return transfer;
+    }
+
+    /**
+     * @return the time from request line to the last event of each request
+     */
+    public LatencyHistogram getTotal() {
+        return total;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return host + ": firstByte[" + firstByte + "] transfer[" + transfer + "] total[" + total + "]";
+    }
+}
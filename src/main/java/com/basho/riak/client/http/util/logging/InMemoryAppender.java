@@ -13,14 +13,46 @@
  */
 package com.basho.riak.client.http.util.logging;
 
-import java.util.ArrayDeque;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.log4j.Appender;
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.Filter;
 import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.apache.log4j.spi.TriggeringEventEvaluator;
+
+import com.basho.riak.client.http.util.logging.core.DumpLedger;
+import com.basho.riak.client.http.util.logging.core.SequencedRing;
 
 /**
  * An in memory log4j appender that collects log statements in a buffer.
@@ -41,6 +73,79 @@ import org.apache.log4j.spi.LoggingEvent;
  * </p>
  * 
  * <p>
+ * Every appended event is given a sequence number. Each dump starts with a
+ * summary line giving the sequence range dumped, how many events were evicted
+ * unseen since the previous dump and the time span covered, which shows
+ * whether the <code>capacity</code> is enough for the traffic.
+ * </p>
+ * <p>
+ * What triggers a dump is configured on the appender's {@link DumpTrigger}:
+ * the exceptions {@link LogNoHttpResponseRetryHandler} dumps on, and
+ * optionally a level (or a {@link TriggeringEventEvaluator}) at which an
+ * appended event dumps the buffer itself.
+ * </p>
+ * <p>
+ * If <code>requestScoped</code> the events of each thread's request in flight
+ * are held apart, up to <code>requestCapacity</code> of them, and discarded
+ * when the request completes cleanly (the thread starts another request, or
+ * calls <code>requestCompleted</code>). Only failed, retried or slow requests
+ * are promoted into the buffer that <code>dump</code> reads, so a small buffer
+ * covers a long history of failures rather than seconds of traffic. Every
+ * thread's requests in flight together hold at most <code>maxPending</code>
+ * events.
+ * </p>
+ * <p>
+ * If a <code>partitionKey</code> is configured the buffer is split by the value
+ * of that MDC key (usually a <code>host:port</code> route, see {@link Routes}).
+ * Each partition is bounded by <code>partitionCapacity</code>, and
+ * <code>capacity</code> bounds all partitions together, evicting from the
+ * largest partition first. <code>dump(route)</code> flushes a single partition,
+ * or if there is none for the route, the events logged without the partition
+ * key. Partitions are discarded as soon as they are empty.
+ * </p>
+ * <p>
+ * If a <code>pool</code> is configured the appender also shares a combined
+ * event or byte budget with every other appender in that {@link BufferPool}.
+ * </p>
+ * <p>
+ * If a <code>dumpDirectory</code> is configured the buffer is written there as
+ * a compact binary file (see {@link BinaryDumpWriter}) instead of going through
+ * the delegate logger. Use {@link DumpDecoder} to render those files.
+ * </p>
+ * <p>
+ * If <code>lossy</code> an append never waits: it skips log4j's per appender
+ * monitor, and an event that can't have the buffer straight away is dropped
+ * and counted rather than waiting for it. Dumps the evaluator asks for are
+ * run by a thread of the appender's own, not the appending thread.
+ * </p>
+ * <p>
+ * If <code>maxBodyBytes</code> is set only that many bytes of each request's
+ * (and each response's) body are kept, counted per connection. Where a
+ * body is cut a <code>[body truncated at n bytes]</code> event is buffered
+ * straight after it, the rest of the body is only counted (see
+ * <code>getTruncatedBodyBytes()</code>). Headers are always kept.
+ * </p>
+ * <p>
+ * If <code>flightRecorder</code> the appender buffers nothing itself: each
+ * event is recorded as a JDK Flight Recorder event (see
+ * {@link FlightRecorderBridge}) and <code>dump</code> snapshots the running
+ * recordings to the <code>flightRecorderDirectory</code>, if one is
+ * configured. Use {@link FlightRecordingReader} to replay them.
+ * </p>
+ * <p>
+ * Every dump belongs to an incident, whose id is in the dump's summary line.
+ * A retry handler opens the incident with <code>beginIncident</code>, which
+ * logs its id. If an <code>incidentDirectory</code> is configured dumps are
+ * stored there, indexed by incident, instead of going to the delegate
+ * logger or <code>dumpDirectory</code>: see {@link IncidentStore}.
+ * </p>
+ * <p>
+ * Events can also be watched live, as they are appended, by
+ * {@link TailSubscription}s: see <code>subscribe</code>, or set
+ * <code>jmx</code> to subscribe through an {@link InMemoryTailMBean}.
+ * </p>
+ * 
+ * <p>
  * Note: in order for this all to work you must configure your logging
  * correctly. See the example log4j.properties in this project.
  * </p>
@@ -53,10 +158,99 @@ public class InMemoryAppender extends AppenderSkeleton {
 
     public static final String DEFAULT_NAME = "InMem";
 
-    private final Object bufferLock = new Object();
+    /** The partition events with no value for the partition key go to */
+    public static final String DEFAULT_PARTITION = "";
+
+    /**
+     * The partition key that partitions by the connection id the client's
+     * wire log prefixes each line with, eg. <code>http-outgoing-3</code>
+     * (HttpClient 4.x and 5.x), rather than by an MDC value
+     */
+    public static final String CONNECTION_KEY = "wire.connection";
+    static final String UNKNOWN_HOST = "unknown";
+
+    private static final Comparator<LoggingEvent> BY_TIMESTAMP = new Comparator<LoggingEvent>() {
+        public int compare(LoggingEvent o1, LoggingEvent o2) {
+            long t1 = o1.getTimeStamp();
+            long t2 = o2.getTimeStamp();
+            return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+        }
+    };
+
+    private final ReentrantLock bufferLock = new ReentrantLock();
     private String delegateLoggerName = "basho.WireSink";
     private int capacity = 1000;
-    private ArrayDeque<LoggingEvent> buffer = new ArrayDeque<LoggingEvent>();
+    private final SequencedRing<LoggingEvent> buffer = new SequencedRing<LoggingEvent>(capacity);
+    private volatile String partitionKey;
+    private int partitionCapacity = -1;
+    private final Map<String, SequencedRing<LoggingEvent>> partitions = new HashMap<String, SequencedRing<LoggingEvent>>();
+    private int partitionedSize = 0;
+    // evictions from each partition not yet reported by dump(route)
+    private final Map<String, Long> partitionEvictions = new HashMap<String, Long>();
+    private volatile File dumpDirectory;
+    private int dumpFileCounter = 0;
+    private String poolName;
+    private long poolEvents = -1;
+    private long poolBytes = -1;
+    private volatile BufferPool pool;
+    private volatile long poolUsage = 0;
+    private final DumpLedger ledger = new DumpLedger();
+    private volatile boolean dumpSummary = true;
+    private final DumpTrigger trigger = new DumpTrigger();
+    private volatile boolean requestScoped = false;
+    private volatile int requestCapacity = 500;
+    private volatile long maxPending = 10000;
+    // every thread's request in flight counts its events here, replaced by
+    // clear() as those events are forgotten
+    private volatile AtomicLong pendingEvents = new AtomicLong();
+    private final AtomicLong pendingDropped = new AtomicLong();
+    // bumped by clear(), so every thread's request in flight is forgotten
+    private final AtomicInteger closeCount = new AtomicInteger();
+    private final ThreadLocal<PendingRequest> pending = new ThreadLocal<PendingRequest>() {
+        @Override protected PendingRequest initialValue() {
+            return new PendingRequest(requestCapacity);
+        }
+    };
+    private volatile TriggeringEventEvaluator evaluator = trigger;
+    private volatile boolean lossy = false;
+    private volatile TriggeredDumps triggeredDumps;
+    private volatile boolean flightRecorder = false;
+    private volatile File flightRecorderDirectory;
+    private volatile long maxBodyBytes = -1;
+    private volatile long duplicateWindowMillis = 0;
+    private final DumpFingerprints fingerprints = new DumpFingerprints();
+    private volatile File archiveDirectory;
+    private long archiveSegmentBytes = 16 * 1024 * 1024;
+    private long archiveSegmentMillis = 5 * 60 * 1000;
+    private long archiveMaxBytes = 256 * 1024 * 1024;
+    private int archiveQueueCapacity = 10000;
+    private volatile EvictionArchiver archiver;
+    // the stopped archiver's counts, once closed
+    private volatile long archivedCount = 0;
+    private volatile long archiveLostCount = 0;
+    private volatile boolean requestTimings = false;
+    private final ConnectionStates<RequestClock> clocks = new ConnectionStates<RequestClock>() {
+        @Override protected RequestClock create() {
+            return new RequestClock();
+        }
+    };
+    private final ConcurrentMap<String, HostTimings> hostTimings = new ConcurrentHashMap<String, HostTimings>();
+    private final AtomicLong truncatedBodyBytes = new AtomicLong();
+    private final ConnectionStates<BodyLimiter> bodyLimiters = new ConnectionStates<BodyLimiter>() {
+        @Override protected BodyLimiter create() {
+            return new BodyLimiter(truncatedBodyBytes);
+        }
+    };
+    private final List<TailSubscription> tails = new CopyOnWriteArrayList<TailSubscription>();
+    private final AtomicLong tailIds = new AtomicLong();
+    private volatile long tailIdleMillis = 60000;
+    private volatile boolean jmx = false;
+    private volatile ObjectName jmxName;
+    private volatile File incidentDirectory;
+    private long incidentMaxBytes = 256 * 1024 * 1024;
+    private volatile IncidentStore incidentStore;
+    private final AtomicLong incidentCounter = new AtomicLong();
+    private final ThreadLocal<Incident> incidents = new ThreadLocal<Incident>();
 
     /**
      * The maximum number of {@link LoggingEvent}s to hold in the buffer. When
@@ -74,12 +268,16 @@ public class InMemoryAppender extends AppenderSkeleton {
      *            the number of {@link LoggingEvent}s to hold in the buffer.
      */
     public void setCapacity(int capacity) {
-        synchronized (bufferLock) {
-            if (buffer.size() > capacity) {
+        bufferLock.lock();
+        try {
+            if (buffer.size() + partitionedSize > capacity) {
                 throw new IllegalArgumentException("Can't set capacity to less than current buffer size");
             } else {
                 this.capacity = capacity;
+                buffer.setCapacity(capacity);
             }
+        } finally {
+            bufferLock.unlock();
         }
     }
 
@@ -102,59 +300,1934 @@ public class InMemoryAppender extends AppenderSkeleton {
         this.delegateLoggerName = delegateLoggerName;
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * The MDC key whose value partitions the buffer, usually a route set with
+     * {@link Routes#of(HttpMethod)}. Or {@link #CONNECTION_KEY} to partition
+     * by connection, which keeps dumps per request even on event loop
+     * clients that multiplex many connections onto one thread.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.PartitionKey=route
+     * </p>
+     * <p>
+     * Defaults to none (one shared buffer), if not set.
+     * </p>
      * 
-     * @see org.apache.log4j.Appender#close()
+     * @param partitionKey
+     *            the MDC key to partition by, or <code>null</code> for a
+     *            single buffer
      */
-    @Override public void close() {
-        synchronized (bufferLock) {
-            buffer.clear();
+    public void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey == null || partitionKey.length() == 0 ? null : partitionKey;
+    }
+
+    /**
+     * The maximum number of {@link LoggingEvent}s to hold in each partition.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.PartitionCapacity=200
+     * </p>
+     * <p>
+     * Defaults to <code>capacity</code>, if not set.
+     * </p>
+     * 
+     * @param partitionCapacity
+     *            the number of {@link LoggingEvent}s each partition holds
+     */
+    public void setPartitionCapacity(int partitionCapacity) {
+        bufferLock.lock();
+        try {
+            for (SequencedRing<LoggingEvent> partition : partitions.values()) {
+                if (partition.size() > partitionCapacity) {
+                    throw new IllegalArgumentException("Can't set partition capacity to less than a partition's current size");
+                }
+            }
+            this.partitionCapacity = partitionCapacity;
+            for (SequencedRing<LoggingEvent> partition : partitions.values()) {
+                partition.setCapacity(partitionCapacity);
+            }
+        } finally {
+            bufferLock.unlock();
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * A directory to write binary dump files to when <code>dump</code> is
+     * called. When set the delegate logger is not used.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.DumpDirectory=/var/log/wire
+     * </p>
+     * <p>
+     * Defaults to none, if not set.
+     * </p>
      * 
-     * @see org.apache.log4j.Appender#requiresLayout()
+     * @param dumpDirectory
+     *            the directory to write dump files to, or <code>null</code>
+     *            to dump to the delegate logger
      */
-    @Override public boolean requiresLayout() {
-        return false;
+    public void setDumpDirectory(String dumpDirectory) {
+        this.dumpDirectory = dumpDirectory == null || dumpDirectory.length() == 0 ? null : new File(dumpDirectory);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Stream evicted events, in the background, to rolling gzipped binary
+     * dump segments in <code>archiveDirectory</code>, so a trace that was
+     * never dumped can still be found later. See {@link EvictionArchiver}.
+     * Takes effect on <code>activateOptions</code>.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.ArchiveDirectory=/var/log/wire/archive
+     * </p>
+     * <p>
+     * Defaults to none, evicted events are discarded, if not set.
+     * </p>
      * 
-     * @see
-     * org.apache.log4j.AppenderSkeleton#append(org.apache.log4j.spi.LoggingEvent
-     * )
+     * @param archiveDirectory
      */
-    @Override protected void append(LoggingEvent loggingEvent) {
-        synchronized (bufferLock) {
-            if (buffer.size() == capacity) {
-                buffer.poll();
-            }
-            buffer.offer(loggingEvent);
-        }
+    public void setArchiveDirectory(String archiveDirectory) {
+        this.archiveDirectory = archiveDirectory == null || archiveDirectory.length() == 0 ? null
+                : new File(archiveDirectory);
     }
 
     /**
-     * Flushes the buffer to the {@link Logger} named
-     * <code>delegateLoggerName</code>
+     * The compressed size at which an archive segment is closed and a new
+     * one started. Must be well under <code>archiveMaxBytes</code>, which
+     * the segment being written counts against too.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.ArchiveSegmentBytes=16777216
+     * </p>
+     * <p>
+     * Defaults to 16MB, if not set.
+     * </p>
+     * 
+     * @param archiveSegmentBytes
      */
-    public void dump() {
-        Logger delegate = Logger.getLogger(delegateLoggerName);
-        // copy buffer contents and dump
-        Collection<LoggingEvent> sink;
+    public void setArchiveSegmentBytes(long archiveSegmentBytes) {
+        this.archiveSegmentBytes = archiveSegmentBytes;
+    }
 
-        synchronized (bufferLock) {
-            sink = new LinkedList<LoggingEvent>(buffer);
-            buffer.clear();
-        }
+    /**
+     * The age at which an archive segment is closed, even if not full.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.ArchiveSegmentMillis=300000
+     * </p>
+     * <p>
+     * Defaults to 5 minutes, if not set.
+     * </p>
+     * 
+     * @param archiveSegmentMillis
+     */
+    public void setArchiveSegmentMillis(long archiveSegmentMillis) {
+        this.archiveSegmentMillis = archiveSegmentMillis;
+    }
 
-        for (LoggingEvent e : sink) {
-            delegate.callAppenders(e);
+    /**
+     * The disk budget of the archive, the segment being written included.
+     * The oldest segments are deleted to stay within it, so it should hold
+     * several <code>archiveSegmentBytes</code> segments.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.ArchiveMaxBytes=268435456
+     * </p>
+     * <p>
+     * Defaults to 256MB, if not set.
+     * </p>
+     * 
+     * @param archiveMaxBytes
+     */
+    public void setArchiveMaxBytes(long archiveMaxBytes) {
+        this.archiveMaxBytes = archiveMaxBytes;
+    }
+
+    /**
+     * The number of evicted events that may wait for the archiver, more are
+     * lost (and counted) rather than slow down appends.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.ArchiveQueueCapacity=10000
+     * </p>
+     * <p>
+     * Defaults to 10000, if not set.
+     * </p>
+     * 
+     * @param archiveQueueCapacity
+     */
+    public void setArchiveQueueCapacity(int archiveQueueCapacity) {
+        this.archiveQueueCapacity = archiveQueueCapacity;
+    }
+
+    /**
+     * Whether to time each request from the timestamps of its wire events
+     * (see {@link RequestTiming}). Dumps follow each request with a line
+     * giving its timing, and every request, dumped or not, is recorded in
+     * its host's {@link HostTimings}. A request is recorded when the next
+     * one starts on its connection (or thread, if the wire log has no
+     * connection ids), or on <code>requestCompleted</code>.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.RequestTimings=true
+     * </p>
+     * <p>
+     * Defaults to false, if not set.
+     * </p>
+     * 
+     * @param requestTimings
+     */
+    public void setRequestTimings(boolean requestTimings) {
+        this.requestTimings = requestTimings;
+    }
+
+    /**
+     * A directory to store dumps in, indexed by incident id, time, host and
+     * exception type, instead of going to the delegate logger or the
+     * <code>dumpDirectory</code>. The delegate logger gets only the summary
+     * line. See {@link IncidentStore}.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.IncidentDirectory=/var/log/wire/incidents
+     * </p>
+     * <p>
+     * Defaults to none, if not set.
+     * </p>
+     * 
+     * @param incidentDirectory
+     */
+    public void setIncidentDirectory(String incidentDirectory) {
+        this.incidentDirectory = incidentDirectory == null || incidentDirectory.length() == 0 ? null
+                : new File(incidentDirectory);
+    }
+
+    /**
+     * The disk budget of the incident store, separate from
+     * <code>archiveMaxBytes</code>. The store keeps two generations of files
+     * of up to half of it each, and deletes the older generation, with its
+     * dumps, to start a new one. 0 or less keeps every dump.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.IncidentMaxBytes=268435456
+     * </p>
+     * <p>
+     * Defaults to 256MB, if not set.
+     * </p>
+     * 
+     * @param incidentMaxBytes
+     */
+    public void setIncidentMaxBytes(long incidentMaxBytes) {
+        this.incidentMaxBytes = incidentMaxBytes;
+    }
+
+    /**
+     * @return the store dumps go to, or <code>null</code> if no
+     *         <code>incidentDirectory</code> is configured
+     */
+    public IncidentStore getIncidentStore() {
+        return incidentStore;
+    }
+
+    /**
+     * How long a {@link TailSubscription} may go without being polled before
+     * it is closed, so a forgotten subscriber doesn't cost every append.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.TailIdleMillis=300000
+     * </p>
+     * <p>
+     * Defaults to 60000ms, if not set. 0 never closes idle subscriptions.
+     * </p>
+     * 
+     * @param tailIdleMillis
+     */
+    public void setTailIdleMillis(long tailIdleMillis) {
+        this.tailIdleMillis = tailIdleMillis;
+    }
+
+    /**
+     * Whether to register an {@link InMemoryTailMBean}, named
+     * <code>com.basho.riak.client.http.util.logging:type=InMemoryAppender,name=</code>
+     * the appender's name, with the platform MBean server on
+     * <code>activateOptions</code>, to tail the appender from a JMX console.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.Jmx=true
+     * </p>
+     * <p>
+     * Defaults to false, if not set.
+     * </p>
+     * 
+     * @param jmx
+     */
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * Whether to record each event with the JDK Flight Recorder instead of
+     * buffering it. A recording must enable the
+     * <code>com.basho.riak.client.http.WireLog</code> event for anything to be
+     * kept. Falls back to buffering, on <code>activateOptions</code>, if the
+     * JVM has no flight recorder.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.FlightRecorder=true
+     * </p>
+     * <p>
+     * Defaults to false, if not set.
+     * </p>
+     * 
+     * @param flightRecorder
+     */
+    public void setFlightRecorder(boolean flightRecorder) {
+        this.flightRecorder = flightRecorder;
+    }
+
+    /**
+     * A directory to snapshot the running flight recordings to when
+     * <code>dump</code> is called in <code>flightRecorder</code> mode.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.FlightRecorderDirectory=/var/log/wire
+     * </p>
+     * <p>
+     * Defaults to none (dump records only the trigger), if not set.
+     * </p>
+     * 
+     * @param flightRecorderDirectory
+     */
+    public void setFlightRecorderDirectory(String flightRecorderDirectory) {
+        this.flightRecorderDirectory = flightRecorderDirectory == null || flightRecorderDirectory.length() == 0 ? null
+                : new File(flightRecorderDirectory);
+    }
+
+    /**
+     * @return true if events are recorded with the JDK Flight Recorder rather
+     *         than buffered
+     */
+    public boolean isFlightRecorder() {
+        return flightRecorder;
+    }
+
+    /**
+     * The name of a {@link BufferPool} to share a budget with other appenders.
+     * Takes effect on <code>activateOptions</code>.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.Pool=wire
+     * </p>
+     * <p>
+     * Defaults to none, if not set.
+     * </p>
+     * 
+     * @param poolName
+     *            the pool to join
+     */
+    public void setPool(String poolName) {
+        this.poolName = poolName == null || poolName.length() == 0 ? null : poolName;
+    }
+
+    /**
+     * Sets the pool's budget to <code>poolEvents</code> events. Only needs to
+     * be set on one member of the pool.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.PoolEvents=5000
+     * </p>
+     * 
+     * @param poolEvents
+     *            the number of {@link LoggingEvent}s all members may hold
+     */
+    public void setPoolEvents(long poolEvents) {
+        this.poolEvents = poolEvents;
+    }
+
+    /**
+     * Sets the pool's budget to an estimated <code>poolBytes</code> of heap.
+     * Only needs to be set on one member of the pool.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.PoolBytes=16777216
+     * </p>
+     * 
+     * @param poolBytes
+     *            the estimated bytes all members may hold
+     */
+    public void setPoolBytes(long poolBytes) {
+        this.poolBytes = poolBytes;
+    }
+
+    /**
+     * Whether each dump starts with a summary line of the sequence range,
+     * evictions and time span it covers.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.DumpSummary=false
+     * </p>
+     * <p>
+     * Defaults to true, if not set.
+     * </p>
+     * 
+     * @param dumpSummary
+     */
+    public void setDumpSummary(boolean dumpSummary) {
+        this.dumpSummary = dumpSummary;
+    }
+
+    /**
+     * Suppress dumps that repeat one already written in the last
+     * <code>duplicateWindowMillis</code>. A repeat is recognised by its
+     * fingerprint (see {@link DumpFingerprints}): the same requests, headers,
+     * statuses and exceptions, whatever the keys, values and times. Instead of
+     * the trace a single line is logged, with the fingerprint and how often it
+     * has repeated, and the first dump's summary carries the fingerprint to
+     * search for.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.DuplicateWindowMillis=60000
+     * </p>
+     * <p>
+     * Defaults to 0, every dump is written, if not set.
+     * </p>
+     * 
+     * @param duplicateWindowMillis
+     */
+    public void setDuplicateWindowMillis(long duplicateWindowMillis) {
+        this.duplicateWindowMillis = duplicateWindowMillis;
+    }
+
+    /**
+     * The exceptions that make {@link LogNoHttpResponseRetryHandler} dump the
+     * buffer, sub classes included.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.TriggerExceptions=org.apache.commons.httpclient.
+     * NoHttpResponseException,java.net.SocketTimeoutException
+     * </p>
+     * <p>
+     * Defaults to {@link DumpTrigger#DEFAULT_EXCEPTIONS}, if not set.
+     * </p>
+     * 
+     * @param exceptions
+     *            comma separated exception class names
+     */
+    public void setTriggerExceptions(String exceptions) {
+        trigger.setExceptions(exceptions);
+    }
+
+    /**
+     * Whether an exception whose cause chain contains a trigger exception
+     * triggers a dump.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.TriggerCauses=true
+     * </p>
+     * <p>
+     * Defaults to false, if not set.
+     * </p>
+     * 
+     * @param causes
+     */
+    public void setTriggerCauses(boolean causes) {
+        trigger.setCauses(causes);
+    }
+
+    /**
+     * The execution count the retry handler must have reached before a
+     * trigger exception dumps the buffer.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.TriggerMinExecutionCount=2
+     * </p>
+     * <p>
+     * Defaults to 0 (always), if not set.
+     * </p>
+     * 
+     * @param minExecutionCount
+     */
+    public void setTriggerMinExecutionCount(int minExecutionCount) {
+        trigger.setMinExecutionCount(minExecutionCount);
+    }
+
+    /**
+     * The level at or above which an appended event dumps the buffer (or the
+     * event's partition).
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.TriggerLevel=ERROR
+     * </p>
+     * <p>
+     * Defaults to none, if not set.
+     * </p>
+     * 
+     * @param level
+     *            a level name
+     */
+    public void setTriggerLevel(String level) {
+        trigger.setLevel(level == null || level.length() == 0 ? null : Level.toLevel(level, null));
+    }
+
+    /**
+     * A {@link TriggeringEventEvaluator} to decide which appended events dump
+     * the buffer, instead of <code>TriggerLevel</code>.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.EvaluatorClass=com.example.MyEvaluator
+     * </p>
+     * 
+     * @param evaluatorClass
+     *            the evaluator's class name
+     */
+    public void setEvaluatorClass(String evaluatorClass) {
+        TriggeringEventEvaluator e = (TriggeringEventEvaluator) OptionConverter.instantiateByClassName(evaluatorClass,
+                                                                                                      TriggeringEventEvaluator.class,
+                                                                                                      null);
+        evaluator = e == null ? trigger : e;
+    }
+
+    /**
+     * @return the {@link DumpTrigger} the retry handler consults
+     */
+    public DumpTrigger getDumpTrigger() {
+        return trigger;
+    }
+
+    /**
+     * Whether events are held per request in flight, and only kept if the
+     * request fails, is retried, or is slow.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.RequestScoped=true
+     * </p>
+     * <p>
+     * Defaults to false, if not set.
+     * </p>
+     * 
+     * @param requestScoped
+     */
+    public void setRequestScoped(boolean requestScoped) {
+        this.requestScoped = requestScoped;
+    }
+
+    /**
+     * The maximum number of {@link LoggingEvent}s held for one request in
+     * flight, older events are dropped (FIFO).
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.RequestCapacity=500
+     * </p>
+     * <p>
+     * Defaults to 500, if not set. Each thread's request in flight takes the
+     * new capacity when the thread next logs or completes a request.
+     * </p>
+     * 
+     * @param requestCapacity
+     */
+    public void setRequestCapacity(int requestCapacity) {
+        this.requestCapacity = requestCapacity;
+        pendingRequest();
+    }
+
+    /**
+     * The maximum number of {@link LoggingEvent}s held by every thread's
+     * request in flight together. Over it a request gives up its own oldest
+     * event for each new one, or drops the new one if it holds none. See
+     * <code>getPendingDroppedCount()</code>.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.MaxPending=10000
+     * </p>
+     * <p>
+     * Defaults to 10000, if not set. A thread that dies with a request in
+     * flight counts against it until <code>clear()</code>.
+     * </p>
+     * 
+     * @param maxPending
+     */
+    public void setMaxPending(long maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return the number of events held by every thread's request in flight
+     */
+    public long getPendingEvents() {
+        return pendingEvents.get();
+    }
+
+    /**
+     * @return the number of events of requests in flight lost to
+     *         <code>maxPending</code>
+     */
+    public long getPendingDroppedCount() {
+        return pendingDropped.get();
+    }
+
+    /**
+     * Whether an append drops its event, rather than wait, when another
+     * thread has the buffer (eg. it is being dumped). Trades diagnostic trace
+     * for a constant worst case cost to the logging thread under load. See
+     * <code>getDroppedCount()</code>.
+     * <p>
+     * A lossy appender also hands the dumps its evaluator triggers to a
+     * thread of its own, started by <code>activateOptions</code>, so a
+     * triggering event costs its thread no more than any other.
+     * </p>
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.Lossy=true
+     * </p>
+     * <p>
+     * Defaults to false, if not set.
+     * </p>
+     * 
+     * @param lossy
+     */
+    public void setLossy(boolean lossy) {
+        this.lossy = lossy;
+    }
+
+    /**
+     * @return true if appends drop rather than wait
+     */
+    public boolean isLossy() {
+        return lossy;
+    }
+
+    /**
+     * @return the number of events dropped, never buffered, by lossy appends
+     *         since the appender was created
+     */
+    public long getDroppedCount() {
+        return ledger.getDroppedCount();
+    }
+
+    /**
+     * @return the fraction of events reaching the buffer that were dropped by
+     *         lossy appends, 0 if none
+     */
+    public double getDropRate() {
+        // dropped events are numbered too
+        long total = ledger.getSequence();
+        return total == 0 ? 0 : (double) ledger.getDroppedCount() / total;
+    }
+
+    /**
+     * The number of body bytes to keep per request, and per response. Where
+     * a body is cut a single summary event is buffered after it, the body
+     * bytes beyond that are counted, not buffered. Headers are always kept.
+     * <p>
+     * Usually configured by the log4j framework: eg.
+     * log4j.appender.InMem.MaxBodyBytes=512
+     * </p>
+     * <p>
+     * Defaults to -1 (keep every body byte), if not set.
+     * </p>
+     * 
+     * @param maxBodyBytes
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * @return the number of body bytes cut off by <code>maxBodyBytes</code>
+     */
+    public long getTruncatedBodyBytes() {
+        return truncatedBodyBytes.get();
+    }
+
+    /**
+     * @return true if events are held per request in flight
+     */
+    public boolean isRequestScoped() {
+        return requestScoped;
+    }
+
+    /**
+     * @return the sequence number most recently handed out, to an event
+     *         buffered or dropped
+     */
+    public long getSequence() {
+        return ledger.getSequence();
+    }
+
+    /**
+     * @return the number of events evicted, never dumped, since the appender
+     *         was created
+     */
+    public long getEvictedCount() {
+        return ledger.getEvictedCount();
+    }
+
+    /**
+     * @return the number of evicted events written to the archive, 0 if not
+     *         archiving
+     */
+    public long getArchivedCount() {
+        EvictionArchiver a = archiver;
+        return a == null ? archivedCount : a.getArchivedCount();
+    }
+
+    /**
+     * @return the number of evicted events lost because the archiver fell
+     *         behind, 0 if not archiving
+     */
+    public long getArchiveLostCount() {
+        EvictionArchiver a = archiver;
+        return a == null ? archiveLostCount : a.getLostCount();
+    }
+
+    /**
+     * Time the requests in the buffer, without dumping it.
+     * 
+     * @return the timing of each request with a request line still buffered,
+     *         in order of start
+     */
+    public List<RequestTiming> getRequestTimings() {
+        List<LoggingEvent> snapshot;
+        bufferLock.lock();
+        try {
+            snapshot = copyBuffered();
+        } finally {
+            bufferLock.unlock();
+        }
+        return RequestClock.time(snapshot, null);
+    }
+
+    /**
+     * Must hold bufferLock.
+     * 
+     * @return every buffered event, oldest first, left in the buffer
+     */
+    private List<LoggingEvent> copyBuffered() {
+        List<LoggingEvent> snapshot = new ArrayList<LoggingEvent>(buffer.size() + partitionedSize);
+        buffer.copyTo(snapshot);
+        for (SequencedRing<LoggingEvent> partition : partitions.values()) {
+            partition.copyTo(snapshot);
+        }
+        if (!partitions.isEmpty()) {
+            Collections.sort(snapshot, BY_TIMESTAMP);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Subscribe to the events appended from now on, never dropped for losing
+     * events. See {@link #subscribe(Filter, int, long, boolean)}.
+     */
+    public TailSubscription subscribe(Filter filter, int capacity, boolean history) {
+        return subscribe(filter, capacity, -1, history);
+    }
+
+    /**
+     * Subscribe to the events appended from now on, as they are appended.
+     * Events dropped by a <code>lossy</code> append are never seen. In
+     * <code>requestScoped</code> mode every appended event is seen, whether
+     * its request is later promoted or not.
+     * 
+     * @param filter
+     *            the first of a chain of filters picking the events to
+     *            deliver, run as they are polled, <code>null</code> for
+     *            every event
+     * @param capacity
+     *            the most events to queue for the subscriber, before they
+     *            are filtered
+     * @param maxLost
+     *            close the subscription once it has lost more than this many
+     *            events for a full queue, less than 0 to never
+     * @param history
+     *            true to queue the buffered events first, with no gap or
+     *            overlap between them and the live events
+     * @return the subscription, to poll
+     */
+    public TailSubscription subscribe(Filter filter, int capacity, long maxLost, boolean history) {
+        TailSubscription tail = new TailSubscription(tailIds.incrementAndGet(), filter, capacity, maxLost);
+        bufferLock.lock();
+        try {
+            // under the lock, as buffered events are published, so the
+            // history and the live events meet exactly
+            if (history) {
+                tail.preload(copyBuffered());
+            }
+            tails.add(tail);
+        } finally {
+            bufferLock.unlock();
+        }
+        return tail;
+    }
+
+    /**
+     * Stop, and remove, <code>tail</code>. Events already queued can still be
+     * polled.
+     */
+    public void unsubscribe(TailSubscription tail) {
+        tail.cancel();
+        tails.remove(tail);
+    }
+
+    /**
+     * @return the live subscriptions
+     */
+    public List<TailSubscription> getTailSubscriptions() {
+        return Collections.unmodifiableList(tails);
+    }
+
+    /**
+     * @return the latencies of every host timed so far, empty unless
+     *         <code>requestTimings</code> is on
+     */
+    public Collection<HostTimings> getHostTimings() {
+        return Collections.unmodifiableCollection(hostTimings.values());
+    }
+
+    /**
+     * @param host
+     *            the host as given by requests' <code>Host</code> header, eg.
+     *            <code>node1:8098</code>
+     * @return its latencies, or <code>null</code> if none were timed
+     */
+    public HostTimings getHostTimings(String host) {
+        return hostTimings.get(host);
+    }
+
+    /**
+     * @return the {@link BufferPool} this appender belongs to, or
+     *         <code>null</code>
+     */
+    public BufferPool getBufferPool() {
+        return pool;
+    }
+
+    /**
+     * @return the events, or estimated bytes, this appender holds against its
+     *         pool's budget, 0 if not pooled
+     */
+    public long getPoolUsage() {
+        return poolUsage;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.log4j.AppenderSkeleton#activateOptions()
+     */
+    @Override public void activateOptions() {
+        if (poolName != null) {
+            BufferPool joined = BufferPool.get(poolName);
+            if (poolBytes > 0) {
+                joined.setByteBudget(poolBytes);
+            } else if (poolEvents > 0) {
+                joined.setEventBudget(poolEvents);
+            }
+            joined.register(this);
+            pool = joined;
+        }
+
+        if (flightRecorder && !FlightRecorderBridge.isAvailable()) {
+            errorHandler.error("No flight recorder in this JVM, " + summaryName() + " will buffer events instead");
+            flightRecorder = false;
+        }
+
+        File directory = archiveDirectory;
+        if (directory != null && archiver == null) {
+            if (directory.isDirectory() || directory.mkdirs()) {
+                try {
+                    EvictionArchiver a = new EvictionArchiver(summaryName(), directory, archiveQueueCapacity,
+                                                              archiveSegmentBytes, archiveSegmentMillis,
+                                                              archiveMaxBytes, errorHandler);
+                    a.start();
+                    archiver = a;
+                } catch (IllegalArgumentException e) {
+                    errorHandler.error(e.getMessage() + ", evicted events are discarded");
+                }
+            } else {
+                errorHandler.error("Can't create archive directory " + directory + ", evicted events are discarded");
+            }
+        }
+
+        File incidents = incidentDirectory;
+        if (incidents != null && incidentStore == null) {
+            try {
+                if (!incidents.isDirectory() && !incidents.mkdirs()) {
+                    throw new IOException("Can't create " + incidents);
+                }
+                incidentStore = IncidentStore.open(incidents, summaryName(), incidentMaxBytes);
+            } catch (IOException e) {
+                errorHandler.error("Can't open incident store in " + incidents + ", dumps are not stored", e,
+                                   ErrorCode.FILE_OPEN_FAILURE);
+            }
+        }
+
+        if (lossy && !flightRecorder && triggeredDumps == null) {
+            TriggeredDumps d = new TriggeredDumps(this);
+            d.start(summaryName());
+            triggeredDumps = d;
+        }
+
+        if (jmx && jmxName == null) {
+            registerTail();
+        }
+    }
+
+    private void registerTail() {
+        try {
+            ObjectName objectName = InMemoryTail.nameOf(summaryName());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(new InMemoryTail(this), objectName);
+            jmxName = objectName;
+        } catch (JMException e) {
+            errorHandler.error("Can't register " + summaryName() + " with JMX", e, ErrorCode.GENERIC_FAILURE);
+        }
+    }
+
+    /**
+     * @return true if the buffer is partitioned by an MDC key
+     */
+    public boolean isPartitioned() {
+        return partitionKey != null;
+    }
+
+    /**
+     * @return true if the buffer is partitioned by connection, see
+     *         {@link #CONNECTION_KEY}
+     */
+    public boolean isPartitionedByConnection() {
+        return CONNECTION_KEY.equals(partitionKey);
+    }
+
+    /**
+     * The partition a failed <code>method</code>'s events are in: the value of
+     * the partition key in the current thread's MDC if set, otherwise the
+     * method's <code>host:port</code>. Events logged without the key aren't
+     * in that partition, so {@link #dump(String)} then dumps theirs.
+     * 
+     * @param method
+     * @return the route or <code>null</code> if it can't be determined
+     */
+    public String routeOf(HttpMethod method) {
+        return routeOf(Routes.of(method));
+    }
+
+    /**
+     * The partition a failed request's events are in: the value of the
+     * partition key in the current thread's MDC if set, otherwise
+     * <code>route</code>.
+     * 
+     * @param route
+     *            the request's <code>host:port</code>, may be
+     *            <code>null</code>
+     * @return the route or <code>null</code> if it can't be determined
+     */
+    public String routeOf(String route) {
+        String key = partitionKey;
+        if (key != null) {
+            Object value = MDC.get(key);
+            if (value != null) {
+                return value.toString();
+            }
+        }
+        return route;
+    }
+
+    /**
+     * @param loggerName
+     *            the wire logger the appender is attached to, eg.
+     *            <code>httpclient.wire</code>
+     * @param appenderName
+     * @return the {@link InMemoryAppender} called <code>appenderName</code>
+     *         on <code>loggerName</code>
+     * @throws IllegalStateException
+     *             if there isn't one
+     */
+    public static InMemoryAppender lookup(String loggerName, String appenderName) {
+        Appender a = Logger.getLogger(loggerName).getAppender(appenderName);
+        if (!(a instanceof InMemoryAppender)) {
+            throw new IllegalStateException("No " + appenderName + " appender found on " + loggerName);
+        }
+        return (InMemoryAppender) a;
+    }
+
+    /**
+     * Discards every buffered event, and every thread's request in flight,
+     * without dumping them. The appender stays open.
+     */
+    public void clear() {
+        // other threads forget theirs when they next touch them, counted in
+        // the old total
+        pendingEvents = new AtomicLong();
+        closeCount.incrementAndGet();
+        pendingRequest();
+        bodyLimiters.clear();
+        clocks.clear();
+        long released;
+        bufferLock.lock();
+        try {
+            buffer.clear();
+            partitions.clear();
+            partitionEvictions.clear();
+            partitionedSize = 0;
+            released = poolUsage;
+            poolUsage = 0;
+        } finally {
+            bufferLock.unlock();
+        }
+
+        BufferPool p = pool;
+        if (p != null && released != 0) {
+            p.adjust(-released);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.log4j.Appender#close()
+     */
+    @Override public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        TriggeredDumps d = triggeredDumps;
+        if (d != null) {
+            // triggers from here on dump on their own thread
+            triggeredDumps = null;
+            d.stop();
+        }
+        // before clear() takes the buffer lock, so no store after it finds
+        // the appender open
+        closed = true;
+
+        BufferPool p = pool;
+        if (p != null) {
+            // no more evictions asked of it
+            p.unregister(this);
+        }
+        clear();
+        pool = null;
+
+        EvictionArchiver a = archiver;
+        if (a != null) {
+            archiver = null;
+            a.stop();
+            archivedCount = a.getArchivedCount();
+            archiveLostCount = a.getLostCount();
+        }
+
+        for (TailSubscription tail : tails) {
+            unsubscribe(tail);
+        }
+
+        IncidentStore store = incidentStore;
+        if (store != null) {
+            incidentStore = null;
+            try {
+                store.close();
+            } catch (IOException e) {
+                errorHandler.error("Can't close incident store " + store.getDataFile(), e, ErrorCode.CLOSE_FAILURE);
+            }
+        }
+
+        ObjectName objectName = jmxName;
+        if (objectName != null) {
+            jmxName = null;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                errorHandler.error("Can't unregister " + objectName, e, ErrorCode.CLOSE_FAILURE);
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.apache.log4j.Appender#requiresLayout()
+     */
+    @Override public boolean requiresLayout() {
+        return false;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.apache.log4j.AppenderSkeleton#doAppend(org.apache.log4j.spi.LoggingEvent
+     * )
+     */
+    @Override public void doAppend(LoggingEvent event) {
+        if (!lossy) {
+            super.doAppend(event);
+            return;
+        }
+
+        // AppenderSkeleton.doAppend without its monitor, append is thread
+        // safe
+        if (closed || !isAsSevereAsThreshold(event.getLevel())) {
+            return;
+        }
+
+        Filter f = getFirstFilter();
+        while (f != null) {
+            int decision = f.decide(event);
+            if (decision == Filter.DENY) {
+                return;
+            } else if (decision == Filter.ACCEPT) {
+                break;
+            }
+            f = f.getNext();
+        }
+        append(event);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.apache.log4j.AppenderSkeleton#append(org.apache.log4j.spi.LoggingEvent
+     * )
+     */
+    @Override protected void append(LoggingEvent loggingEvent) {
+        if (closed) {
+            return;
+        }
+        String key = partitionKey;
+        // thread name, NDC and MDC are looked up lazily, fix them now as
+        // the event is dumped later from another thread
+        loggingEvent.getThreadName();
+        loggingEvent.getNDC();
+        loggingEvent.getMDCCopy();
+
+        if (requestTimings && WireMessages.isWire(loggingEvent)) {
+            // before the body limit, cut chunks still count
+            record(clocks.get(loggingEvent).add(loggingEvent));
+        }
+
+        long bodyLimit = maxBodyBytes;
+        if (bodyLimit >= 0 && WireMessages.isWire(loggingEvent)) {
+            loggingEvent = limitBody(loggingEvent, bodyLimit, key);
+            if (loggingEvent == null) {
+                return;
+            }
+        }
+
+        buffer(loggingEvent, key);
+    }
+
+    private void record(RequestTiming timing) {
+        if (timing == null) {
+            return;
+        }
+        String host = timing.getHost() == null ? UNKNOWN_HOST : timing.getHost();
+        HostTimings timings = hostTimings.get(host);
+        if (timings == null) {
+            HostTimings created = new HostTimings(host);
+            timings = hostTimings.putIfAbsent(host, created);
+            if (timings == null) {
+                timings = created;
+            }
+        }
+        timings.record(timing);
+    }
+
+    /**
+     * Holds <code>loggingEvent</code> as configured: as a flight recorder
+     * event, with its request in flight, or in the buffer.
+     */
+    private void buffer(LoggingEvent loggingEvent, String key) {
+        if (flightRecorder) {
+            publish(loggingEvent);
+            FlightRecorderBridge.emit(loggingEvent);
+        } else if (requestScoped) {
+            publish(loggingEvent);
+            PendingRequest request = pendingRequest();
+            if (WireMessages.isRequestLine(loggingEvent)) {
+                // a new request on this thread, so the last one is over
+                complete(request);
+            }
+            if (request.add(loggingEvent, maxPending)) {
+                pendingDropped.incrementAndGet();
+            }
+            if (loggingEvent.getLevel().isGreaterOrEqual(Level.ERROR)) {
+                request.fail();
+            }
+        } else {
+            store(loggingEvent, key);
+        }
+
+        if (evaluator.isTriggeringEvent(loggingEvent)) {
+            String route = key == null ? null : partitionOf(loggingEvent, key);
+            TriggeredDumps d = triggeredDumps;
+            if (d == null || !d.request(route)) {
+                dump(route);
+            }
+        }
+    }
+
+    /**
+     * Applies <code>maxBodyBytes</code> to a wire event, on its connection.
+     * The chunk that reaches the limit is buffered cut short, followed by the
+     * summary of the cut.
+     * 
+     * @return the event to buffer, cut short, or <code>null</code> to drop it
+     */
+    private LoggingEvent limitBody(LoggingEvent loggingEvent, long bodyLimit, String key) {
+        BodyLimiter limiter = bodyLimiters.get(loggingEvent);
+
+        if (limiter.isBody(loggingEvent)) {
+            LoggingEvent admitted = limiter.admit(loggingEvent, bodyLimit);
+            LoggingEvent summary = limiter.takeSummary();
+            if (summary == null) {
+                return admitted;
+            }
+            if (admitted != null) {
+                buffer(admitted, key);
+            }
+            return summary;
+        }
+
+        if (WireMessages.isRequestLine(loggingEvent)) {
+            limiter.reset();
+        }
+        return loggingEvent;
+    }
+
+    /**
+     * Adds <code>loggingEvent</code> to the retained buffer, or its partition.
+     */
+    private void store(LoggingEvent loggingEvent, String key) {
+        BufferPool p = pool;
+        // rendering runs user code, so not under the lock
+        long cost = p == null ? 0 : p.costOf(loggingEvent);
+        long delta = 0;
+        boolean wait = !lossy;
+        // not under the lock: racing appends may buffer a little out of
+        // sequence order, and a dropped event leaves a gap
+        long seq = ledger.nextSequence();
+
+        if (wait) {
+            bufferLock.lock();
+        } else if (!bufferLock.tryLock()) {
+            ledger.countDrop();
+            return;
+        }
+        try {
+            if (closed) {
+                return;
+            }
+            LoggingEvent evicted;
+            if (key == null) {
+                evicted = buffer.offer(loggingEvent, seq);
+            } else {
+                evicted = appendToPartition(partitionOf(loggingEvent, key), loggingEvent, seq);
+            }
+
+            if (evicted != null) {
+                countEviction(evicted);
+            }
+
+            if (!requestScoped) {
+                // promoted events were published as they were appended
+                publish(loggingEvent);
+            }
+
+            if (p != null) {
+                // the evicted event was rendered when it was stored
+                delta = cost - (evicted == null ? 0 : p.costOf(evicted));
+                poolUsage += delta;
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+
+        if (p != null && delta != 0) {
+            p.adjust(delta, wait);
+        }
+    }
+
+    /**
+     * Offers <code>loggingEvent</code> to every live tail, removing those
+     * that close. Never blocks.
+     */
+    private void publish(LoggingEvent loggingEvent) {
+        if (tails.isEmpty()) {
+            return;
+        }
+        long idleMillis = tailIdleMillis;
+        for (TailSubscription tail : tails) {
+            if (!tail.offer(loggingEvent, idleMillis)) {
+                tails.remove(tail);
+            }
+        }
+    }
+
+    /**
+     * Request scoped mode: the request in flight on the calling thread has
+     * failed, or been retried, so move its events into the retained buffer
+     * where <code>dump</code> will find them. Does nothing if not request
+     * scoped.
+     */
+    public void promote() {
+        if (!requestScoped) {
+            return;
+        }
+
+        PendingRequest request = pendingRequest();
+        String key = partitionKey;
+        LoggingEvent e;
+        while ((e = request.poll()) != null) {
+            store(e, key);
+        }
+        request.reset();
+    }
+
+    /**
+     * Request scoped mode: the request in flight on the calling thread has
+     * completed. Its events are discarded unless it logged an error, or
+     * <code>success</code> is false, in which case they are promoted. Does
+     * nothing if not request scoped, other than record the request's timing
+     * if <code>requestTimings</code> is on.
+     * 
+     * @param success
+     *            true if the request succeeded
+     */
+    public void requestCompleted(boolean success) {
+        if (requestTimings) {
+            RequestClock clock = clocks.lastUsed();
+            // unless the connection has since gone to another thread
+            if (clock.isStartedBy(Thread.currentThread().getName())) {
+                record(clock.finish());
+            }
+        }
+
+        if (!requestScoped) {
+            return;
+        }
+
+        PendingRequest request = pendingRequest();
+        if (!success) {
+            request.fail();
+        }
+        complete(request);
+    }
+
+    /**
+     * @return the calling thread's request in flight, brought up to date
+     *         with <code>requestCapacity</code> and <code>clear()</code>
+     */
+    private PendingRequest pendingRequest() {
+        PendingRequest request = pending.get();
+        // closeCount first: a clear() it sees has replaced pendingEvents
+        int cleared = closeCount.get();
+        request.update(requestCapacity, cleared, pendingEvents);
+        return request;
+    }
+
+    private void complete(PendingRequest request) {
+        if (request.isFailed()) {
+            promote();
+        } else {
+            request.reset();
+        }
+    }
+
+    /**
+     * Called by the {@link BufferPool} to evict this appender's oldest event
+     * when the pool is over budget.
+     * 
+     * @param wait
+     *            false to give up if another thread has the buffer
+     * @return false if there was nothing to evict, or the buffer was busy
+     */
+    boolean evictForPool(boolean wait) {
+        BufferPool p = pool;
+        long cost;
+
+        if (wait) {
+            bufferLock.lock();
+        } else if (!bufferLock.tryLock()) {
+            return false;
+        }
+        try {
+            LoggingEvent evicted = buffer.poll();
+            if (evicted == null) {
+                evicted = evictFromLargestPartition();
+            }
+            if (evicted == null || p == null) {
+                return false;
+            }
+            countEviction(evicted);
+            cost = p.costOf(evicted);
+            poolUsage -= cost;
+        } finally {
+            bufferLock.unlock();
+        }
+
+        p.adjust(-cost);
+        return true;
+    }
+
+    /**
+     * Flushes the buffer to the {@link Logger} named
+     * <code>delegateLoggerName</code>, or to a new binary file in the
+     * <code>dumpDirectory</code> if one is configured.
+     */
+    public void dump() {
+        if (flightRecorder) {
+            snapshotFlightRecording();
+            return;
+        }
+
+        promote();
+        flush(drain());
+    }
+
+    /**
+     * Records why a retry handler is about to dump the appender, as a flight
+     * recorder event. Does nothing unless in <code>flightRecorder</code>
+     * mode.
+     * 
+     * @param route
+     *            the route that failed, may be <code>null</code>
+     * @param cause
+     *            the exception the handler was called with
+     * @param executionCount
+     */
+    public void recordDumpTrigger(String route, Throwable cause, int executionCount) {
+        if (flightRecorder) {
+            FlightRecorderBridge.dumpTriggered(summaryName(), route, cause, executionCount);
+        }
+    }
+
+    /**
+     * Opens an incident on the calling thread: every dump it makes until
+     * <code>endIncident</code> belongs to it, and the first of them that isn't
+     * empty logs the incident id, to find the dumps by later. Records the
+     * trigger, as <code>recordDumpTrigger</code> does.
+     * 
+     * @param route
+     *            the route that failed, may be <code>null</code>
+     * @param cause
+     *            the exception the handler was called with
+     * @param executionCount
+     *            the number of times the method has been executed
+     */
+    public void beginIncident(String route, Throwable cause, int executionCount) {
+        incidents.set(newIncident(route, cause, executionCount));
+        recordDumpTrigger(route, cause, executionCount);
+    }
+
+    /**
+     * @return the id of the calling thread's open incident, or
+     *         <code>null</code> if none is open
+     */
+    public String getIncidentId() {
+        Incident incident = incidents.get();
+        return incident == null ? null : incident.getId();
+    }
+
+    /**
+     * Closes the calling thread's incident, dumps after this start their own
+     */
+    public void endIncident() {
+        incidents.remove();
+    }
+
+    private Incident newIncident(String route, Throwable cause, int executionCount) {
+        return new Incident(summaryName(), System.currentTimeMillis(), incidentCounter.incrementAndGet(), route,
+                            cause, executionCount);
+    }
+
+    /**
+     * Flushes only the partition for <code>route</code>, as
+     * <code>dump()</code> would, with the evictions from that partition since
+     * it was last dumped. If there is no partition for <code>route</code>
+     * the events logged without the partition key, if any, are flushed
+     * instead: eg. the route wasn't in the MDC when they were logged. If the
+     * buffer is not partitioned, or the route is <code>null</code>, the whole
+     * buffer is flushed.
+     * 
+     * @param route
+     *            the partition to flush
+     */
+    public void dump(String route) {
+        if (flightRecorder || partitionKey == null || route == null) {
+            dump();
+            return;
+        }
+
+        promote();
+        List<LoggingEvent> sink = new ArrayList<LoggingEvent>();
+        Dump drained;
+        bufferLock.lock();
+        try {
+            String key = route;
+            SequencedRing<LoggingEvent> partition = partitions.remove(key);
+            if (partition == null && !partitions.isEmpty()) {
+                // logged without the partition key, eg. no route in the MDC
+                key = DEFAULT_PARTITION;
+                partition = partitions.remove(key);
+            }
+            if (partition != null) {
+                partitionedSize -= partition.size();
+            }
+            Long evicted = partitionEvictions.remove(key);
+            drained = new Dump(sink, ledger.drain(partition, evicted == null ? 0 : evicted.longValue(), sink));
+            releasePoolUsage(sink);
+        } finally {
+            bufferLock.unlock();
+        }
+        flush(drained);
+    }
+
+    /**
+     * Partitioned by connection: flushes, as <code>dump(route)</code> would,
+     * every connection whose latest request went to <code>host</code> and
+     * has had no response yet. For clients that don't say which connection
+     * failed, the failed request's is among them. Otherwise flushes the whole
+     * buffer.
+     * 
+     * @param host
+     *            the <code>host:port</code> the failed request was sent to
+     */
+    public void dumpUnanswered(String host) {
+        if (flightRecorder || !isPartitionedByConnection() || host == null) {
+            dump();
+            return;
+        }
+
+        List<String> unanswered = new ArrayList<String>();
+        bufferLock.lock();
+        try {
+            for (Map.Entry<String, SequencedRing<LoggingEvent>> partition : partitions.entrySet()) {
+                if (awaitsResponse(partition.getValue(), host)) {
+                    unanswered.add(partition.getKey());
+                }
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+
+        for (String connection : unanswered) {
+            dump(connection);
+        }
+    }
+
+    /**
+     * Must hold bufferLock.
+     * 
+     * @return true if the newest request on <code>connection</code> was sent
+     *         to <code>host</code> and nothing has been received since
+     */
+    private static boolean awaitsResponse(SequencedRing<LoggingEvent> connection, String host) {
+        boolean toHost = false;
+        for (int i = connection.size() - 1; i >= 0; i--) {
+            Object message = connection.get(i).getMessage();
+            if (!(message instanceof String)) {
+                continue;
+            }
+            String line = WireMessages.withoutConnection((String) message);
+            if (WireMessages.isEndOfStream(line)) {
+                // the connection was closed on the request, no response
+                continue;
+            }
+            if (line.startsWith(WireMessages.INCOMING_PREFIX)) {
+                return false;
+            }
+            if (WireMessages.isRequestLine(line)) {
+                return toHost;
+            }
+            String requestHost = WireMessages.hostOf(line);
+            if (requestHost != null) {
+                toHost = WireMessages.sameHost(requestHost, host);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Flushes only the events of the calling thread's request in flight, as
+     * <code>dump()</code> would, and forgets them. Used when a request is slow
+     * rather than failed. If not request scoped the partition for
+     * <code>route</code> is dumped instead.
+     * 
+     * @param route
+     *            the request's route, see {@link #routeOf(HttpMethod)}
+     */
+    public void dumpRequest(String route) {
+        if (flightRecorder || !requestScoped) {
+            dump(route);
+            return;
+        }
+
+        PendingRequest request = pendingRequest();
+        List<LoggingEvent> sink = new ArrayList<LoggingEvent>(request.size());
+        LoggingEvent e;
+        while ((e = request.poll()) != null) {
+            sink.add(e);
+        }
+        request.reset();
+        flush(new Dump(sink));
+    }
+
+    /**
+     * Flushes the buffer to <code>file</code> in the binary dump format.
+     * 
+     * @param file
+     *            the file to write, it is overwritten if it exists
+     * @return the number of buffered events written
+     * @throws IOException
+     */
+    public int dump(File file) throws IOException {
+        promote();
+        Dump drained = drain();
+        write(drained, file);
+        return drained.getEvents().size();
+    }
+
+    private void flush(Dump drained) {
+        Incident incident = null;
+        String summary = null;
+        if (!drained.isEmpty()) {
+            incident = incidents.get();
+            if (incident == null) {
+                incident = newIncident(null, null, 0);
+            }
+            summary = drained.summary(summaryName(), incident);
+        }
+
+        long window = duplicateWindowMillis;
+        if (window > 0 && !drained.isEmpty()) {
+            long fingerprint = DumpFingerprints.of(drained.getEvents());
+            long repeats = fingerprints.record(fingerprint, System.currentTimeMillis(), window);
+            if (repeats > 0) {
+                String repeated = summaryName() + " dump repeats fingerprint " + Long.toHexString(fingerprint) + ", "
+                                  + repeats + " repeats since " + new Date(fingerprints.firstSeen(fingerprint)) + ", "
+                                  + drained.getEvents().size() + " events suppressed";
+                Logger.getLogger(delegateLoggerName).callAppenders(summaryEvent(repeated));
+                return;
+            }
+            summary = summary + ", fingerprint " + Long.toHexString(fingerprint);
+        }
+
+        if (incident != null && incident.isTriggered() && incident.markLogged()) {
+            Logger.getLogger(InMemoryAppender.class).info(summaryName() + " incident " + incident);
+        }
+
+        IncidentStore store = incidentStore;
+        if (store != null) {
+            if (incident != null) {
+                store(store, incident, drained, summary);
+            }
+            return;
+        }
+
+        File directory = dumpDirectory;
+        if (directory != null) {
+            File file = nextDumpFile(directory, BinaryDumpWriter.FILE_SUFFIX);
+            try {
+                write(drained, summary, file);
+            } catch (IOException e) {
+                errorHandler.error("Failed to write dump to " + file, e, ErrorCode.WRITE_FAILURE);
+            }
+            return;
+        }
+
+        Logger delegate = Logger.getLogger(delegateLoggerName);
+
+        if (dumpSummary && summary != null) {
+            // as the events are, whatever the delegate's level
+            delegate.callAppenders(summaryEvent(summary));
+        }
+
+        for (LoggingEvent e : annotate(drained.getEvents())) {
+            delegate.callAppenders(e);
+        }
+    }
+
+    /**
+     * @return <code>events</code> with each request followed by its timing,
+     *         if <code>requestTimings</code> is on, otherwise
+     *         <code>events</code>
+     */
+    private List<LoggingEvent> annotate(List<LoggingEvent> events) {
+        if (!requestTimings) {
+            return events;
+        }
+
+        Map<LoggingEvent, RequestTiming> ends = new IdentityHashMap<LoggingEvent, RequestTiming>();
+        RequestClock.time(events, ends);
+        if (ends.isEmpty()) {
+            return events;
+        }
+
+        Logger delegate = Logger.getLogger(delegateLoggerName);
+        List<LoggingEvent> annotated = new ArrayList<LoggingEvent>(events.size() + ends.size());
+        for (LoggingEvent e : events) {
+            annotated.add(e);
+            RequestTiming timing = ends.get(e);
+            if (timing != null) {
+                annotated.add(new LoggingEvent(InMemoryAppender.class.getName(), delegate, e.getTimeStamp(),
+                                               Level.INFO, summaryName() + " timing " + timing, null));
+            }
+        }
+        return annotated;
+    }
+
+    private void store(IncidentStore store, Incident incident, Dump drained, String summary) {
+        List<LoggingEvent> events = annotate(drained.getEvents());
+        List<LoggingEvent> stored = new ArrayList<LoggingEvent>(events.size() + 1);
+        if (dumpSummary) {
+            stored.add(summaryEvent(summary));
+        }
+        stored.addAll(events);
+
+        String host = hostOf(drained.getEvents(), incident.getRoute());
+        String exception = incident.getException() != null ? incident.getException()
+                : exceptionOf(drained.getEvents());
+        try {
+            store.append(incident.getId(), incident.getTime(), host, exception, stored);
+        } catch (IOException e) {
+            errorHandler.error("Failed to store incident " + incident.getId(), e, ErrorCode.WRITE_FAILURE);
+            return;
+        }
+
+        if (dumpSummary) {
+            String line = summary + ", stored in " + store.getDataFile();
+            Logger.getLogger(delegateLoggerName).callAppenders(summaryEvent(line));
+        }
+    }
+
+    /**
+     * @return the host of the last request in <code>events</code> that gave
+     *         one, otherwise <code>route</code>
+     */
+    private static String hostOf(List<LoggingEvent> events, String route) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            Object message = events.get(i).getMessage();
+            if (message instanceof String) {
+                String host = WireMessages.hostOf(WireMessages.withoutConnection((String) message));
+                if (host != null) {
+                    return host;
+                }
+            }
+        }
+        return route;
+    }
+
+    /**
+     * @return the class name of the last exception logged in
+     *         <code>events</code>, or <code>null</code>
+     */
+    private static String exceptionOf(List<LoggingEvent> events) {
+        for (int i = events.size() - 1; i >= 0; i--) {
+            ThrowableInformation thrown = events.get(i).getThrowableInformation();
+            if (thrown != null && thrown.getThrowable() != null) {
+                return thrown.getThrowable().getClass().getName();
+            }
+        }
+        return null;
+    }
+
+    private void write(Dump drained, File file) throws IOException {
+        write(drained, drained.isEmpty() ? null : drained.summary(summaryName()), file);
+    }
+
+    private void write(Dump drained, String summary, File file) throws IOException {
+        BinaryDumpWriter writer = new BinaryDumpWriter(new FileOutputStream(file));
+
+        try {
+            if (dumpSummary && summary != null) {
+                writer.write(summaryEvent(summary));
+            }
+            for (LoggingEvent e : annotate(drained.getEvents())) {
+                writer.write(e);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private LoggingEvent summaryEvent(String summary) {
+        return new LoggingEvent(InMemoryAppender.class.getName(), Logger.getLogger(delegateLoggerName), Level.INFO,
+                                summary, null);
+    }
+
+    private String summaryName() {
+        return getName() == null ? DEFAULT_NAME : getName();
+    }
+
+    /**
+     * Copies and clears the buffer, and every partition, oldest event first.
+     */
+    private Dump drain() {
+        List<LoggingEvent> sink;
+        Dump drained;
+        boolean merged;
+
+        bufferLock.lock();
+        try {
+            merged = !partitions.isEmpty();
+            sink = new ArrayList<LoggingEvent>(buffer.size() + partitionedSize);
+            if (merged) {
+                List<SequencedRing<LoggingEvent>> rings = new ArrayList<SequencedRing<LoggingEvent>>(partitions.size() + 1);
+                rings.add(buffer);
+                rings.addAll(partitions.values());
+                drained = new Dump(sink, ledger.drain(rings, sink));
+            } else {
+                // the usual case, without the list of rings
+                drained = new Dump(sink, ledger.drain(buffer, sink));
+            }
+            partitions.clear();
+            partitionedSize = 0;
+            partitionEvictions.clear();
+            releasePoolUsage(sink);
+        } finally {
+            bufferLock.unlock();
+        }
+
+        if (merged) {
+            Collections.sort(sink, BY_TIMESTAMP);
+        }
+        return drained;
+    }
+
+    /**
+     * Must hold bufferLock. Hands <code>evicted</code> to the archiver, if
+     * any.
+     */
+    private void countEviction(LoggingEvent evicted) {
+        ledger.countEviction();
+        EvictionArchiver a = archiver;
+        if (a != null) {
+            a.offer(evicted);
+        }
+    }
+
+    /**
+     * Must hold bufferLock. Gives the cost of the drained events back to the
+     * pool, if any.
+     */
+    private void releasePoolUsage(Collection<LoggingEvent> drained) {
+        BufferPool p = pool;
+        if (p == null || drained.isEmpty()) {
+            return;
+        }
+
+        long released = 0;
+        for (LoggingEvent e : drained) {
+            released += p.costOf(e);
+        }
+        poolUsage -= released;
+        p.adjust(-released);
+    }
+
+    private static String partitionOf(LoggingEvent loggingEvent, String key) {
+        if (CONNECTION_KEY.equals(key)) {
+            String connection = WireMessages.connectionOf(loggingEvent);
+            return connection == null ? DEFAULT_PARTITION : connection;
+        }
+        Object route = loggingEvent.getMDC(key);
+        return route == null ? DEFAULT_PARTITION : route.toString();
+    }
+
+    /**
+     * Must hold bufferLock. Keeps the partition within
+     * <code>partitionCapacity</code> and all partitions within
+     * <code>capacity</code>.
+     * 
+     * @return the evicted event, if any
+     */
+    private LoggingEvent appendToPartition(String route, LoggingEvent loggingEvent, long seq) {
+        SequencedRing<LoggingEvent> partition = partitions.get(route);
+
+        LoggingEvent evicted = null;
+        if ((partition == null || partition.size() < partition.getCapacity()) && partitionedSize >= capacity) {
+            evicted = evictFromLargestPartition();
+            // which may have been this one, and emptied it
+            partition = partitions.get(route);
+        }
+
+        if (partition == null) {
+            partition = new SequencedRing<LoggingEvent>(partitionCapacity < 0 ? capacity : partitionCapacity);
+            partitions.put(route, partition);
+        }
+
+        LoggingEvent dropped = partition.offer(loggingEvent, seq);
+        if (dropped == null) {
+            partitionedSize++;
+        } else {
+            evicted = dropped;
+            countPartitionEviction(route);
+        }
+        return evicted;
+    }
+
+    /**
+     * Must hold bufferLock. Evicts the oldest event of the largest partition,
+     * discarding the partition if that empties it.
+     * 
+     * @return the evicted event, if any
+     */
+    private LoggingEvent evictFromLargestPartition() {
+        Map.Entry<String, SequencedRing<LoggingEvent>> largest = null;
+
+        for (Map.Entry<String, SequencedRing<LoggingEvent>> partition : partitions.entrySet()) {
+            if (largest == null || partition.getValue().size() > largest.getValue().size()) {
+                largest = partition;
+            }
+        }
+
+        if (largest == null) {
+            return null;
+        }
+
+        LoggingEvent evicted = largest.getValue().poll();
+        if (evicted != null) {
+            partitionedSize--;
+            countPartitionEviction(largest.getKey());
+        }
+        if (largest.getValue().isEmpty()) {
+            // its evictions are still counted for the next full dump
+            partitionEvictions.remove(largest.getKey());
+            partitions.remove(largest.getKey());
+        }
+        return evicted;
+    }
+
+    /**
+     * Must hold bufferLock. The caller counts the eviction itself, with
+     * {@link #countEviction(LoggingEvent)}.
+     */
+    private void countPartitionEviction(String route) {
+        Long evicted = partitionEvictions.get(route);
+        partitionEvictions.put(route, Long.valueOf(evicted == null ? 1 : evicted.longValue() + 1));
+    }
+
+    private void snapshotFlightRecording() {
+        File directory = flightRecorderDirectory;
+        if (directory == null) {
+            return;
+        }
+
+        File file = nextDumpFile(directory, ".jfr");
+        try {
+            FlightRecorderBridge.snapshot(file);
+        } catch (IOException e) {
+            errorHandler.error("Failed to write flight recording to " + file, e, ErrorCode.WRITE_FAILURE);
+        }
+    }
+
+    private File nextDumpFile(File directory, String suffix) {
+        int counter;
+        bufferLock.lock();
+        try {
+            counter = dumpFileCounter++;
+        } finally {
+            bufferLock.unlock();
         }
+        String prefix = getName() == null ? DEFAULT_NAME : getName();
+        return new File(directory, prefix + "-" + System.currentTimeMillis() + "-" + counter + suffix);
     }
 
 }
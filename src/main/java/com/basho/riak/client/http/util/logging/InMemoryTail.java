@@ -0,0 +1,139 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Layout;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * The {@link InMemoryTailMBean} an {@link InMemoryAppender} registers when
+ * <code>jmx</code> is set. Events are rendered with the same pattern as
+ * {@link DumpDecoder}'s.
+ *
+ * @author russell
+ *
+ */
+public final class InMemoryTail implements InMemoryTailMBean {
+
+    static final String DOMAIN = "com.basho.riak.client.http.util.logging";
+
+    private final InMemoryAppender appender;
+    private final ConcurrentMap<Long, TailSubscription> subscriptions = new ConcurrentHashMap<Long, TailSubscription>();
+    private final Layout layout = new PatternLayout(DumpDecoder.DEFAULT_PATTERN);
+    private volatile int capacity = 1000;
+
+    InMemoryTail(InMemoryAppender appender) {
+        this.appender = appender;
+    }
+
+    /**
+     * @return the name the tail of the appender called
+     *         <code>appenderName</code> is registered as
+     */
+    public static ObjectName nameOf(String appenderName) throws MalformedObjectNameException {
+        return new ObjectName(DOMAIN + ":type=InMemoryAppender,name=" + ObjectName.quote(appenderName));
+    }
+
+    public long subscribe(String pattern, boolean history) {
+        Filter filter = null;
+        if (pattern != null && pattern.length() > 0) {
+            filter = new PatternFilter(Pattern.compile(pattern));
+        }
+        TailSubscription tail = appender.subscribe(filter, capacity, history);
+        subscriptions.put(tail.getId(), tail);
+        return tail.getId();
+    }
+
+    public String[] poll(long id, int max) {
+        TailSubscription tail = subscription(id);
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>(Math.min(Math.max(max, 0), capacity));
+        tail.drainTo(events, max);
+        if (events.isEmpty() && tail.isClosed()) {
+            subscriptions.remove(id);
+            throw new IllegalArgumentException("Tail " + id + " is closed");
+        }
+
+        String[] rendered = new String[events.size()];
+        // PatternLayout renders into a shared buffer
+        synchronized (layout) {
+            for (int i = 0; i < rendered.length; i++) {
+                rendered[i] = layout.format(events.get(i));
+            }
+        }
+        return rendered;
+    }
+
+    public long getLostCount(long id) {
+        return subscription(id).getLostCount();
+    }
+
+    public void unsubscribe(long id) {
+        TailSubscription tail = subscriptions.remove(id);
+        if (tail != null) {
+            appender.unsubscribe(tail);
+        }
+    }
+
+    public String[] getSubscriptions() {
+        List<TailSubscription> tails = appender.getTailSubscriptions();
+        String[] lines = new String[tails.size()];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = tails.get(i).toString();
+        }
+        return lines;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    private TailSubscription subscription(long id) {
+        TailSubscription tail = subscriptions.get(id);
+        if (tail == null) {
+            throw new IllegalArgumentException("No tail " + id);
+        }
+        return tail;
+    }
+
+    /**
+     * Denies events whose message doesn't contain a match for the pattern
+     */
+    private static final class PatternFilter extends Filter {
+        private final Pattern pattern;
+
+        PatternFilter(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override public int decide(LoggingEvent event) {
+            String message = event.getRenderedMessage();
+            return message != null && pattern.matcher(message).find() ? Filter.NEUTRAL : Filter.DENY;
+        }
+    }
+}
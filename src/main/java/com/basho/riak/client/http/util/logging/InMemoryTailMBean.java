@@ -0,0 +1,68 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+/**
+ * Tail an {@link InMemoryAppender} from a JMX console. Registered by the
+ * appender when <code>jmx</code> is set, see {@link InMemoryTail}.
+ * <p>
+ * Subscribe, then poll with the returned id for the events appended since,
+ * rendered as text. A subscription not polled for the appender's
+ * <code>tailIdleMillis</code> is closed.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public interface InMemoryTailMBean {
+
+    /**
+     * @param pattern
+     *            a regular expression the event's message must contain a
+     *            match for, empty for every event
+     * @param history
+     *            true to start with the events already buffered
+     * @return the id to poll with
+     */
+    long subscribe(String pattern, boolean history);
+
+    /**
+     * @return up to <code>max</code> events queued for subscription
+     *         <code>id</code>, rendered, oldest first, without waiting
+     * @throws IllegalArgumentException
+     *             if there is no such subscription, or it has closed and been
+     *             drained
+     */
+    String[] poll(long id, int max);
+
+    /**
+     * @return the events subscription <code>id</code> has lost to a full
+     *         queue
+     */
+    long getLostCount(long id);
+
+    void unsubscribe(long id);
+
+    /**
+     * @return a line per subscription to the appender, API or JMX
+     */
+    String[] getSubscriptions();
+
+    /**
+     * @return the number of events queued for each new subscription
+     */
+    int getCapacity();
+
+    void setCapacity(int capacity);
+}
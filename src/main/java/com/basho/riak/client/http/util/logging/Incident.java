@@ -0,0 +1,110 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+/**
+ * What triggered a dump: the id every dump for it is stored under, when, the
+ * route that failed and the exception. Held by the thread dumping, the id is
+ * only built if a dump needs it.
+ *
+ * @author russell
+ *
+ */
+final class Incident {
+
+    private final String appenderName;
+    private final long time;
+    private final long counter;
+    private final String route;
+    private final String exception;
+    private final int executionCount;
+    private String id;
+    private boolean logged = false;
+
+    /**
+     * @param cause
+     *            the triggering exception, <code>null</code> if the dump
+     *            wasn't triggered by a retry handler
+     */
+    Incident(String appenderName, long time, long counter, String route, Throwable cause, int executionCount) {
+        this.appenderName = appenderName;
+        this.time = time;
+        this.counter = counter;
+        this.route = route;
+        this.exception = cause == null ? null : cause.getClass().getName();
+        this.executionCount = executionCount;
+    }
+
+    /**
+     * @return <code>appenderName-time-counter</code>
+     */
+    String getId() {
+        if (id == null) {
+            id = appendId(new StringBuilder(appenderName.length() + 40)).toString();
+        }
+        return id;
+    }
+
+    StringBuilder appendId(StringBuilder sb) {
+        if (id != null) {
+            return sb.append(id);
+        }
+        return sb.append(appenderName).append('-').append(time).append('-').append(counter);
+    }
+
+    long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the route or partition dumped, may be <code>null</code>
+     */
+    String getRoute() {
+        return route;
+    }
+
+    /**
+     * @return the class name of the triggering exception, may be
+     *         <code>null</code>
+     */
+    String getException() {
+        return exception;
+    }
+
+    /**
+     * @return true if a retry handler opened the incident
+     */
+    boolean isTriggered() {
+        return exception != null;
+    }
+
+    /**
+     * @return true the first time only
+     */
+    boolean markLogged() {
+        boolean first = !logged;
+        logged = true;
+        return first;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return appendId(new StringBuilder(128)).append(": ").append(exception).append(" from ").append(route)
+                                               .append(", execution ").append(executionCount).toString();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.Date;
+
+/**
+ * The index entry of one dump in an {@link IncidentStore}: the incident it
+ * belongs to, what failed and where its events are in the data file.
+ *
+ * @author russell
+ *
+ */
+public final class IncidentRecord {
+
+    private final String id;
+    private final long time;
+    private final String host;
+    private final String exception;
+    private final int events;
+    private final long offset;
+    private final int length;
+    private final IncidentStore.Generation generation;
+
+    IncidentRecord(String id, long time, String host, String exception, int events, long offset, int length,
+            IncidentStore.Generation generation) {
+        this.id = id;
+        this.time = time;
+        this.host = host;
+        this.exception = exception;
+        this.events = events;
+        this.offset = offset;
+        this.length = length;
+        this.generation = generation;
+    }
+
+    /**
+     * @return the incident id, as logged when the dump was triggered
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return when the incident was opened, epoch ms
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the <code>host:port</code> of the failed request, or the route
+     *         dumped, <code>unknown</code> if neither is known
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the class name of the exception that triggered the dump, empty
+     *         if none
+     */
+    public String getException() {
+        return exception;
+    }
+
+    /**
+     * @return the number of events stored, the summary line included
+     */
+    public int getEvents() {
+        return events;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the files the dump is stored in
+     */
+    IncidentStore.Generation getGeneration() {
+        return generation;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return id + " " + new Date(time) + " " + host + " " + (exception.length() == 0 ? "-" : exception) + " "
+               + events + " events";
+    }
+}
@@ -0,0 +1,649 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * An append-only local store of dumps, indexed by incident id, time, host
+ * and exception type, so the trace of a failed request can be fetched by the
+ * incident id its retry handler logged rather than found by grepping logs.
+ * <p>
+ * Two files per appender in the store's directory:
+ * <code>name.incidents.imd</code> holds each dump as a complete binary dump
+ * stream (see {@link BinaryDumpWriter}), one after the other, and
+ * <code>name.incidents.idx</code> a compact index entry per dump, written
+ * after its data. The index is read into memory when the store is opened, so
+ * a lookup reads only the dump wanted, with one seek. A dump whose index
+ * entry was never completed, eg. the JVM died while writing it, is truncated
+ * away on the next open; if writing fails while the store is open, both files
+ * are truncated back at once.
+ * </p>
+ * <p>
+ * An incident may have several dumps, eg. one per connection awaiting a
+ * response from a failed host.
+ * </p>
+ * <p>
+ * If opened with a <code>maxBytes</code> the store keeps two generations of
+ * files. Once a dump would take the current files over half
+ * <code>maxBytes</code> they are renamed to
+ * <code>name.old.incidents.imd</code> and <code>.idx</code>, replacing
+ * (deleting) the generation before, and new files are started. So the store
+ * never holds more than <code>maxBytes</code> on disk, nor indexes in memory
+ * more than two generations' dumps. A dump over half
+ * <code>maxBytes</code> on its own is refused. Without a limit nothing is
+ * ever deleted, remove the files to empty the store.
+ * </p>
+ * <p>
+ * Run from the command line to list or print incidents:
+ * 
+ * <pre>
+ * java -cp ... com.basho.riak.client.http.util.logging.IncidentStore [-n name] [-p pattern] [-host host] [-exception class] [-from time] [-to time] directory [id...]
+ * </pre>
+ * 
+ * Without ids the matching incidents are listed, with ids their traces are
+ * printed. Times are as for {@link DumpDecoder}.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class IncidentStore implements Closeable {
+
+    static final String DATA_SUFFIX = ".incidents" + BinaryDumpWriter.FILE_SUFFIX;
+    static final String INDEX_SUFFIX = ".incidents.idx";
+    static final String OLD = ".old";
+
+    private static final int INDEX_MAGIC = 0x494D4958; // "IMIX"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_BYTES = 5;
+
+    private final File dataFile;
+    private final File indexFile;
+    private final File oldDataFile;
+    private final File oldIndexFile;
+    private final long maxBytes;
+    // oldest first, the old generation's before the current one's
+    private final List<IncidentRecord> records = new ArrayList<IncidentRecord>();
+    private final Map<String, List<IncidentRecord>> byId = new HashMap<String, List<IncidentRecord>>();
+    private final Map<String, List<IncidentRecord>> byHost = new HashMap<String, List<IncidentRecord>>();
+    private final Map<String, List<IncidentRecord>> byException = new HashMap<String, List<IncidentRecord>>();
+    private Generation current;
+    private Generation old;
+    private OutputStream data;
+    private DataOutputStream index;
+    private long dataLength = 0;
+    private long indexLength = 0;
+
+    private IncidentStore(File directory, String name, long maxBytes) {
+        this.dataFile = new File(directory, name + DATA_SUFFIX);
+        this.indexFile = new File(directory, name + INDEX_SUFFIX);
+        this.oldDataFile = new File(directory, name + OLD + DATA_SUFFIX);
+        this.oldIndexFile = new File(directory, name + OLD + INDEX_SUFFIX);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Open, creating if need be, the store of the appender called
+     * <code>name</code> in <code>directory</code>, never deleting a dump
+     * 
+     * @throws IOException
+     *             if the files can't be read or created, or the index is not
+     *             an incident index
+     */
+    public static IncidentStore open(File directory, String name) throws IOException {
+        return open(directory, name, 0);
+    }
+
+    /**
+     * Open, creating if need be, the store of the appender called
+     * <code>name</code> in <code>directory</code>, keeping it within
+     * <code>maxBytes</code> on disk by dropping its oldest dumps
+     * 
+     * @param maxBytes
+     *            0 or less to never drop a dump
+     * @throws IOException
+     *             if the files can't be read or created, or the index is not
+     *             an incident index
+     */
+    public static IncidentStore open(File directory, String name, long maxBytes) throws IOException {
+        IncidentStore store = new IncidentStore(directory, name, maxBytes);
+        store.load(true);
+        return store;
+    }
+
+    /**
+     * Open the store of the appender called <code>name</code> in
+     * <code>directory</code> to read, leaving the files exactly as they are,
+     * so it is safe while the appender is writing. Dumps stored after it is
+     * opened are not seen.
+     * 
+     * @throws IOException
+     *             if the index can't be read, or is not an incident index
+     */
+    public static IncidentStore openReadOnly(File directory, String name) throws IOException {
+        IncidentStore store = new IncidentStore(directory, name, 0);
+        store.load(false);
+        return store;
+    }
+
+    private void load(boolean writable) throws IOException {
+        old = new Generation(oldDataFile);
+        readIndex(oldIndexFile, old);
+        current = new Generation(dataFile);
+        long[] ends = readIndex(indexFile, current);
+
+        if (!writable) {
+            return;
+        }
+
+        truncate(indexFile, ends[0]);
+        truncate(dataFile, ends[1]);
+        dataLength = ends[1];
+
+        openForAppend();
+        if (indexFile.length() == 0) {
+            writeHeader();
+        }
+        this.indexLength = indexFile.length();
+    }
+
+    /**
+     * Indexes the dumps of <code>generation</code>, up to the last complete
+     * one
+     * 
+     * @return the lengths of the index and data files up to the end of that
+     *         dump
+     */
+    private long[] readIndex(File indexFile, Generation generation) throws IOException {
+        long indexLength = INDEX_HEADER_BYTES;
+        long dataEnd = 0;
+        if (indexFile.length() == 0) {
+            return new long[] { indexLength, dataEnd };
+        }
+
+        byte[] bytes = readFully(indexFile, 0, (int) indexFile.length());
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (bytes.length < INDEX_HEADER_BYTES || in.readInt() != INDEX_MAGIC) {
+            throw new IOException(indexFile + " is not an incident index");
+        }
+        int version = in.readUnsignedByte();
+        if (version != INDEX_VERSION) {
+            throw new IOException("Unsupported incident index version " + version);
+        }
+
+        long available = generation.dataFile.length();
+        try {
+            while (in.available() > 0) {
+                IncidentRecord record = new IncidentRecord(in.readUTF(), in.readLong(), in.readUTF(), in.readUTF(),
+                                                           in.readInt(), in.readLong(), in.readInt(), generation);
+                if (record.getOffset() + record.getLength() > available) {
+                    break;
+                }
+                add(record);
+                indexLength = bytes.length - in.available();
+                dataEnd = record.getOffset() + record.getLength();
+            }
+        } catch (EOFException e) {
+            // a partly written entry, truncated by load
+        }
+        return new long[] { indexLength, dataEnd };
+    }
+
+    private void writeHeader() throws IOException {
+        index.writeInt(INDEX_MAGIC);
+        index.writeByte(INDEX_VERSION);
+        index.flush();
+    }
+
+    private void openForAppend() throws IOException {
+        OutputStream dataOut = new FileOutputStream(dataFile, true);
+        try {
+            index = new DataOutputStream(new FileOutputStream(indexFile, true));
+        } catch (IOException e) {
+            dataOut.close();
+            throw e;
+        }
+        data = dataOut;
+    }
+
+    /**
+     * Store <code>events</code> as one dump of incident <code>id</code>
+     * 
+     * @param host
+     *            the failed host, or route, <code>null</code> if not known
+     * @param exception
+     *            the triggering exception's class name, <code>null</code> if
+     *            none
+     * @return the index entry
+     * @throws IOException
+     *             if the dump couldn't be written, in which case anything
+     *             written is truncated away, or is over half
+     *             <code>maxBytes</code>
+     */
+    public synchronized IncidentRecord append(String id, long time, String host, String exception,
+            List<LoggingEvent> events) throws IOException {
+        ensureOpen();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * events.size() + 64);
+        BinaryDumpWriter writer = new BinaryDumpWriter(bytes);
+        for (LoggingEvent e : events) {
+            writer.write(e);
+        }
+        writer.close();
+
+        String recordHost = host == null ? InMemoryAppender.UNKNOWN_HOST : host;
+        String recordException = exception == null ? "" : exception;
+        ByteArrayOutputStream entry = new ByteArrayOutputStream(64);
+        DataOutputStream entryOut = new DataOutputStream(entry);
+        entryOut.writeUTF(id);
+        entryOut.writeLong(time);
+        entryOut.writeUTF(recordHost);
+        entryOut.writeUTF(recordException);
+        entryOut.writeInt(events.size());
+        // the offset, known once any rotation is done
+        entryOut.writeLong(0);
+        entryOut.writeInt(bytes.size());
+
+        long generationBytes = maxBytes / 2;
+        if (maxBytes > 0) {
+            if (INDEX_HEADER_BYTES + entry.size() + bytes.size() > generationBytes) {
+                throw new IOException("Dump of " + bytes.size() + " bytes is over half the incident store's "
+                                      + maxBytes + " bytes");
+            }
+            if (dataLength + indexLength + entry.size() + bytes.size() > generationBytes) {
+                rotate();
+            }
+        }
+
+        IncidentRecord record = new IncidentRecord(id, time, recordHost, recordException, events.size(), dataLength,
+                                                   bytes.size(), current);
+        byte[] indexed = entry.toByteArray();
+        writeLong(indexed, indexed.length - 12, dataLength);
+        try {
+            // data first, so an index entry always has its dump
+            bytes.writeTo(data);
+            data.flush();
+
+            index.write(indexed);
+            index.flush();
+        } catch (IOException e) {
+            rollBack();
+            throw e;
+        }
+        dataLength += bytes.size();
+        indexLength += indexed.length;
+
+        add(record);
+        return record;
+    }
+
+    /**
+     * Replaces the old generation with the current one, and starts a new
+     * current generation
+     */
+    private void rotate() throws IOException {
+        close();
+        if ((oldDataFile.exists() && !oldDataFile.delete()) || (oldIndexFile.exists() && !oldIndexFile.delete())) {
+            throw new IOException("Can't delete " + oldDataFile + " or " + oldIndexFile);
+        }
+
+        // the old generation's records are the oldest
+        int dropped = 0;
+        while (dropped < records.size() && records.get(dropped).getGeneration() == old) {
+            dropped++;
+        }
+        records.subList(0, dropped).clear();
+        byId.clear();
+        byHost.clear();
+        byException.clear();
+        for (IncidentRecord record : records) {
+            indexBy(byId, record.getId(), record);
+            indexBy(byHost, record.getHost(), record);
+            indexBy(byException, record.getException(), record);
+        }
+
+        if (!dataFile.renameTo(oldDataFile) || !indexFile.renameTo(oldIndexFile)) {
+            // keep appending to the current files, over budget
+            if (oldDataFile.exists()) {
+                oldDataFile.renameTo(dataFile);
+            }
+            openForAppend();
+            throw new IOException("Can't rename " + dataFile + " to " + oldDataFile);
+        }
+        current.dataFile = oldDataFile;
+        old = current;
+        current = new Generation(dataFile);
+
+        openForAppend();
+        writeHeader();
+        dataLength = 0;
+        indexLength = INDEX_HEADER_BYTES;
+    }
+
+    private static void writeLong(byte[] bytes, int at, long value) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[at + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Truncates both files back to the last complete dump, so a failed
+     * append leaves no stray bytes for the next to be written after. If even
+     * that fails the store is closed.
+     */
+    private void rollBack() {
+        closeQuietly();
+        try {
+            truncate(dataFile, dataLength);
+            truncate(indexFile, indexLength);
+            openForAppend();
+        } catch (IOException e) {
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            // already failed
+        }
+    }
+
+    /**
+     * @return the dumps of incident <code>id</code>, empty if none
+     */
+    public synchronized List<IncidentRecord> get(String id) {
+        return copyOf(byId.get(id));
+    }
+
+    /**
+     * @param host
+     *            only dumps of this host, <code>null</code> for any
+     * @param exception
+     *            only dumps triggered by this exception class,
+     *            <code>null</code> for any
+     * @param from
+     *            only dumps of incidents opened at or after this time (epoch
+     *            ms)
+     * @param to
+     *            and at or before this time
+     * @return the matching dumps, in the order stored
+     */
+    public synchronized List<IncidentRecord> find(String host, String exception, long from, long to) {
+        List<IncidentRecord> candidates = records;
+        if (host != null) {
+            candidates = narrowest(candidates, byHost.get(host));
+        }
+        if (exception != null) {
+            candidates = narrowest(candidates, byException.get(exception));
+        }
+
+        List<IncidentRecord> found = new ArrayList<IncidentRecord>();
+        for (IncidentRecord r : candidates) {
+            if ((host == null || host.equals(r.getHost()))
+                && (exception == null || exception.equals(r.getException())) && r.getTime() >= from
+                && r.getTime() <= to) {
+                found.add(r);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return every dump's index entry, in the order stored
+     */
+    public synchronized List<IncidentRecord> getRecords() {
+        return copyOf(records);
+    }
+
+    /**
+     * @return the events of every dump of incident <code>id</code>, in the
+     *         order stored, empty if there is no such incident
+     * @throws IOException
+     */
+    public List<LoggingEvent> read(String id) throws IOException {
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+        for (IncidentRecord record : get(id)) {
+            events.addAll(read(record));
+        }
+        return events;
+    }
+
+    /**
+     * @return the events of one dump
+     * @throws IOException
+     */
+    public List<LoggingEvent> read(IncidentRecord record) throws IOException {
+        BinaryDumpReader reader = reader(record);
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>(record.getEvents());
+        try {
+            LoggingEvent e;
+            while ((e = reader.next()) != null) {
+                events.add(e);
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    private BinaryDumpReader reader(IncidentRecord record) throws IOException {
+        return new BinaryDumpReader(new ByteArrayInputStream(readFully(record.getGeneration().dataFile,
+                                                                        record.getOffset(), record.getLength())));
+    }
+
+    /**
+     * @return the current generation's data file
+     */
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * @return the most bytes kept on disk, 0 or less if no dump is ever
+     *         dropped
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the bytes on disk, both generations' files included
+     */
+    public long getSize() {
+        return dataFile.length() + indexFile.length() + oldDataFile.length() + oldIndexFile.length();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Closeable#close()
+     */
+    public synchronized void close() throws IOException {
+        if (data == null) {
+            return;
+        }
+        try {
+            data.close();
+        } finally {
+            index.close();
+            data = null;
+            index = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (data == null) {
+            throw new IOException("Incident store " + dataFile + " is not open for writing");
+        }
+    }
+
+    private void add(IncidentRecord record) {
+        records.add(record);
+        indexBy(byId, record.getId(), record);
+        indexBy(byHost, record.getHost(), record);
+        indexBy(byException, record.getException(), record);
+    }
+
+    private static void indexBy(Map<String, List<IncidentRecord>> index, String key, IncidentRecord record) {
+        List<IncidentRecord> entries = index.get(key);
+        if (entries == null) {
+            entries = new ArrayList<IncidentRecord>(1);
+            index.put(key, entries);
+        }
+        entries.add(record);
+    }
+
+    private static List<IncidentRecord> narrowest(List<IncidentRecord> candidates, List<IncidentRecord> indexed) {
+        if (indexed == null) {
+            return Collections.emptyList();
+        }
+        return indexed.size() < candidates.size() ? indexed : candidates;
+    }
+
+    /**
+     * The files of a store's old, or current, dumps
+     */
+    static final class Generation {
+        // the current generation's is renamed as it becomes the old one
+        volatile File dataFile;
+
+        Generation(File dataFile) {
+            this.dataFile = dataFile;
+        }
+    }
+
+    private static List<IncidentRecord> copyOf(List<IncidentRecord> entries) {
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<IncidentRecord>(entries));
+    }
+
+    private static byte[] readFully(File file, long offset, int length) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[length];
+            in.seek(offset);
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if (!file.exists() || file.length() <= length) {
+            return;
+        }
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(length);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        DumpDecoder decoder = new DumpDecoder();
+        String name = InMemoryAppender.DEFAULT_NAME;
+        String host = null;
+        String exception = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        String directory = null;
+        List<String> ids = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-n".equals(arg) && i + 1 < args.length) {
+                name = args[++i];
+            } else if ("-p".equals(arg) && i + 1 < args.length) {
+                decoder.setLayout(new PatternLayout(args[++i]));
+            } else if ("-host".equals(arg) && i + 1 < args.length) {
+                host = args[++i];
+            } else if ("-exception".equals(arg) && i + 1 < args.length) {
+                exception = args[++i];
+            } else if ("-from".equals(arg) && i + 1 < args.length) {
+                from = DumpDecoder.parseTime(args[++i]);
+            } else if ("-to".equals(arg) && i + 1 < args.length) {
+                to = DumpDecoder.parseTime(args[++i]);
+            } else if (arg.startsWith("-")) {
+                usage();
+                return;
+            } else if (directory == null) {
+                directory = arg;
+            } else {
+                ids.add(arg);
+            }
+        }
+
+        if (directory == null) {
+            usage();
+            return;
+        }
+
+        IncidentStore store = openReadOnly(new File(directory), name);
+        try {
+            PrintStream out = System.out;
+            if (ids.isEmpty()) {
+                for (IncidentRecord record : store.find(host, exception, from, to)) {
+                    out.println(record);
+                }
+            }
+            for (String id : ids) {
+                List<IncidentRecord> dumps = store.get(id);
+                if (dumps.isEmpty()) {
+                    System.err.println("No incident " + id);
+                }
+                for (IncidentRecord record : dumps) {
+                    BinaryDumpReader reader = store.reader(record);
+                    try {
+                        decoder.decode(reader, out);
+                    } finally {
+                        reader.close();
+                    }
+                }
+            }
+            out.flush();
+        } finally {
+            store.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: IncidentStore [-n name] [-p pattern] [-host host] [-exception class] [-from time] [-to time] directory [id...]");
+    }
+}
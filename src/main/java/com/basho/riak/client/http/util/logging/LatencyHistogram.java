@@ -0,0 +1,153 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A lock free, fixed size histogram of non-negative values (usually
+ * latencies in microseconds).
+ * <p>
+ * Values are counted in log-linear buckets, eight per power of two, so
+ * percentiles are accurate to within 12.5%. Each bucket, and the max, is a
+ * {@link LongAdder} (or {@link LongAccumulator}), which spreads concurrent
+ * recording over per-thread cells rather than contending on one shared
+ * counter. Recording allocates only while the cells are first created;
+ * reading sums them, so it is only weakly consistent with concurrent
+ * recording.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param value
+     *            a value &gt;= 0, negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[indexOf(value)].increment();
+        max.accumulate(value);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts[i].sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return the largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile
+     *            between 0 and 1, eg. 0.99
+     * @return the upper bound of the bucket holding the percentile, or 0 if
+     *         nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget everything recorded
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i].reset();
+        }
+        max.reset();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return "count=" + getCount() + " p50=" + getPercentile(0.5) + " p99=" + getPercentile(0.99) + " p999="
+               + getPercentile(0.999) + " max=" + getMax();
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+    }
+
+    static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long mantissa = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
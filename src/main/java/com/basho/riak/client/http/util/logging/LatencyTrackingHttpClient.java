@@ -0,0 +1,176 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnectionManager;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpState;
+import org.apache.commons.httpclient.params.HttpClientParams;
+
+/**
+ * An {@link HttpClient} that times every {@link HttpMethod} execution and
+ * dumps the {@link InMemoryAppender} when one is slow.
+ * <p>
+ * A request is slow if it takes longer than <code>slowThresholdMillis</code>,
+ * or longer than the <code>slowPercentile</code> of the latencies seen so far
+ * (once <code>minSamples</code> have been seen). Only that request's events
+ * are dumped if the appender is request scoped, otherwise its route's
+ * partition (or the whole buffer). Every request is then completed on the
+ * appender, so a request scoped appender discards those that succeeded and
+ * keeps those that threw, and request timings see slow requests too.
+ * </p>
+ * <p>
+ * Timing uses {@link System#nanoTime()} held on the executing thread's stack;
+ * the only shared state is the lock free {@link LatencyHistogram} and a
+ * request counter. The percentile is recalculated when the counter reaches
+ * <code>minSamples</code> and every 256 requests after; each count is
+ * handed to exactly one thread, so no recalculation is skipped.
+ * </p>
+ * <p>
+ * Note: the time is that of <code>executeMethod</code>, a streamed response
+ * body read afterwards is not included.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public class LatencyTrackingHttpClient extends HttpClient {
+
+    private static final int RECALCULATE_EVERY = 256;
+
+    private final InMemoryAppender inMemoryAppender;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong slowRequests = new AtomicLong();
+    private volatile long slowThresholdMicros = Long.MAX_VALUE;
+    private volatile double slowPercentile = 0;
+    private volatile long minSamples = 1000;
+    private volatile long percentileMicros = Long.MAX_VALUE;
+
+    /**
+     * Create a client which dumps the appender named
+     * {@link InMemoryAppender#DEFAULT_NAME}
+     */
+    public LatencyTrackingHttpClient() {
+        this(InMemoryAppender.DEFAULT_NAME);
+    }
+
+    /**
+     * @param inMemAppenderName
+     *            the name of the "httpclient.wire" appender to dump
+     */
+    public LatencyTrackingHttpClient(String inMemAppenderName) {
+        super();
+        this.inMemoryAppender = LogNoHttpResponseRetryHandler.findAppender(inMemAppenderName);
+    }
+
+    /**
+     * @param params
+     * @param connectionManager
+     * @param inMemAppenderName
+     *            the name of the "httpclient.wire" appender to dump
+     */
+    public LatencyTrackingHttpClient(HttpClientParams params, HttpConnectionManager connectionManager,
+            String inMemAppenderName) {
+        super(params, connectionManager);
+        this.inMemoryAppender = LogNoHttpResponseRetryHandler.findAppender(inMemAppenderName);
+    }
+
+    /**
+     * @param slowThresholdMillis
+     *            requests taking longer than this are slow
+     */
+    public void setSlowThresholdMillis(long slowThresholdMillis) {
+        this.slowThresholdMicros = TimeUnit.MILLISECONDS.toMicros(slowThresholdMillis);
+    }
+
+    /**
+     * @param slowPercentile
+     *            requests slower than this percentile (eg. 0.999) of those
+     *            seen so far are slow, 0 to disable
+     * @param minSamples
+     *            the number of requests to see before using the percentile
+     */
+    public void setSlowPercentile(double slowPercentile, long minSamples) {
+        this.slowPercentile = slowPercentile;
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * @return the latencies, in microseconds, of every method executed
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the number of requests found slow
+     */
+    public long getSlowRequestCount() {
+        return slowRequests.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.apache.commons.httpclient.HttpClient#executeMethod(org.apache.commons
+     * .httpclient.HostConfiguration, org.apache.commons.httpclient.HttpMethod,
+     * org.apache.commons.httpclient.HttpState)
+     */
+    @Override public int executeMethod(HostConfiguration hostconfig, HttpMethod method, HttpState state)
+            throws IOException, HttpException {
+        long start = System.nanoTime();
+        boolean success = false;
+
+        try {
+            int status = super.executeMethod(hostconfig, method, state);
+            success = true;
+            return status;
+        } finally {
+            long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+
+            if (isSlow(micros)) {
+                slowRequests.incrementAndGet();
+                inMemoryAppender.dumpRequest(inMemoryAppender.routeOf(method));
+            }
+            inMemoryAppender.requestCompleted(success);
+        }
+    }
+
+    /**
+     * Records <code>micros</code> and decides if it is slow.
+     */
+    boolean isSlow(long micros) {
+        latencies.record(micros);
+
+        double percentile = slowPercentile;
+        if (percentile > 0) {
+            long samples = requests.incrementAndGet();
+            long min = minSamples;
+            if (samples == min || (samples > min && samples % RECALCULATE_EVERY == 0)) {
+                percentileMicros = latencies.getPercentile(percentile);
+            }
+        }
+
+        return micros > slowThresholdMicros || (percentile > 0 && micros > percentileMicros);
+    }
+}
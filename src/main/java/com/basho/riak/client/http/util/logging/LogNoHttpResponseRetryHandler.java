@@ -19,7 +19,6 @@ import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.HttpMethodRetryHandler;
 import org.apache.commons.httpclient.NoHttpResponseException;
-import org.apache.log4j.Appender;
 import org.apache.log4j.Logger;
 
 /**
@@ -36,6 +35,19 @@ import org.apache.log4j.Logger;
  * this class, either via the constructor or by using
  * {@link InMemoryAppender#DEFAULT_NAME}
  * </p>
+ * <p>
+ * Which exceptions dump the buffer is configured on the appender's
+ * {@link DumpTrigger}, by default any {@link NoHttpResponseException}.
+ * </p>
+ * <p>
+ * If the {@link InMemoryAppender} is partitioned only the partition for the
+ * failed method's route is dumped.
+ * </p>
+ * <p>
+ * Each dump is made within an incident (see
+ * {@link InMemoryAppender#beginIncident(String, Throwable, int)}), whose id is
+ * logged, and can be fetched from the appender's {@link IncidentStore}.
+ * </p>
  * 
  * @author russell
  * 
@@ -66,12 +78,18 @@ public class LogNoHttpResponseRetryHandler implements HttpMethodRetryHandler {
      *            received.
      */
     public LogNoHttpResponseRetryHandler(String inMemAppenderName) {
-        Appender a = logger.getAppender(inMemAppenderName);
-        if (a == null || !(a instanceof InMemoryAppender)) {
-            throw new IllegalStateException("No " + INMEM_APPENDER_NAME + " appender found");
-        }
+        inMemoryAppender = findAppender(inMemAppenderName);
+    }
 
-        inMemoryAppender = (InMemoryAppender) a;
+    /**
+     * @param inMemAppenderName
+     * @return the {@link InMemoryAppender} called
+     *         <code>inMemAppenderName</code> on the "httpclient.wire" logger
+     * @throws IllegalStateException
+     *             if there isn't one
+     */
+    static InMemoryAppender findAppender(String inMemAppenderName) {
+        return InMemoryAppender.lookup(logger.getName(), inMemAppenderName);
     }
 
     /*
@@ -82,11 +100,31 @@ public class LogNoHttpResponseRetryHandler implements HttpMethodRetryHandler {
      * apache.commons.httpclient.HttpMethod, java.io.IOException, int)
      */
     @Override public boolean retryMethod(HttpMethod method, IOException exception, int executionCount) {
-        if (exception instanceof NoHttpResponseException) {
-            inMemoryAppender.dump();
+        if (inMemoryAppender.getDumpTrigger().shouldDump(exception, executionCount)) {
+            String route = inMemoryAppender.routeOf(method);
+            inMemoryAppender.beginIncident(route, exception, executionCount);
+            try {
+                inMemoryAppender.dump(route);
+            } finally {
+                inMemoryAppender.endIncident();
+            }
         }
 
         return delegate.retryMethod(method, exception, executionCount);
     }
 
+    /**
+     * @return the {@link InMemoryAppender} this handler dumps
+     */
+    protected InMemoryAppender getInMemoryAppender() {
+        return inMemoryAppender;
+    }
+
+    /**
+     * @return what the {@link DefaultHttpMethodRetryHandler} would decide
+     */
+    protected boolean defaultRetryMethod(HttpMethod method, IOException exception, int executionCount) {
+        return delegate.retryMethod(method, exception, executionCount);
+    }
+
 }
@@ -0,0 +1,136 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+import com.basho.riak.client.http.util.logging.core.SequencedRing;
+
+/**
+ * The events of the request in flight on one thread, held by a request scoped
+ * {@link InMemoryAppender} until the request completes.
+ * <p>
+ * Only ever touched by its own thread, so not synchronized. Changes made by
+ * other threads, a new capacity or the appender closing, are picked up by
+ * {@link #update(int, int, AtomicLong)} on the owning thread. The underlying
+ * {@link SequencedRing} is reused from request to request.
+ * </p>
+ * <p>
+ * Every request in flight counts its events in a total shared with the
+ * other threads, so the appender can cap what all of them hold together.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class PendingRequest {
+
+    private final SequencedRing<LoggingEvent> events;
+    private boolean failed = false;
+    // so the first update takes the appender's shared count
+    private int closeCount = -1;
+    private AtomicLong shared;
+
+    PendingRequest(int capacity) {
+        this.events = new SequencedRing<LoggingEvent>(capacity);
+    }
+
+    /**
+     * Add <code>event</code>, unless every thread's requests together
+     * already hold <code>maxPending</code> events: then this request gives
+     * up its own oldest event for it, or if it has none, drops it.
+     * 
+     * @return true if an event was lost to <code>maxPending</code>
+     */
+    boolean add(LoggingEvent event, long maxPending) {
+        // a full request evicts its oldest, so the total doesn't change
+        if (events.size() < events.getCapacity()) {
+            if (shared.incrementAndGet() > maxPending) {
+                shared.decrementAndGet();
+                if (events.poll() == null) {
+                    return true;
+                }
+                events.offer(event, 0);
+                return true;
+            }
+        }
+        events.offer(event, 0);
+        return false;
+    }
+
+    LoggingEvent poll() {
+        LoggingEvent event = events.poll();
+        if (event != null) {
+            shared.decrementAndGet();
+        }
+        return event;
+    }
+
+    /**
+     * Mark the request as failed, so it is retained when it completes
+     */
+    void fail() {
+        failed = true;
+    }
+
+    boolean isFailed() {
+        return failed;
+    }
+
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    int size() {
+        return events.size();
+    }
+
+    /**
+     * Takes the appender's current <code>capacity</code>, and forgets the
+     * request's events if the appender has been cleared since the last
+     * update, counting from then on in the appender's new
+     * <code>shared</code> total.
+     */
+    void update(int capacity, int closeCount, AtomicLong shared) {
+        if (closeCount != this.closeCount) {
+            // given back to the total it was counted in
+            reset();
+            this.closeCount = closeCount;
+            this.shared = shared;
+        }
+        if (capacity != events.getCapacity()) {
+            if (capacity < events.size()) {
+                clear();
+            }
+            events.setCapacity(capacity);
+        }
+    }
+
+    /**
+     * Forget the request's events, ready for the next request
+     */
+    void reset() {
+        clear();
+        failed = false;
+    }
+
+    private void clear() {
+        if (!events.isEmpty()) {
+            shared.addAndGet(-events.size());
+            events.clear();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Follows the wire events of one connection's requests and times them, see
+ * {@link RequestTiming}. Reused from request to request, so timing a live
+ * stream of events allocates only the request and host strings.
+ * <p>
+ * Not thread safe, one clock per connection, or per thread for wire lines
+ * without a connection id (see {@link ConnectionStates}).
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class RequestClock {
+
+    private String request;
+    private String host;
+    private String thread;
+    private long start;
+    private long last;
+    private long lastOutgoing;
+    private long firstIncoming;
+    private long lastIncomingHeader;
+    private long lastIncoming;
+    private long maxGap;
+    private LoggingEvent lastEvent;
+    private final WireBody body = new WireBody();
+
+    RequestClock() {
+        reset();
+    }
+
+    /**
+     * Time every request in <code>events</code>, grouped by connection id, or
+     * by thread for events without one. Events before a connection's, or
+     * thread's, first request line are skipped.
+     * 
+     * @param lastEvents
+     *            if not <code>null</code>, filled with each timing keyed by
+     *            the last event of its request
+     * @return the timings, in order of request start
+     */
+    static List<RequestTiming> time(List<LoggingEvent> events, Map<LoggingEvent, RequestTiming> lastEvents) {
+        Map<String, RequestClock> connections = new HashMap<String, RequestClock>();
+        Map<String, RequestClock> threads = new HashMap<String, RequestClock>();
+        List<RequestTiming> timings = new ArrayList<RequestTiming>();
+        Map<RequestTiming, LoggingEvent> ends = new IdentityHashMap<RequestTiming, LoggingEvent>();
+
+        for (LoggingEvent e : events) {
+            if (!WireMessages.isWire(e)) {
+                continue;
+            }
+            String connection = WireMessages.connectionOf(e);
+            RequestClock clock = connection == null ? clockOf(threads, e.getThreadName())
+                                                     : clockOf(connections, connection);
+            LoggingEvent end = clock.lastEvent;
+            RequestTiming finished = clock.add(e);
+            if (finished != null) {
+                timings.add(finished);
+                ends.put(finished, end);
+            }
+        }
+
+        finishAll(connections.values(), timings, ends);
+        finishAll(threads.values(), timings, ends);
+
+        sortByStart(timings);
+        if (lastEvents != null) {
+            for (RequestTiming timing : timings) {
+                lastEvents.put(ends.get(timing), timing);
+            }
+        }
+        return timings;
+    }
+
+    private static RequestClock clockOf(Map<String, RequestClock> clocks, String key) {
+        RequestClock clock = clocks.get(key);
+        if (clock == null) {
+            clock = new RequestClock();
+            clocks.put(key, clock);
+        }
+        return clock;
+    }
+
+    private static void finishAll(Collection<RequestClock> clocks, List<RequestTiming> timings,
+            Map<RequestTiming, LoggingEvent> ends) {
+        for (RequestClock clock : clocks) {
+            LoggingEvent end = clock.lastEvent;
+            RequestTiming finished = clock.finish();
+            if (finished != null) {
+                timings.add(finished);
+                ends.put(finished, end);
+            }
+        }
+    }
+
+    /**
+     * Account for <code>event</code>, a wire event of this clock's
+     * connection, or thread.
+     * 
+     * @return the timing of the previous request, if <code>event</code>
+     *         starts a new one, otherwise <code>null</code>
+     */
+    RequestTiming add(LoggingEvent event) {
+        Object message = event.getMessage();
+        String text = message instanceof String ? WireMessages.withoutConnection((String) message) : null;
+        long now = event.getTimeStamp();
+        boolean isBody = body.isBody(event);
+
+        RequestTiming finished = null;
+        if (text != null && WireMessages.isRequestLine(text)) {
+            finished = finish();
+            request = WireMessages.requestOf(text);
+            thread = event.getThreadName();
+            start = now;
+            last = now;
+            lastOutgoing = now;
+        } else if (request == null) {
+            return null;
+        }
+
+        maxGap = Math.max(maxGap, now - last);
+        last = now;
+
+        if (text != null && text.startsWith(WireMessages.OUTGOING)) {
+            if (firstIncoming < 0) {
+                lastOutgoing = now;
+            }
+            if (host == null) {
+                host = WireMessages.hostOf(text);
+            }
+        } else if (text != null && text.startsWith(WireMessages.INCOMING)) {
+            if (firstIncoming < 0) {
+                firstIncoming = now;
+                lastIncomingHeader = now;
+            }
+            if (!isBody) {
+                lastIncomingHeader = now;
+            }
+            lastIncoming = now;
+        }
+        lastEvent = event;
+        return finished;
+    }
+
+    /**
+     * @return true if the request being timed was started by the thread
+     *         named <code>threadName</code>
+     */
+    boolean isStartedBy(String threadName) {
+        return thread != null && thread.equals(threadName);
+    }
+
+    /**
+     * End the request being timed, if any.
+     * 
+     * @return its timing, or <code>null</code> if there was none
+     */
+    RequestTiming finish() {
+        if (request == null) {
+            reset();
+            return null;
+        }
+
+        long firstByte = -1;
+        long headers = -1;
+        long body = -1;
+        if (firstIncoming >= 0) {
+            firstByte = firstIncoming - lastOutgoing;
+            headers = lastIncomingHeader - firstIncoming;
+            body = lastIncoming - lastIncomingHeader;
+        }
+        RequestTiming timing = new RequestTiming(host, thread, request, start, lastOutgoing - start, firstByte,
+                                                 headers, body, maxGap, last - start);
+        reset();
+        return timing;
+    }
+
+    private void reset() {
+        request = null;
+        host = null;
+        thread = null;
+        firstIncoming = -1;
+        maxGap = 0;
+        lastEvent = null;
+    }
+
+    private static void sortByStart(List<RequestTiming> timings) {
+        Collections.sort(timings, new Comparator<RequestTiming>() {
+            public int compare(RequestTiming a, RequestTiming b) {
+                return a.getStart() < b.getStart() ? -1 : a.getStart() > b.getStart() ? 1 : 0;
+            }
+        });
+    }
+}
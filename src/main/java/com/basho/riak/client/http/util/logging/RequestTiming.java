@@ -0,0 +1,141 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+/**
+ * Where the time went in one request, worked out from the timestamps of its
+ * wire events (see {@link WireMessages#isWire}). All times are in ms, the resolution
+ * of log4j timestamps, so anything under a millisecond shows as 0.
+ * <ul>
+ * <li><em>send</em> from the request line to the last byte of the request</li>
+ * <li><em>first byte</em> from the last byte of the request to the first of
+ * the response, the server's think time plus the network</li>
+ * <li><em>headers</em> from the first to the last byte of the response
+ * headers</li>
+ * <li><em>body</em> from the end of the response headers to the last byte
+ * of the body</li>
+ * <li><em>max gap</em> the longest wait between any two consecutive
+ * events</li>
+ * </ul>
+ * A request with no response yet has a first byte, headers and body time of
+ * -1.
+ *
+ * @author russell
+ *
+ */
+public final class RequestTiming {
+
+    private final String host;
+    private final String thread;
+    private final String request;
+    private final long start;
+    private final long sendMillis;
+    private final long firstByteMillis;
+    private final long headerMillis;
+    private final long bodyMillis;
+    private final long maxGapMillis;
+    private final long totalMillis;
+
+    RequestTiming(String host, String thread, String request, long start, long sendMillis, long firstByteMillis,
+            long headerMillis, long bodyMillis, long maxGapMillis, long totalMillis) {
+        this.host = host;
+        this.thread = thread;
+        this.request = request;
+        this.start = start;
+        this.sendMillis = sendMillis;
+        this.firstByteMillis = firstByteMillis;
+        this.headerMillis = headerMillis;
+        this.bodyMillis = bodyMillis;
+        this.maxGapMillis = maxGapMillis;
+        this.totalMillis = totalMillis;
+    }
+
+    /**
+     * @return the request's <code>Host</code> header, or <code>null</code>
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    /**
+     * @return the method and path, eg. <code>GET /riak/b/k</code>
+     */
+    public String getRequest() {
+        return request;
+    }
+
+    /**
+     * @return when the request line was written, epoch ms
+     */
+    public long getStart() {
+        return start;
+    }
+
+    public long getSendMillis() {
+        return sendMillis;
+    }
+
+    public long getFirstByteMillis() {
+        return firstByteMillis;
+    }
+
+    public long getHeaderMillis() {
+        return headerMillis;
+    }
+
+    public long getBodyMillis() {
+        return bodyMillis;
+    }
+
+    public long getMaxGapMillis() {
+        return maxGapMillis;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * @return true if any of the response was seen
+     */
+    public boolean isAnswered() {
+        return firstByteMillis >= 0;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(request);
+        if (host != null) {
+            sb.append(" on ").append(host);
+        }
+        sb.append(" [").append(thread).append("]: send ").append(sendMillis).append(" ms");
+        if (isAnswered()) {
+            sb.append(", first byte ").append(firstByteMillis).append(" ms, headers ").append(headerMillis)
+              .append(" ms, body ").append(bodyMillis).append(" ms");
+        } else {
+            sb.append(", no response");
+        }
+        sb.append(", max gap ").append(maxGapMillis).append(" ms, total ").append(totalMillis).append(" ms");
+        return sb.toString();
+    }
+}
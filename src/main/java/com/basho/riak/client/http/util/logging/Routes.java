@@ -0,0 +1,75 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.URI;
+import org.apache.commons.httpclient.URIException;
+
+/**
+ * Derives the <code>host:port</code> route key used to partition an
+ * {@link InMemoryAppender}'s buffer.
+ * <p>
+ * Put the same key in the MDC before executing a method so the wire events it
+ * logs land in the right partition, eg.
+ * <code>MDC.put("route", Routes.of(method))</code> with
+ * <code>log4j.appender.InMem.PartitionKey=route</code>.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class Routes {
+
+    private Routes() {}
+
+    /**
+     * @param method
+     * @return the <code>host:port</code> the method targets, from its
+     *         {@link HostConfiguration} or else its URI, or <code>null</code>
+     *         if neither is known
+     */
+    @SuppressWarnings("deprecation") public static String of(HttpMethod method) {
+        if (method == null) {
+            return null;
+        }
+
+        HostConfiguration hostConfiguration = method.getHostConfiguration();
+        if (hostConfiguration != null && hostConfiguration.getHost() != null) {
+            return of(hostConfiguration.getHost(), hostConfiguration.getPort());
+        }
+
+        try {
+            URI uri = method.getURI();
+            if (uri != null && uri.getHost() != null) {
+                int port = uri.getPort();
+                if (port < 0) {
+                    port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+                }
+                return of(uri.getHost(), port);
+            }
+        } catch (URIException e) {
+            // no route then
+        }
+        return null;
+    }
+
+    /**
+     * @return the route key for <code>host</code> and <code>port</code>
+     */
+    public static String of(String host, int port) {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * A live tail of an {@link InMemoryAppender}: the events it appends, as they
+ * are appended, through a bounded queue.
+ * <p>
+ * The appending thread only <code>offer</code>s to the queue. If the
+ * subscriber hasn't kept up and the queue is full the event is lost and
+ * counted, the append never waits. A subscription that has lost more than
+ * <code>maxLost</code> events, or hasn't been polled for the appender's
+ * <code>tailIdleMillis</code>, is closed and removed from the appender. Any
+ * events still queued can be polled after that.
+ * </p>
+ * <p>
+ * An optional log4j {@link Filter} chain picks the events delivered, with the
+ * appender's semantics: an event is delivered unless a filter denies it
+ * before one accepts it. The filters run on the polling thread, as events
+ * are polled, never on an appending thread; so the queue holds events before
+ * they are filtered, and should be sized for every event appended.
+ * </p>
+ * <p>
+ * Create with {@link InMemoryAppender#subscribe(Filter, int, boolean)}.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class TailSubscription {
+
+    private final long id;
+    private final Filter filter;
+    private final long maxLost;
+    private final BlockingQueue<LoggingEvent> queue;
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    // System.nanoTime(), as is the idle check
+    private volatile long lastPolled;
+    private volatile boolean closed = false;
+
+    TailSubscription(long id, Filter filter, int capacity, long maxLost) {
+        this.id = id;
+        this.filter = filter;
+        this.maxLost = maxLost;
+        this.queue = new ArrayBlockingQueue<LoggingEvent>(Math.max(1, capacity));
+        this.lastPolled = System.nanoTime();
+    }
+
+    /**
+     * Queue <code>event</code>, unfiltered. Never blocks.
+     * 
+     * @param idleMillis
+     *            close the subscription if it hasn't been polled for this
+     *            long, 0 or less to never
+     * @return false if the subscription is closed, and should be removed
+     */
+    boolean offer(LoggingEvent event, long idleMillis) {
+        if (closed) {
+            return false;
+        }
+
+        if (idleMillis > 0 && System.nanoTime() - lastPolled > TimeUnit.MILLISECONDS.toNanos(idleMillis)) {
+            closed = true;
+            return false;
+        }
+
+        if (queue.offer(event)) {
+            return true;
+        }
+
+        if (lost.incrementAndGet() > maxLost && maxLost >= 0) {
+            closed = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Queue the buffered <code>history</code>, oldest first. Events that
+     * don't fit are lost, but don't count towards <code>maxLost</code>.
+     */
+    void preload(List<LoggingEvent> history) {
+        for (LoggingEvent event : history) {
+            if (!queue.offer(event)) {
+                lost.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean accepts(LoggingEvent event) {
+        Filter f = filter;
+        while (f != null) {
+            int decision = f.decide(event);
+            if (decision == Filter.DENY) {
+                return false;
+            } else if (decision == Filter.ACCEPT) {
+                return true;
+            }
+            f = f.getNext();
+        }
+        return true;
+    }
+
+    /**
+     * @return the next event that passes the filter, or <code>null</code> if
+     *         none arrived within the timeout
+     * @throws InterruptedException
+     */
+    public LoggingEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        lastPolled = start;
+        long remaining = unit.toNanos(timeout);
+        while (true) {
+            LoggingEvent event = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (event == null) {
+                return null;
+            }
+            if (accepts(event)) {
+                delivered.incrementAndGet();
+                return event;
+            }
+            remaining = unit.toNanos(timeout) - (System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Move up to <code>max</code> queued events that pass the filter, oldest
+     * first, into <code>sink</code> without waiting.
+     * 
+     * @return the number of events moved
+     */
+    public int drainTo(Collection<? super LoggingEvent> sink, int max) {
+        lastPolled = System.nanoTime();
+        int moved = 0;
+        LoggingEvent event;
+        while (moved < max && (event = queue.poll()) != null) {
+            if (accepts(event)) {
+                sink.add(event);
+                moved++;
+            }
+        }
+        delivered.addAndGet(moved);
+        return moved;
+    }
+
+    /**
+     * Stop receiving events. Events already queued can still be polled.
+     */
+    public void cancel() {
+        closed = true;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return true if cancelled, or closed by the appender for losing too
+     *         many events, being idle, or the appender closing
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of events queued and not yet polled, nor filtered
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of events polled that passed the filter, history
+     *         included
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * @return the number of events lost because the queue was full
+     */
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override public String toString() {
+        return "tail " + id + ": delivered=" + delivered.get() + " lost=" + lost.get() + " queued=" + queue.size()
+               + (closed ? " closed" : "");
+    }
+}
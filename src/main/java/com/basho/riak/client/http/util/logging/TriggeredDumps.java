@@ -0,0 +1,129 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the dumps a lossy {@link InMemoryAppender}'s evaluator asks for on a
+ * thread of its own, so the appending thread that logged the triggering
+ * event never drains or writes the buffer itself.
+ * <p>
+ * Requests for a route (or the whole buffer) already waiting are merged: one
+ * dump flushes everything buffered by the time it runs. Asking never blocks.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class TriggeredDumps implements Runnable {
+
+    private final InMemoryAppender appender;
+    private final AtomicBoolean whole = new AtomicBoolean();
+    private final ConcurrentMap<String, Boolean> routes = new ConcurrentHashMap<String, Boolean>();
+    private final Semaphore requested = new Semaphore(0);
+    private final AtomicLong dumped = new AtomicLong();
+    private volatile boolean running = true;
+    private Thread thread;
+
+    TriggeredDumps(InMemoryAppender appender) {
+        this.appender = appender;
+    }
+
+    void start(String name) {
+        thread = new Thread(this, name + "-dumper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Ask for <code>route</code> to be dumped, never blocks.
+     *
+     * @param route
+     *            the partition to dump, <code>null</code> for the whole
+     *            buffer
+     * @return false if stopped, the caller must dump itself
+     */
+    boolean request(String route) {
+        if (!running) {
+            return false;
+        }
+        boolean fresh = route == null ? whole.compareAndSet(false, true)
+                : routes.putIfAbsent(route, Boolean.TRUE) == null;
+        if (fresh) {
+            requested.release();
+        }
+        return true;
+    }
+
+    /**
+     * Run the dumps still asked for and stop the thread.
+     */
+    void stop() {
+        running = false;
+        Thread t = thread;
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of dumps run
+     */
+    long getDumpCount() {
+        return dumped.get();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        while (running) {
+            try {
+                requested.acquire();
+            } catch (InterruptedException e) {
+                break;
+            }
+            runRequested();
+        }
+        // asked for before the stop, still owed
+        runRequested();
+    }
+
+    private void runRequested() {
+        // each request still waiting is merged into the dumps run now
+        requested.drainPermits();
+        if (whole.getAndSet(false)) {
+            appender.dump();
+            dumped.incrementAndGet();
+        }
+        for (String route : routes.keySet()) {
+            routes.remove(route);
+            appender.dump(route);
+            dumped.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Tells body chunks from headers in a stream of wire events. HttpClient 3.x
+ * logs bodies to their own logger, <code>httpclient.wire.content</code>, but
+ * 4.x and 5.x log headers and body alike to one wire logger, so there a
+ * direction's body starts after the empty line ending its headers and lasts
+ * until the next request or status line.
+ * <p>
+ * Follows one connection's events (see {@link ConnectionStates}), not thread
+ * safe.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class WireBody {
+
+    private boolean outgoing = false;
+    private boolean incoming = false;
+
+    /**
+     * Call once for each wire event, in order.
+     * 
+     * @return true if <code>event</code> is a chunk of a request or response
+     *         body, rather than a header
+     */
+    boolean isBody(LoggingEvent event) {
+        if (WireMessages.isContent(event)) {
+            return true;
+        }
+        Object message = event.getMessage();
+        if (!WireMessages.isCombinedWire(event) || !(message instanceof String)) {
+            return false;
+        }
+
+        String line = WireMessages.withoutConnection((String) message);
+        if (line.startsWith(WireMessages.OUTGOING)) {
+            if (WireMessages.isRequestLine(line)) {
+                outgoing = false;
+                incoming = false;
+                return false;
+            }
+            if (outgoing) {
+                return true;
+            }
+            outgoing = WireMessages.isHeaderEnd(line);
+        } else if (line.startsWith(WireMessages.INCOMING)) {
+            if (WireMessages.isStatusLine(line)) {
+                incoming = false;
+                return false;
+            }
+            if (incoming) {
+                return true;
+            }
+            incoming = WireMessages.isHeaderEnd(line);
+        }
+        return false;
+    }
+
+    /**
+     * Forget the request in progress
+     */
+    void reset() {
+        outgoing = false;
+        incoming = false;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timestamp;
+
+/**
+ * A log4j event recorded by a flight recorder {@link InMemoryAppender}. See
+ * {@link FlightRecorderBridge}.
+ *
+ * @author russell
+ *
+ */
+@Name(WireEvent.NAME)
+@Label("Wire Log Event")
+@Category({ "log4j", "HTTP Client" })
+@Description("A log4j event buffered by InMemoryAppender")
+@StackTrace(false)
+final class WireEvent extends Event {
+
+    static final String NAME = "com.basho.riak.client.http.WireLog";
+
+    @Label("Logger") String logger;
+
+    @Label("Level") String level;
+
+    @Label("Thread") @Description("The log4j thread name") String thread;
+
+    @Label("Message") String message;
+
+    @Label("Throwable") @Description("The throwable's stack trace, one line per frame") String throwable;
+
+    @Label("Timestamp") @Timestamp(Timestamp.MILLISECONDS_SINCE_EPOCH) long timestamp;
+}
@@ -0,0 +1,249 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Recognises the lines apache hc writes to its "wire" loggers, eg.
+ * <code>&gt;&gt; "GET /riak/bucket/key HTTP/1.1[\r][\n]"</code>.
+ *
+ * @author russell
+ *
+ */
+final class WireMessages {
+
+    static final String OUTGOING = ">> \"";
+    static final String INCOMING = "<< \"";
+    static final String CONTENT_LOGGER = "httpclient.wire.content";
+    static final String OUTGOING_PREFIX = ">> ";
+    static final String INCOMING_PREFIX = "<< ";
+    private static final String END_OF_STREAM = INCOMING + "end of stream\"";
+    private static final String HEADER_END = "\"[\\r][\\n]\"";
+    private static final String STATUS_LINE = INCOMING + "HTTP/";
+    /** The wire loggers of HttpClient 3.x, 4.x and 5.x */
+    private static final String HTTPCLIENT3_WIRE = "httpclient.wire";
+    private static final String HTTPCLIENT4_WIRE = "org.apache.http.wire";
+    private static final String HTTPCLIENT5_WIRE = "org.apache.hc.client5.http.wire";
+    private static final String HOST_HEADER = OUTGOING + "Host:";
+
+    private WireMessages() {}
+
+    /**
+     * @return true if <code>event</code> was logged by a wire logger of
+     *         HttpClient 3.x (<code>httpclient.wire.*</code>), 4.x
+     *         (<code>org.apache.http.wire</code>) or 5.x
+     *         (<code>org.apache.hc.client5.http.wire</code>)
+     */
+    static boolean isWire(LoggingEvent event) {
+        String logger = event.getLoggerName();
+        return logger != null && (logger.startsWith(HTTPCLIENT3_WIRE) || isCombinedWire(logger));
+    }
+
+    /**
+     * @return true if <code>event</code> was logged by the HttpClient 4.x or
+     *         5.x wire logger, which logs headers and body alike, each line
+     *         prefixed by its connection id
+     */
+    static boolean isCombinedWire(LoggingEvent event) {
+        String logger = event.getLoggerName();
+        return logger != null && isCombinedWire(logger);
+    }
+
+    private static boolean isCombinedWire(String logger) {
+        return logger.equals(HTTPCLIENT4_WIRE) || logger.equals(HTTPCLIENT5_WIRE);
+    }
+
+    /**
+     * @return true if <code>event</code> is the request line that starts a new
+     *         request, eg. <code>&gt;&gt; "PUT /riak/b/k HTTP/1.1[\r][\n]"</code>,
+     *         after its connection id if any
+     */
+    static boolean isRequestLine(LoggingEvent event) {
+        if (!isWire(event)) {
+            return false;
+        }
+        Object message = event.getMessage();
+        return message instanceof String && isRequestLine(withoutConnection((String) message));
+    }
+
+    static boolean isRequestLine(String message) {
+        if (!message.startsWith(OUTGOING)) {
+            return false;
+        }
+
+        int i = OUTGOING.length();
+        int methodEnd = i;
+        while (methodEnd < message.length() && Character.isUpperCase(message.charAt(methodEnd))) {
+            methodEnd++;
+        }
+        return methodEnd > i && methodEnd < message.length() && message.charAt(methodEnd) == ' '
+               && message.indexOf(" HTTP/", methodEnd) > 0;
+    }
+
+    /**
+     * @return the method and path of a request line, eg.
+     *         <code>PUT /riak/b/k</code>
+     */
+    static String requestOf(String requestLine) {
+        int end = requestLine.indexOf(" HTTP/", OUTGOING.length());
+        return requestLine.substring(OUTGOING.length(), end < 0 ? payloadEnd(requestLine) : end);
+    }
+
+    /**
+     * @return the value of an outgoing <code>Host</code> header, eg.
+     *         <code>node1:8098</code>, or <code>null</code> if
+     *         <code>message</code> is not one
+     */
+    static String hostOf(String message) {
+        if (!message.regionMatches(true, 0, HOST_HEADER, 0, HOST_HEADER.length())) {
+            return null;
+        }
+        int end = message.indexOf('[', HOST_HEADER.length());
+        return message.substring(HOST_HEADER.length(), end < 0 ? payloadEnd(message) : end).trim();
+    }
+
+    /**
+     * @return the connection id an HttpClient 4.x or 5.x wire or header log
+     *         line starts with, eg. <code>http-outgoing-3</code> from
+     *         <code>http-outgoing-3 &gt;&gt; "GET / HTTP/1.1[\r][\n]"</code>,
+     *         or <code>null</code> if it has none
+     */
+    static String connectionOf(LoggingEvent event) {
+        Object message = event.getMessage();
+        if (!(message instanceof String)) {
+            return null;
+        }
+        int end = connectionEnd((String) message);
+        return end < 0 ? null : ((String) message).substring(0, end);
+    }
+
+    /**
+     * @return <code>message</code> without its connection id, if any
+     */
+    static String withoutConnection(String message) {
+        int end = connectionEnd(message);
+        return end < 0 ? message : message.substring(end + 1);
+    }
+
+    /**
+     * @return true if <code>message</code>, without its connection id, is the
+     *         line HttpClient 4.x and 5.x log when the peer closes the
+     *         connection, rather than anything received
+     */
+    static boolean isEndOfStream(String message) {
+        return message.equals(END_OF_STREAM);
+    }
+
+    /**
+     * @return true if <code>message</code>, without its connection id, is the
+     *         empty line that ends a direction's headers
+     */
+    static boolean isHeaderEnd(String message) {
+        return message.length() == OUTGOING_PREFIX.length() + HEADER_END.length()
+               && message.startsWith(HEADER_END, OUTGOING_PREFIX.length())
+               && (message.startsWith(OUTGOING_PREFIX) || message.startsWith(INCOMING_PREFIX));
+    }
+
+    /**
+     * @return true if <code>message</code>, without its connection id, is a
+     *         response's status line
+     */
+    static boolean isStatusLine(String message) {
+        return message.startsWith(STATUS_LINE);
+    }
+
+    /**
+     * @return true if <code>header</code>, the value of a <code>Host</code>
+     *         header, names <code>host</code>. Ports are only compared if
+     *         both have one, as the header leaves out a default port.
+     */
+    static boolean sameHost(String header, String host) {
+        int headerPort = header.lastIndexOf(':');
+        int hostPort = host.lastIndexOf(':');
+        if (headerPort >= 0 && hostPort >= 0) {
+            return header.equalsIgnoreCase(host);
+        }
+        String headerName = headerPort < 0 ? header : header.substring(0, headerPort);
+        String hostName = hostPort < 0 ? host : host.substring(0, hostPort);
+        return headerName.equalsIgnoreCase(hostName);
+    }
+
+    /**
+     * @return the index of the space after the connection id, or -1
+     */
+    private static int connectionEnd(String message) {
+        int space = message.indexOf(' ');
+        if (space <= 0) {
+            return -1;
+        }
+        if (message.startsWith(OUTGOING_PREFIX, space + 1) || message.startsWith(INCOMING_PREFIX, space + 1)) {
+            return space;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if <code>event</code> is a chunk of a request or response
+     *         body, rather than a header
+     */
+    static boolean isContent(LoggingEvent event) {
+        return CONTENT_LOGGER.equals(event.getLoggerName());
+    }
+
+    /**
+     * @return the number of bytes of wire data <code>message</code> shows,
+     *         counting each escape such as <code>[\r]</code> or
+     *         <code>[0x8b]</code> as one byte
+     */
+    static int payloadBytes(String message) {
+        int end = payloadEnd(message);
+        int bytes = 0;
+        for (int i = OUTGOING.length(); i < end; i = next(message, i, end)) {
+            bytes++;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return <code>message</code> with only its first <code>bytes</code>
+     *         bytes of wire data, still quoted
+     */
+    static String truncate(String message, int bytes) {
+        int end = payloadEnd(message);
+        int i = OUTGOING.length();
+        for (int counted = 0; counted < bytes && i < end; counted++) {
+            i = next(message, i, end);
+        }
+        return message.substring(0, i) + "\"";
+    }
+
+    private static int payloadEnd(String message) {
+        int end = message.length();
+        return end > OUTGOING.length() && message.charAt(end - 1) == '"' ? end - 1 : end;
+    }
+
+    /**
+     * @return the index of the byte after the one at <code>i</code>
+     */
+    private static int next(String message, int i, int end) {
+        if (message.charAt(i) == '[') {
+            int close = message.indexOf(']', i);
+            if (close > i && close < end && close - i <= 5) {
+                return close + 1;
+            }
+        }
+        return i + 1;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.core;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bookkeeping every appender on {@link SequencedRing}s shares: it numbers
+ * appended events, counts those evicted or dropped before they were dumped,
+ * and drains rings into a dump with the {@link DumpRange} its summary line
+ * reports.
+ * <p>
+ * Like {@link SequencedRing} it knows nothing of any logging framework.
+ * Sequence numbers and drops may be taken from any thread; evictions and
+ * drains must be made holding the lock that guards the rings, which the
+ * appender owns.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class DumpLedger {
+
+    private final AtomicLong sequence = new AtomicLong();
+    private long evictedSinceDump = 0;
+    // only written holding the appender's lock, so volatile is enough
+    private volatile long evictedCount = 0;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedSinceDump = new AtomicLong();
+
+    /**
+     * @return the sequence number for the next appended event
+     */
+    public long nextSequence() {
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * @return the sequence number most recently handed out
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Must hold the appender's lock. Counts an event evicted before it was
+     * dumped.
+     */
+    public void countEviction() {
+        evictedSinceDump++;
+        evictedCount++;
+    }
+
+    /**
+     * @return the events evicted, never dumped, since the ledger was created
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * Counts an event dropped, never buffered, eg. by a lossy append
+     */
+    public void countDrop() {
+        dropped.incrementAndGet();
+        droppedSinceDump.incrementAndGet();
+    }
+
+    /**
+     * @return the events dropped since the ledger was created
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Must hold the appender's lock. Moves every event of <code>ring</code>,
+     * the appender's only one, into <code>sink</code>, oldest first, and
+     * takes every eviction and drop not yet reported.
+     *
+     * @return what was drained
+     */
+    public <E> DumpRange drain(SequencedRing<E> ring, Collection<? super E> sink) {
+        return drain(ring, evictedSinceDump, sink);
+    }
+
+    /**
+     * Must hold the appender's lock. Moves every event of <code>rings</code>
+     * into <code>sink</code>, each ring oldest first, and takes every
+     * eviction and drop not yet reported.
+     *
+     * @return what was drained
+     */
+    public <E> DumpRange drain(Iterable<SequencedRing<E>> rings, Collection<? super E> sink) {
+        long first = Long.MAX_VALUE;
+        long last = -1;
+        int events = 0;
+        for (SequencedRing<E> ring : rings) {
+            if (!ring.isEmpty()) {
+                first = Math.min(first, ring.lowestSequence());
+                last = Math.max(last, ring.highestSequence());
+                events += ring.size();
+                ring.drainTo(sink);
+            }
+        }
+
+        long evicted = evictedSinceDump;
+        evictedSinceDump = 0;
+        return new DumpRange(events, last < 0 ? -1 : first, last, evicted, droppedSinceDump.getAndSet(0));
+    }
+
+    /**
+     * Must hold the appender's lock. Moves the events of one of several
+     * rings into <code>sink</code>, oldest first, and takes the
+     * <code>evicted</code> evictions counted against that ring.
+     *
+     * @param ring
+     *            the ring to drain, may be <code>null</code>
+     * @param evicted
+     *            the ring's share of the unreported evictions
+     * @return what was drained
+     */
+    public <E> DumpRange drain(SequencedRing<E> ring, long evicted, Collection<? super E> sink) {
+        long first = -1;
+        long last = -1;
+        int events = 0;
+        if (ring != null && !ring.isEmpty()) {
+            first = ring.lowestSequence();
+            last = ring.highestSequence();
+            events = ring.size();
+            ring.drainTo(sink);
+        }
+
+        evictedSinceDump -= evicted;
+        return new DumpRange(events, first, last, evicted, droppedSinceDump.getAndSet(0));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.core;
+
+/**
+ * What one dump drained, as counted by a {@link DumpLedger}: how many events,
+ * the sequence range they cover, and how many events were evicted or dropped,
+ * unseen, since the previous dump.
+ *
+ * @author russell
+ *
+ */
+public final class DumpRange {
+
+    /** Nothing drained, nothing lost */
+    public static final DumpRange EMPTY = new DumpRange(0, -1, -1, 0, 0);
+
+    private final int events;
+    private final long firstSequence;
+    private final long lastSequence;
+    private final long evicted;
+    private final long dropped;
+
+    public DumpRange(int events, long firstSequence, long lastSequence, long evicted, long dropped) {
+        this.events = events;
+        this.firstSequence = firstSequence;
+        this.lastSequence = lastSequence;
+        this.evicted = evicted;
+        this.dropped = dropped;
+    }
+
+    /**
+     * @return the number of events drained
+     */
+    public int getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the lowest sequence number drained, -1 if not known
+     */
+    public long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * @return the highest sequence number drained, -1 if not known
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return the events evicted, unseen, since the previous dump
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    /**
+     * @return the events dropped, never buffered, since the previous dump
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return true if there is nothing to report, no events, evictions or
+     *         drops
+     */
+    public boolean isEmpty() {
+        return events == 0 && evicted == 0 && dropped == 0;
+    }
+
+    /**
+     * @param appenderName
+     * @param timeSpan
+     *            ms between the oldest and newest events
+     * @return the summary line, see {@link DumpSummary}
+     */
+    public String summary(String appenderName, long timeSpan) {
+        return DumpSummary.format(appenderName, events, firstSequence, lastSequence, evicted, dropped, timeSpan);
+    }
+
+    /**
+     * As {@link #summary(String, long)}, into <code>sb</code>
+     *
+     * @return <code>sb</code>
+     */
+    public StringBuilder summaryTo(StringBuilder sb, String appenderName, long timeSpan) {
+        return DumpSummary.formatTo(sb, appenderName, events, firstSequence, lastSequence, evicted, dropped, timeSpan);
+    }
+}
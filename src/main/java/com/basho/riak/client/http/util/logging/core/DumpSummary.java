@@ -0,0 +1,69 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.core;
+
+/**
+ * Formats the one line summary that starts each dump, the same for every
+ * appender, eg.
+ * <code>InMem dumping 100 events #901-#1000, 900 evicted since last dump, spanning 1234 ms</code>
+ *
+ * @author russell
+ *
+ */
+public final class DumpSummary {
+
+    private DumpSummary() {}
+
+    /**
+     * @param appenderName
+     * @param events
+     *            the number of events dumped
+     * @param firstSequence
+     *            the sequence number of the first event, -1 if not known
+     * @param lastSequence
+     *            the sequence number of the last event
+     * @param evicted
+     *            events evicted, unseen, since the previous dump
+     * @param dropped
+     *            events dropped, never buffered, since the previous dump
+     * @param timeSpan
+     *            ms between the oldest and newest events
+     * @return the summary line
+     */
+    public static String format(String appenderName, int events, long firstSequence, long lastSequence,
+            long evicted, long dropped, long timeSpan) {
+        return formatTo(new StringBuilder(128), appenderName, events, firstSequence, lastSequence, evicted, dropped,
+                        timeSpan).toString();
+    }
+
+    /**
+     * As {@link #format(String, int, long, long, long, long, long)}, into
+     * <code>sb</code>, for callers that append more to the line
+     * 
+     * @return <code>sb</code>
+     */
+    public static StringBuilder formatTo(StringBuilder sb, String appenderName, int events, long firstSequence,
+            long lastSequence, long evicted, long dropped, long timeSpan) {
+        sb.append(appenderName).append(" dumping ").append(events).append(" events");
+        if (events > 0 && firstSequence >= 0) {
+            sb.append(" #").append(firstSequence).append("-#").append(lastSequence);
+        }
+        sb.append(", ").append(evicted).append(" evicted since last dump");
+        if (dropped > 0) {
+            sb.append(", ").append(dropped).append(" dropped");
+        }
+        sb.append(", spanning ").append(timeSpan).append(" ms");
+        return sb;
+    }
+}
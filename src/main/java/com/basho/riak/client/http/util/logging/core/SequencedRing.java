@@ -0,0 +1,190 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.core;
+
+import java.util.Collection;
+
+/**
+ * A bounded FIFO of events, each with the sequence number it was appended
+ * with. When full the oldest event is dropped for the new one.
+ * <p>
+ * Backed by a ring of arrays that grows on demand up to the capacity, so a
+ * full buffer appends and evicts without allocating.
+ * </p>
+ * <p>
+ * This is the buffer engine shared by the log4j 1.2 and Log4j 2 appenders, so
+ * it knows nothing of either. Not thread safe, the appenders guard all access
+ * with their buffer lock.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public final class SequencedRing<E> {
+
+    private static final int INITIAL_SLOTS = 16;
+
+    private Object[] events;
+    private long[] sequences;
+    private int head = 0;
+    private int size = 0;
+    private int capacity;
+
+    public SequencedRing(int capacity) {
+        this.capacity = capacity;
+        int slots = Math.max(1, Math.min(capacity, INITIAL_SLOTS));
+        this.events = new Object[slots];
+        this.sequences = new long[slots];
+    }
+
+    /**
+     * Add <code>event</code>, dropping the oldest event if the buffer is full
+     *
+     * @return the dropped event or <code>null</code>
+     */
+    public E offer(E event, long sequence) {
+        E evicted = null;
+        if (size >= capacity) {
+            evicted = poll();
+        }
+        if (size == events.length) {
+            resize(Math.min(capacity, events.length * 2));
+        }
+
+        int tail = (head + size) % events.length;
+        events[tail] = event;
+        sequences[tail] = sequence;
+        size++;
+        return evicted;
+    }
+
+    /**
+     * @return the oldest event, removed, or <code>null</code> if empty
+     */
+    public E poll() {
+        if (size == 0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked") E oldest = (E) events[head];
+        events[head] = null;
+        head = (head + 1) % events.length;
+        size--;
+        return oldest;
+    }
+
+    /**
+     * @param index
+     *            0 for the oldest event, up to <code>size() - 1</code> for
+     *            the newest
+     * @return the event, not removed
+     */
+    public E get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+        @SuppressWarnings("unchecked") E event = (E) events[(head + index) % events.length];
+        return event;
+    }
+
+    /**
+     * Appenders number events before they take their lock, so racing appends
+     * may be buffered a little out of sequence order.
+     *
+     * @return the lowest sequence number buffered, only valid if not empty
+     */
+    public long lowestSequence() {
+        long lowest = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            lowest = Math.min(lowest, sequences[(head + i) % events.length]);
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the highest sequence number buffered, only valid if not empty
+     */
+    public long highestSequence() {
+        long highest = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            highest = Math.max(highest, sequences[(head + i) % events.length]);
+        }
+        return highest;
+    }
+
+    /**
+     * Move every buffered event, oldest first, into <code>sink</code>
+     */
+    public void drainTo(Collection<? super E> sink) {
+        while (size > 0) {
+            sink.add(poll());
+        }
+        head = 0;
+    }
+
+    /**
+     * Copy every buffered event, oldest first, into <code>sink</code>,
+     * leaving the buffer as it is
+     */
+    public void copyTo(Collection<? super E> sink) {
+        for (int i = 0; i < size; i++) {
+            @SuppressWarnings("unchecked") E event = (E) events[(head + i) % events.length];
+            sink.add(event);
+        }
+    }
+
+    public void clear() {
+        while (size > 0) {
+            poll();
+        }
+        head = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param capacity
+     *            must not be less than the current size
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+        if (events.length > capacity) {
+            resize(Math.max(1, capacity));
+        }
+    }
+
+    private void resize(int slots) {
+        Object[] resizedEvents = new Object[slots];
+        long[] resizedSequences = new long[slots];
+
+        for (int i = 0; i < size; i++) {
+            int from = (head + i) % events.length;
+            resizedEvents[i] = events[from];
+            resizedSequences[i] = sequences[from];
+        }
+
+        events = resizedEvents;
+        sequences = resizedSequences;
+        head = 0;
+    }
+}
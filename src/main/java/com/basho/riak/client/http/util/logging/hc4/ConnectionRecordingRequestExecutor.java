@@ -0,0 +1,66 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.hc4;
+
+import java.io.IOException;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+/**
+ * An {@link HttpRequestExecutor} that records the id of the connection each
+ * request is sent on in the request's context, for
+ * {@link LogNoHttpResponseRequestRetryHandler}.
+ * <p>
+ * By the time HttpClient 4.x calls a retry handler the failed connection has
+ * been aborted and released to the pool, and its id can no longer be read
+ * from it. With this executor installed the handler dumps exactly the failed
+ * connection, without it the handler dumps every connection awaiting a
+ * response from the failed host instead.
+ * </p>
+ * 
+ * <pre>
+ * HttpClients.custom().setRequestExecutor(new ConnectionRecordingRequestExecutor())
+ *         .setRetryHandler(new LogNoHttpResponseRequestRetryHandler()).build();
+ * </pre>
+ * 
+ * @author russell
+ * 
+ */
+public class ConnectionRecordingRequestExecutor extends HttpRequestExecutor {
+
+    /** The context attribute the connection id is recorded under */
+    public static final String CONNECTION_ID = "com.basho.riak.client.http.util.logging.connection-id";
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.apache.http.protocol.HttpRequestExecutor#execute(org.apache.http.
+     * HttpRequest, org.apache.http.HttpClientConnection,
+     * org.apache.http.protocol.HttpContext)
+     */
+    @Override public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        if (conn instanceof ManagedHttpClientConnection) {
+            context.setAttribute(CONNECTION_ID, ((ManagedHttpClientConnection) conn).getId());
+        }
+        return super.execute(request, conn, context);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.hc4;
+
+import java.io.IOException;
+
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.RouteInfo;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ConnectionShutdownException;
+import org.apache.http.protocol.HttpContext;
+
+import com.basho.riak.client.http.util.logging.InMemoryAppender;
+import com.basho.riak.client.http.util.logging.LogNoHttpResponseRetryHandler;
+import com.basho.riak.client.http.util.logging.Routes;
+
+/**
+ * The HttpClient 4.x equivalent of {@link LogNoHttpResponseRetryHandler}: an
+ * {@link HttpRequestRetryHandler} that flushes the {@link InMemoryAppender}
+ * on the <code>org.apache.http.wire</code> logger when the appender's
+ * trigger says so (by default on a {@link NoHttpResponseException}), then
+ * delegates, by default to the {@link DefaultHttpRequestRetryHandler}.
+ * <p>
+ * HttpClient 4.x prefixes each wire log line with its connection's id, eg.
+ * <code>http-outgoing-3</code>. Partition the appender by it, with
+ * <code>log4j.appender.InMem.PartitionKey=wire.connection</code>, and install
+ * a {@link ConnectionRecordingRequestExecutor}, and only the failed request's
+ * connection is dumped. Without the executor the failed connection is already
+ * back in the pool, unidentifiable, when the handler is called, so every
+ * connection awaiting a response from the failed host is dumped (see
+ * {@link InMemoryAppender#dumpUnanswered(String)}). If the appender is
+ * partitioned by an MDC key the failed request's route is dumped, otherwise
+ * everything.
+ * </p>
+ * 
+ * <pre>
+ * HttpClients.custom().setRequestExecutor(new ConnectionRecordingRequestExecutor())
+ *         .setRetryHandler(new LogNoHttpResponseRequestRetryHandler()).build();
+ * </pre>
+ * 
+ * @author russell
+ * 
+ */
+public class LogNoHttpResponseRequestRetryHandler implements HttpRequestRetryHandler {
+
+    /** The logger HttpClient 4.x logs the wire to */
+    public static final String WIRE_LOGGER = "org.apache.http.wire";
+
+    private final InMemoryAppender inMemoryAppender;
+    private final HttpRequestRetryHandler delegate;
+
+    /**
+     * Create a handler which dumps the appender named
+     * {@link InMemoryAppender#DEFAULT_NAME}
+     */
+    public LogNoHttpResponseRequestRetryHandler() {
+        this(InMemoryAppender.DEFAULT_NAME);
+    }
+
+    /**
+     * @param inMemAppenderName
+     *            the name of the "org.apache.http.wire" appender to dump
+     */
+    public LogNoHttpResponseRequestRetryHandler(String inMemAppenderName) {
+        this(inMemAppenderName, DefaultHttpRequestRetryHandler.INSTANCE);
+    }
+
+    /**
+     * @param inMemAppenderName
+     *            the name of the "org.apache.http.wire" appender to dump
+     * @param delegate
+     *            decides whether to retry
+     */
+    public LogNoHttpResponseRequestRetryHandler(String inMemAppenderName, HttpRequestRetryHandler delegate) {
+        this.inMemoryAppender = InMemoryAppender.lookup(WIRE_LOGGER, inMemAppenderName);
+        this.delegate = delegate;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.apache.http.client.HttpRequestRetryHandler#retryRequest(java.io.IOException
+     * , int, org.apache.http.protocol.HttpContext)
+     */
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        if (inMemoryAppender.getDumpTrigger().shouldDump(exception, executionCount)) {
+            String route = routeOf(context);
+            String host = hostOf(context);
+            inMemoryAppender.beginIncident(route == null ? host : route, exception, executionCount);
+            try {
+                if (route == null && inMemoryAppender.isPartitionedByConnection()) {
+                    inMemoryAppender.dumpUnanswered(host);
+                } else {
+                    inMemoryAppender.dump(route);
+                }
+            } finally {
+                inMemoryAppender.endIncident();
+            }
+        }
+
+        // the next attempt may fail before it is sent on a connection
+        context.removeAttribute(ConnectionRecordingRequestExecutor.CONNECTION_ID);
+        return delegate.retryRequest(exception, executionCount, context);
+    }
+
+    /**
+     * @return the partition the failed request's events are in, or
+     *         <code>null</code> if it can't be determined
+     */
+    String routeOf(HttpContext context) {
+        if (inMemoryAppender.isPartitionedByConnection()) {
+            return connectionOf(context);
+        }
+        return inMemoryAppender.routeOf(hostOf(context));
+    }
+
+    /**
+     * @return the id recorded by a {@link ConnectionRecordingRequestExecutor},
+     *         otherwise that of the context's connection if it is still
+     *         attached, otherwise <code>null</code>
+     */
+    private static String connectionOf(HttpContext context) {
+        Object recorded = context.getAttribute(ConnectionRecordingRequestExecutor.CONNECTION_ID);
+        if (recorded instanceof String) {
+            return (String) recorded;
+        }
+
+        HttpConnection connection = HttpClientContext.adapt(context).getConnection();
+        if (!(connection instanceof ManagedHttpClientConnection)) {
+            return null;
+        }
+        try {
+            return ((ManagedHttpClientConnection) connection).getId();
+        } catch (ConnectionShutdownException e) {
+            // aborted and released to the pool
+            return null;
+        }
+    }
+
+    /**
+     * @return the <code>host:port</code> the failed request was sent to, or
+     *         <code>null</code> if it can't be determined
+     */
+    private static String hostOf(HttpContext context) {
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        RouteInfo route = clientContext.getHttpRoute();
+        HttpHost target = route == null ? clientContext.getTargetHost() : route.getTargetHost();
+        if (target == null) {
+            return null;
+        }
+        return target.getPort() < 0 ? target.getHostName() : Routes.of(target.getHostName(), target.getPort());
+    }
+
+    /**
+     * @return the {@link InMemoryAppender} this handler dumps
+     */
+    protected InMemoryAppender getInMemoryAppender() {
+        return inMemoryAppender;
+    }
+}
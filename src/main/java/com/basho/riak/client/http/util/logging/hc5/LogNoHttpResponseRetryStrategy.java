@@ -0,0 +1,166 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.hc5;
+
+import java.io.IOException;
+
+import org.apache.hc.client5.http.HttpRequestRetryStrategy;
+import org.apache.hc.client5.http.RouteInfo;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.NoHttpResponseException;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.net.URIAuthority;
+import org.apache.hc.core5.util.TimeValue;
+
+import com.basho.riak.client.http.util.logging.InMemoryAppender;
+import com.basho.riak.client.http.util.logging.LogNoHttpResponseRetryHandler;
+import com.basho.riak.client.http.util.logging.Routes;
+
+/**
+ * The HttpClient 5.x equivalent of {@link LogNoHttpResponseRetryHandler}, for
+ * both the classic and the async client: an {@link HttpRequestRetryStrategy}
+ * that flushes the {@link InMemoryAppender} on the
+ * <code>org.apache.hc.client5.http.wire</code> logger when the appender's
+ * trigger says so (by default on a {@link NoHttpResponseException}), then
+ * delegates, by default to the {@link DefaultHttpRequestRetryStrategy}.
+ * <p>
+ * The async client runs thousands of connections on a few I/O threads, so
+ * thread or MDC partitions don't separate its requests. But HttpClient 5.x
+ * prefixes each wire log line with its connection's id, so partition the
+ * appender by it, with
+ * <code>log4j.appender.InMem.PartitionKey=wire.connection</code>. HttpClient
+ * 5.x doesn't tell a retry strategy which connection failed, so every
+ * connection whose latest request went to the failed host and is still
+ * unanswered is dumped (see {@link InMemoryAppender#dumpUnanswered(String)}),
+ * each on its own. If the appender is partitioned by an MDC key (classic
+ * client only) the failed request's route is dumped, otherwise everything.
+ * </p>
+ * 
+ * <pre>
+ * HttpAsyncClients.custom().setRetryStrategy(new LogNoHttpResponseRetryStrategy()).build();
+ * </pre>
+ * 
+ * @author russell
+ * 
+ */
+public class LogNoHttpResponseRetryStrategy implements HttpRequestRetryStrategy {
+
+    /** The logger HttpClient 5.x logs the wire to */
+    public static final String WIRE_LOGGER = "org.apache.hc.client5.http.wire";
+
+    private final InMemoryAppender inMemoryAppender;
+    private final HttpRequestRetryStrategy delegate;
+
+    /**
+     * Create a strategy which dumps the appender named
+     * {@link InMemoryAppender#DEFAULT_NAME}
+     */
+    public LogNoHttpResponseRetryStrategy() {
+        this(InMemoryAppender.DEFAULT_NAME);
+    }
+
+    /**
+     * @param inMemAppenderName
+     *            the name of the "org.apache.hc.client5.http.wire" appender
+     *            to dump
+     */
+    public LogNoHttpResponseRetryStrategy(String inMemAppenderName) {
+        this(inMemAppenderName, DefaultHttpRequestRetryStrategy.INSTANCE);
+    }
+
+    /**
+     * @param inMemAppenderName
+     *            the name of the "org.apache.hc.client5.http.wire" appender
+     *            to dump
+     * @param delegate
+     *            decides whether, and when, to retry
+     */
+    public LogNoHttpResponseRetryStrategy(String inMemAppenderName, HttpRequestRetryStrategy delegate) {
+        this.inMemoryAppender = InMemoryAppender.lookup(WIRE_LOGGER, inMemAppenderName);
+        this.delegate = delegate;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.apache.hc.client5.http.HttpRequestRetryStrategy#retryRequest(org.apache
+     * .hc.core5.http.HttpRequest, java.io.IOException, int,
+     * org.apache.hc.core5.http.protocol.HttpContext)
+     */
+    @Override public boolean retryRequest(HttpRequest request, IOException exception, int execCount,
+                                          HttpContext context) {
+        if (inMemoryAppender.getDumpTrigger().shouldDump(exception, execCount)) {
+            String host = hostOf(request, context);
+            inMemoryAppender.beginIncident(host, exception, execCount);
+            try {
+                if (inMemoryAppender.isPartitionedByConnection()) {
+                    inMemoryAppender.dumpUnanswered(host);
+                } else {
+                    inMemoryAppender.dump(inMemoryAppender.routeOf(host));
+                }
+            } finally {
+                inMemoryAppender.endIncident();
+            }
+        }
+
+        return delegate.retryRequest(request, exception, execCount, context);
+    }
+
+    @Override public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
+        return delegate.retryRequest(response, execCount, context);
+    }
+
+    @Override public TimeValue getRetryInterval(HttpRequest request, IOException exception, int execCount,
+                                                HttpContext context) {
+        return delegate.getRetryInterval(request, exception, execCount, context);
+    }
+
+    @Override public TimeValue getRetryInterval(HttpResponse response, int execCount, HttpContext context) {
+        return delegate.getRetryInterval(response, execCount, context);
+    }
+
+    /**
+     * @return the <code>host:port</code> the failed request was sent to, or
+     *         <code>null</code> if it can't be determined
+     */
+    static String hostOf(HttpRequest request, HttpContext context) {
+        RouteInfo route = HttpClientContext.adapt(context).getHttpRoute();
+        if (route != null && route.getTargetHost() != null) {
+            HttpHost target = route.getTargetHost();
+            return hostOf(target.getHostName(), target.getPort());
+        }
+
+        URIAuthority authority = request == null ? null : request.getAuthority();
+        if (authority != null) {
+            return hostOf(authority.getHostName(), authority.getPort());
+        }
+        return null;
+    }
+
+    private static String hostOf(String hostName, int port) {
+        return port < 0 ? hostName : Routes.of(hostName, port);
+    }
+
+    /**
+     * @return the {@link InMemoryAppender} this strategy dumps
+     */
+    protected InMemoryAppender getInMemoryAppender() {
+        return inMemoryAppender;
+    }
+}
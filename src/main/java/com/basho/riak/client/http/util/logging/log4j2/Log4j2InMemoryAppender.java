@@ -0,0 +1,220 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.log4j2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+
+import com.basho.riak.client.http.util.logging.InMemoryAppender;
+import com.basho.riak.client.http.util.logging.core.DumpLedger;
+import com.basho.riak.client.http.util.logging.core.DumpRange;
+import com.basho.riak.client.http.util.logging.core.SequencedRing;
+
+/**
+ * The Log4j 2 equivalent of the log4j 1.2 {@link InMemoryAppender}, on the
+ * same {@link SequencedRing} buffer engine and {@link DumpLedger} bookkeeping,
+ * so it only adapts Log4j 2's events to them.
+ * <p>
+ * Every slot is allocated up front and each appended {@link LogEvent} is
+ * copied into one (see {@link WireRecord}), so appending is garbage free and
+ * safe with Log4j 2's reused mutable events. <code>dump()</code> flushes the
+ * buffer, oldest first after a summary line, to the logger named
+ * <code>delegateLoggerName</code>'s appenders, whatever its level, as the
+ * log4j 1.2 appender does; only dumping allocates. Dumping copies the
+ * slots out, and frees them, before it flushes, so appends made meanwhile
+ * always find a slot.
+ * </p>
+ * <p>
+ * Usually configured in log4j2.xml:
+ *
+ * <pre>
+ * &lt;InMemory name="InMem" capacity="1000" delegateLoggerName="basho.WireSink"/&gt;
+ * </pre>
+ *
+ * </p>
+ *
+ * @author russell
+ *
+ */
+@Plugin(name = "InMemory", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class Log4j2InMemoryAppender extends AbstractAppender {
+
+    public static final String DEFAULT_DELEGATE = "basho.WireSink";
+
+    private final ReentrantLock bufferLock = new ReentrantLock();
+    private final String delegateLoggerName;
+    private final SequencedRing<WireRecord> buffer;
+    private final ArrayDeque<WireRecord> free;
+    private final DumpLedger ledger = new DumpLedger();
+
+    private Log4j2InMemoryAppender(String name, Filter filter, int capacity, String delegateLoggerName) {
+        super(name, filter, null, true, Property.EMPTY_ARRAY);
+        this.delegateLoggerName = delegateLoggerName;
+        this.buffer = new SequencedRing<WireRecord>(capacity);
+        this.free = new ArrayDeque<WireRecord>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new WireRecord());
+        }
+    }
+
+    /**
+     * @param name
+     *            the appender's name
+     * @param capacity
+     *            the number of events to hold, defaults to 1000
+     * @param delegateLoggerName
+     *            the logger <code>dump</code> flushes to, defaults to
+     *            "basho.WireSink"
+     * @param filter
+     * @return a new appender
+     */
+    @PluginFactory public static Log4j2InMemoryAppender createAppender(@PluginAttribute("name") String name,
+            @PluginAttribute(value = "capacity", defaultInt = 1000) int capacity,
+            @PluginAttribute(value = "delegateLoggerName", defaultString = DEFAULT_DELEGATE) String delegateLoggerName,
+            @PluginElement("Filter") Filter filter) {
+        if (name == null) {
+            LOGGER.error("No name provided for InMemory appender");
+            return null;
+        }
+        if (capacity < 1) {
+            LOGGER.error("InMemory appender " + name + " needs a capacity of at least 1, not " + capacity);
+            return null;
+        }
+        return new Log4j2InMemoryAppender(name, filter, capacity, delegateLoggerName);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.apache.logging.log4j.core.Appender#append(org.apache.logging.log4j
+     * .core.LogEvent)
+     */
+    public void append(LogEvent event) {
+        long seq = ledger.nextSequence();
+        bufferLock.lock();
+        try {
+            WireRecord slot;
+            if (buffer.size() >= buffer.getCapacity()) {
+                slot = buffer.poll();
+                ledger.countEviction();
+            } else {
+                slot = free.poll();
+            }
+            slot.copy(event);
+            buffer.offer(slot, seq);
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the buffer to the logger named <code>delegateLoggerName</code>
+     */
+    public void dump() {
+        List<LogEvent> drained;
+        DumpRange range;
+
+        bufferLock.lock();
+        try {
+            List<WireRecord> records = new ArrayList<WireRecord>(buffer.size());
+            range = ledger.drain(Collections.singletonList(buffer), records);
+            drained = new ArrayList<LogEvent>(records.size());
+            for (WireRecord record : records) {
+                drained.add(record.toLogEvent());
+                record.clear();
+                free.add(record);
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+
+        flush(drained, range);
+    }
+
+    /**
+     * @return the sequence number of the most recently appended event
+     */
+    public long getSequence() {
+        return ledger.getSequence();
+    }
+
+    /**
+     * @return the number of events evicted, never dumped, since the appender
+     *         was created
+     */
+    public long getEvictedCount() {
+        return ledger.getEvictedCount();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.apache.logging.log4j.core.AbstractLifeCycle#stop()
+     */
+    @Override public void stop() {
+        super.stop();
+        bufferLock.lock();
+        try {
+            WireRecord record;
+            while ((record = buffer.poll()) != null) {
+                record.clear();
+                free.add(record);
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    private void flush(List<LogEvent> drained, DumpRange range) {
+        if (range.isEmpty()) {
+            return;
+        }
+
+        // straight to the delegate's config, as the events are, so the
+        // summary isn't filtered out by the delegate's level alone
+        org.apache.logging.log4j.core.Logger delegate = LoggerContext.getContext(false).getLogger(delegateLoggerName);
+        long span = drained.isEmpty() ? 0 : drained.get(drained.size() - 1).getTimeMillis()
+                                            - drained.get(0).getTimeMillis();
+        delegate.get().log(summaryEvent(range.summary(getName(), span)));
+
+        for (LogEvent event : drained) {
+            delegate.get().log(event);
+        }
+    }
+
+    private LogEvent summaryEvent(String summary) {
+        return Log4jLogEvent.newBuilder().setLoggerName(delegateLoggerName)
+                            .setLoggerFqcn(Log4j2InMemoryAppender.class.getName()).setLevel(Level.INFO)
+                            .setMessage(new SimpleMessage(summary)).setTimeMillis(System.currentTimeMillis()).build();
+    }
+}
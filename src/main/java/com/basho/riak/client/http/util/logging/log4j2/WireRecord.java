@@ -0,0 +1,101 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.log4j2;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.SortedArrayStringMap;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+/**
+ * A preallocated ring slot holding a copy of a {@link LogEvent}.
+ * <p>
+ * Log4j 2 reuses its events (and their messages) in garbage free mode, so
+ * the buffer can't keep the event itself. Copying into a slot formats the
+ * message into the slot's own {@link StringBuilder} and copies the context
+ * data into its own map, neither allocates once they have grown to fit.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+final class WireRecord {
+
+    private static final int INITIAL_MESSAGE_CAPACITY = 128;
+
+    private final StringBuilder message = new StringBuilder(INITIAL_MESSAGE_CAPACITY);
+    private final SortedArrayStringMap contextData = new SortedArrayStringMap();
+    private String loggerName;
+    private String loggerFqcn;
+    private Level level;
+    private String threadName;
+    private long timeMillis;
+    private Throwable thrown;
+
+    /**
+     * Overwrite this slot with a copy of <code>event</code>
+     */
+    void copy(LogEvent event) {
+        loggerName = event.getLoggerName();
+        loggerFqcn = event.getLoggerFqcn();
+        level = event.getLevel();
+        threadName = event.getThreadName();
+        timeMillis = event.getTimeMillis();
+        thrown = event.getThrown();
+
+        message.setLength(0);
+        Message m = event.getMessage();
+        if (m instanceof StringBuilderFormattable) {
+            ((StringBuilderFormattable) m).formatTo(message);
+        } else if (m != null) {
+            message.append(m.getFormattedMessage());
+        }
+
+        contextData.clear();
+        if (event.getContextData() != null) {
+            contextData.putAll(event.getContextData());
+        }
+    }
+
+    /**
+     * Forget the copied event, but keep the slot's storage
+     */
+    void clear() {
+        message.setLength(0);
+        contextData.clear();
+        loggerName = null;
+        loggerFqcn = null;
+        level = null;
+        threadName = null;
+        thrown = null;
+    }
+
+    long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return an immutable {@link LogEvent} of the copy, allocated, for
+     *         dumping
+     */
+    LogEvent toLogEvent() {
+        return Log4jLogEvent.newBuilder().setLoggerName(loggerName).setLoggerFqcn(loggerFqcn).setLevel(level)
+                            .setMessage(new SimpleMessage(message.toString())).setThrown(thrown)
+                            .setThreadName(threadName).setTimeMillis(timeMillis)
+                            .setContextData(new SortedArrayStringMap(contextData)).build();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author russell
+ *
+ */
+public class AdaptiveRetryHandlerTest {
+
+    private static final String APPENDER_NAME = "adaptiveTest";
+
+    private CountingAppender appender;
+    private AdaptiveRetryHandler handler;
+
+    @Before public void setUp() {
+        appender = new CountingAppender();
+        appender.setName(APPENDER_NAME);
+        Logger.getLogger("httpclient.wire").addAppender(appender);
+        handler = new AdaptiveRetryHandler(APPENDER_NAME);
+        handler.setBaseBackoffMillis(1);
+        handler.setMaxBackoffMillis(2);
+    }
+
+    @After public void tearDown() {
+        Logger.getLogger("httpclient.wire").removeAppender(appender);
+    }
+
+    /**
+     * Failures in quick succession are one burst, and dump once.
+     */
+    @Test public void dumpsOncePerBurst() {
+        GetMethod method = new GetMethod("http://node1:8098/riak");
+
+        assertTrue(handler.retryMethod(method, new NoHttpResponseException(), 1));
+        assertTrue(handler.retryMethod(method, new ConnectException(), 2));
+        assertEquals(1, appender.dumps);
+
+        HostStatistics stats = handler.getHostStatistics("node1:8098");
+        assertEquals(2, stats.getFailures());
+        assertEquals(2, stats.getRetries());
+        assertEquals(1, stats.getDumps());
+
+        handler.setBurstMillis(-1);
+        handler.retryMethod(method, new NoHttpResponseException(), 1);
+        assertEquals(2, appender.dumps);
+    }
+
+    /**
+     * Once a host is over its budget retries to it are refused, other hosts
+     * are unaffected.
+     */
+    @Test public void failsFastOverBudget() {
+        handler.setFailureBudget(2, 60000);
+        GetMethod failing = new GetMethod("http://node1:8098/riak");
+
+        assertTrue(handler.retryMethod(failing, new NoHttpResponseException(), 1));
+        assertTrue(handler.retryMethod(failing, new NoHttpResponseException(), 1));
+        assertFalse(handler.retryMethod(failing, new NoHttpResponseException(), 1));
+        assertEquals(1, handler.getHostStatistics("node1:8098").getFastFails());
+
+        assertTrue(handler.retryMethod(new GetMethod("http://node2:8098/riak"), new NoHttpResponseException(), 1));
+        assertEquals(2, handler.getHostStatistics().size());
+    }
+
+    /**
+     * The default handler's decision still stands, and other exceptions are
+     * not counted.
+     */
+    @Test public void respectsDefaultHandler() {
+        GetMethod method = new GetMethod("http://node1:8098/riak");
+
+        assertFalse(handler.retryMethod(method, new NoHttpResponseException(), 4));
+        assertEquals(1, handler.getHostStatistics("node1:8098").getFailures());
+
+        handler.retryMethod(new GetMethod("http://node3:8098/riak"), new SocketTimeoutException(), 1);
+        assertNull(handler.getHostStatistics("node3:8098"));
+    }
+
+    /**
+     * Failures the trigger rejects are counted but don't dump, the first one
+     * it accepts in the burst does.
+     */
+    @Test public void dumpsOnlyWhenTriggerAccepts() {
+        GetMethod method = new GetMethod("http://node1:8098/riak");
+
+        assertTrue(handler.retryMethod(method, new ConnectException(), 1));
+        assertEquals(0, appender.dumps);
+        assertEquals(0, handler.getHostStatistics("node1:8098").getDumps());
+
+        assertTrue(handler.retryMethod(method, new NoHttpResponseException(), 2));
+        assertTrue(handler.retryMethod(method, new NoHttpResponseException(), 3));
+        assertEquals(1, appender.dumps);
+
+        appender.getDumpTrigger().setMinExecutionCount(5);
+        handler.setBurstMillis(-1);
+        handler.retryMethod(method, new NoHttpResponseException(), 1);
+        assertEquals(1, appender.dumps);
+        assertEquals(4, handler.getHostStatistics("node1:8098").getFailures());
+    }
+
+    /**
+     * A budget the window could never exceed is refused.
+     */
+    @Test(expected = IllegalArgumentException.class) public void refusesUnreachableBudget() {
+        handler.setFailureBudget(HostStatistics.WINDOW_SLOTS, 60000);
+    }
+
+    /**
+     * The backoff ceiling doubles per execution, up to the maximum.
+     */
+    @Test public void backoffCeilingDoubles() {
+        handler.setBaseBackoffMillis(50);
+        handler.setMaxBackoffMillis(300);
+        assertEquals(50, handler.backoffCeiling(1));
+        assertEquals(100, handler.backoffCeiling(2));
+        assertEquals(200, handler.backoffCeiling(3));
+        assertEquals(300, handler.backoffCeiling(4));
+        assertEquals(300, handler.backoffCeiling(100));
+    }
+
+    private static final class CountingAppender extends InMemoryAppender {
+        private int dumps = 0;
+
+        @Override public void dump() {
+            dumps++;
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basho.riak.client.http.util.logging.hc4.ConnectionRecordingRequestExecutor;
+import com.basho.riak.client.http.util.logging.hc4.LogNoHttpResponseRequestRetryHandler;
+import com.basho.riak.client.http.util.logging.hc5.LogNoHttpResponseRetryStrategy;
+
+/**
+ * Fails the build when the append or dump paths allocate more per operation
+ * than they did.
+ * <p>
+ * Each operation is warmed up, then run many times on this thread while
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}
+ * counts the bytes allocated. Events are made up front so only the
+ * appender's own allocation is measured. Whole exchanges are also run
+ * through the body limit, request timing, partitioning by connection and
+ * the HttpClient 4.x and 5.x retry paths, each against its own budget. If
+ * you make a path allocate less, lower its budget.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public class AllocationBudgetTest {
+
+    private static final int CAPACITY = 1000;
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    /** Appending below capacity, bytes per append */
+    private static final long APPEND_BUDGET = 8;
+    /** Appending to a full buffer, evicting the oldest event, per append */
+    private static final long EVICTING_APPEND_BUDGET = 8;
+    /** Dumping, per dump: fixed cost plus a per event cost */
+    private static final long DUMP_FIXED_BUDGET = 768;
+    private static final long DUMP_PER_EVENT_BUDGET = 8;
+    /** A retry handler call that dumps an empty buffer */
+    private static final long RETRY_BUDGET = 512;
+    /*
+     * Whole exchanges, a GET and its response of 6 header lines and 8 body
+     * chunks, per exchange. Each configuration that does more per event has
+     * a budget of its own, measured with some headroom.
+     */
+    private static final int EXCHANGE_EVENTS = 14;
+    /** Plain buffering, as for single appends */
+    private static final long EXCHANGE_BUDGET = EXCHANGE_EVENTS * APPEND_BUDGET;
+    /**
+     * <code>maxBodyBytes</code>: the cut chunk and the summary of the cut are
+     * new events, with new strings
+     */
+    private static final long BODY_LIMIT_BUDGET = 4096;
+    /** <code>requestTimings</code>: a timing for each request */
+    private static final long REQUEST_TIMING_BUDGET = 384;
+    /** Partitioned by connection: the id is cut from every line */
+    private static final long PARTITIONED_BUDGET = 1536;
+    /**
+     * An HttpClient 4.x or 5.x retry handler call, appending a request
+     * on the failed connection and dumping it
+     */
+    private static final long HC_RETRY_BUDGET = 3584;
+    private static final int BODY_CHUNKS = EXCHANGE_EVENTS - 6;
+    private static final int CHUNK_BYTES = 512;
+
+    private static final String DELEGATE = "allocationBudgetTest.sink";
+
+    private com.sun.management.ThreadMXBean threads;
+    private InMemoryAppender appender;
+    private LoggingEvent[] events;
+
+    @Before public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        appender = new InMemoryAppender();
+        appender.setName("allocation");
+        appender.setCapacity(CAPACITY);
+        appender.setDelegateName(DELEGATE);
+        Logger.getLogger(DELEGATE).setAdditivity(false);
+        Logger.getLogger(DELEGATE).setLevel(Level.OFF);
+
+        Logger wire = Logger.getLogger("httpclient.wire.content");
+        events = new LoggingEvent[CAPACITY];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = new LoggingEvent(Logger.class.getName(), wire, Level.DEBUG, "<< \"chunk " + i + "\"", null);
+            events[i].getThreadName();
+        }
+    }
+
+    @After public void tearDown() {
+        Logger.getLogger(DELEGATE).setLevel(null);
+    }
+
+    /**
+     * Appending to a buffer with room allocates nothing.
+     */
+    @Test public void appendBelowCapacity() {
+        Operation belowCapacity = new Operation() {
+            int i = 0;
+
+            public void run() {
+                appender.append(events[i]);
+                if (++i == CAPACITY) {
+                    i = 0;
+                    appender.clear();
+                }
+            }
+        };
+        assertWithinBudget("append", belowCapacity, ITERATIONS, APPEND_BUDGET);
+    }
+
+    /**
+     * Appending to a full buffer, evicting as it goes, allocates nothing.
+     */
+    @Test public void appendEvicting() {
+        fill();
+        Operation evicting = new Operation() {
+            int i = 0;
+
+            public void run() {
+                appender.append(events[i]);
+                i = (i + 1) % CAPACITY;
+            }
+        };
+        assertWithinBudget("evicting append", evicting, ITERATIONS, EVICTING_APPEND_BUDGET);
+    }
+
+    /**
+     * A dump costs a fixed amount plus a little per event dumped.
+     */
+    @Test public void dumpBySize() {
+        for (final int size : new int[] { 0, 10, 100, CAPACITY }) {
+            Operation dump = new Operation() {
+                public void run() {
+                    for (int i = 0; i < size; i++) {
+                        appender.append(events[i]);
+                    }
+                    appender.dump();
+                }
+            };
+            assertWithinBudget("dump of " + size, dump, ITERATIONS / Math.max(size, 100),
+                               DUMP_FIXED_BUDGET + size * DUMP_PER_EVENT_BUDGET);
+        }
+    }
+
+    /**
+     * The retry handler's path, from exception to dump.
+     */
+    @Test public void retryHandler() {
+        Logger.getLogger("httpclient.wire").addAppender(appender);
+        try {
+            final LogNoHttpResponseRetryHandler handler = new LogNoHttpResponseRetryHandler("allocation");
+            final GetMethod method = new GetMethod("http://127.0.0.1:8098/riak/bucket/key");
+            final NoHttpResponseException exception = new NoHttpResponseException();
+
+            Operation retry = new Operation() {
+                public void run() {
+                    handler.retryMethod(method, exception, 1);
+                }
+            };
+            assertWithinBudget("retryMethod", retry, ITERATIONS / 10, RETRY_BUDGET);
+        } finally {
+            Logger.getLogger("httpclient.wire").removeAppender(appender);
+        }
+    }
+
+    /**
+     * Appending a whole exchange, headers and body, on a commons-httpclient
+     * 3.x connection.
+     */
+    @Test public void appendExchange() {
+        assertWithinBudget("exchange", appending(exchange("httpclient.wire.header", "httpclient.wire.content", "")),
+                           ITERATIONS / 20, EXCHANGE_BUDGET);
+    }
+
+    /**
+     * Cutting bodies to <code>maxBodyBytes</code>.
+     */
+    @Test public void appendBodyLimited() {
+        appender.setMaxBodyBytes(CHUNK_BYTES * 2 + CHUNK_BYTES / 2);
+        assertWithinBudget("body limited exchange",
+                           appending(exchange("httpclient.wire.header", "httpclient.wire.content", "")),
+                           ITERATIONS / 20, BODY_LIMIT_BUDGET);
+    }
+
+    /**
+     * Timing each request with <code>requestTimings</code>.
+     */
+    @Test public void appendTimed() {
+        appender.setRequestTimings(true);
+        assertWithinBudget("timed exchange",
+                           appending(exchange("httpclient.wire.header", "httpclient.wire.content", "")),
+                           ITERATIONS / 20, REQUEST_TIMING_BUDGET);
+    }
+
+    /**
+     * Partitioning HttpClient 4.x wire lines by their connection id.
+     */
+    @Test public void appendPartitioned() {
+        appender.setPartitionKey(InMemoryAppender.CONNECTION_KEY);
+        LoggingEvent[] exchange = exchange(LogNoHttpResponseRequestRetryHandler.WIRE_LOGGER, LogNoHttpResponseRequestRetryHandler.WIRE_LOGGER,
+                                           "http-outgoing-0 ");
+        assertWithinBudget("partitioned exchange", appending(exchange), ITERATIONS / 20, PARTITIONED_BUDGET);
+    }
+
+    /**
+     * The HttpClient 4.x retry handler's path, dumping the failed
+     * connection.
+     */
+    @Test public void hc4RetryHandler() {
+        appender.setPartitionKey(InMemoryAppender.CONNECTION_KEY);
+        Logger wire = Logger.getLogger(LogNoHttpResponseRequestRetryHandler.WIRE_LOGGER);
+        wire.addAppender(appender);
+        try {
+            final LogNoHttpResponseRequestRetryHandler handler = new LogNoHttpResponseRequestRetryHandler(
+                    "allocation", new HttpRequestRetryHandler() {
+                        public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+                            return true;
+                        }
+                    });
+            final HttpContext context = new BasicHttpContext();
+            final org.apache.http.NoHttpResponseException exception = new org.apache.http.NoHttpResponseException(
+                    "gone");
+            final Operation append = appending(exchange(LogNoHttpResponseRequestRetryHandler.WIRE_LOGGER,
+                                                        LogNoHttpResponseRequestRetryHandler.WIRE_LOGGER, "http-outgoing-0 "));
+
+            Operation retry = new Operation() {
+                public void run() {
+                    append.run();
+                    context.setAttribute(ConnectionRecordingRequestExecutor.CONNECTION_ID, "http-outgoing-0");
+                    handler.retryRequest(exception, 1, context);
+                }
+            };
+            assertWithinBudget("hc4 retryRequest", retry, ITERATIONS / 20, HC_RETRY_BUDGET);
+        } finally {
+            wire.removeAppender(appender);
+        }
+    }
+
+    /**
+     * The HttpClient 5.x retry strategy's path, dumping the connections
+     * left unanswered by the failed host.
+     */
+    @Test public void hc5RetryStrategy() {
+        appender.setPartitionKey(InMemoryAppender.CONNECTION_KEY);
+        Logger wire = Logger.getLogger(LogNoHttpResponseRetryStrategy.WIRE_LOGGER);
+        wire.addAppender(appender);
+        try {
+            final LogNoHttpResponseRetryStrategy strategy = new LogNoHttpResponseRetryStrategy(
+                    "allocation", new DefaultHttpRequestRetryStrategy(1, TimeValue.ZERO_MILLISECONDS));
+            final HttpClientContext context = HttpClientContext.create();
+            context.setAttribute(HttpClientContext.HTTP_ROUTE, new HttpRoute(new HttpHost("http", "127.0.0.1",
+                                                                                          8098)));
+            final BasicHttpRequest request = new BasicHttpRequest("GET", "/riak/bucket/key");
+            final org.apache.hc.core5.http.NoHttpResponseException exception = new org.apache.hc.core5.http.NoHttpResponseException(
+                    "gone");
+            // answered up to the body, then dropped
+            LoggingEvent[] exchange = exchange(LogNoHttpResponseRetryStrategy.WIRE_LOGGER, LogNoHttpResponseRetryStrategy.WIRE_LOGGER,
+                                               "http-outgoing-0 ");
+            LoggingEvent[] unanswered = new LoggingEvent[3];
+            System.arraycopy(exchange, 0, unanswered, 0, unanswered.length);
+            final Operation append = appending(unanswered);
+
+            Operation retry = new Operation() {
+                public void run() {
+                    append.run();
+                    strategy.retryRequest(request, exception, 1, context);
+                }
+            };
+            assertWithinBudget("hc5 retryRequest", retry, ITERATIONS / 20, HC_RETRY_BUDGET);
+        } finally {
+            wire.removeAppender(appender);
+        }
+    }
+
+    /**
+     * @return an operation that appends <code>exchange</code>
+     */
+    private Operation appending(final LoggingEvent[] exchange) {
+        return new Operation() {
+            int rounds = 0;
+
+            public void run() {
+                for (LoggingEvent e : exchange) {
+                    appender.append(e);
+                }
+                if (++rounds % (CAPACITY / exchange.length) == 0) {
+                    appender.clear();
+                }
+            }
+        };
+    }
+
+    /**
+     * A GET answered with a body of {@link #BODY_CHUNKS} chunks, logged as
+     * HttpClient would on <code>header</code> and <code>content</code> with
+     * each line after <code>connection</code>
+     */
+    private static LoggingEvent[] exchange(String header, String content, String connection) {
+        StringBuilder chunk = new StringBuilder(CHUNK_BYTES);
+        while (chunk.length() < CHUNK_BYTES) {
+            chunk.append("0123456789abcdef");
+        }
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+        events.add(wire(header, connection + ">> \"GET /riak/bucket/key HTTP/1.1[\\r][\\n]\""));
+        events.add(wire(header, connection + ">> \"Host: 127.0.0.1:8098[\\r][\\n]\""));
+        events.add(wire(header, connection + ">> \"[\\r][\\n]\""));
+        events.add(wire(header, connection + "<< \"HTTP/1.1 200 OK[\\r][\\n]\""));
+        events.add(wire(header, connection + "<< \"Content-Length: " + BODY_CHUNKS * CHUNK_BYTES + "[\\r][\\n]\""));
+        events.add(wire(header, connection + "<< \"[\\r][\\n]\""));
+        for (int i = 0; i < BODY_CHUNKS; i++) {
+            events.add(wire(content, connection + "<< \"" + chunk + "\""));
+        }
+        return events.toArray(new LoggingEvent[events.size()]);
+    }
+
+    private static LoggingEvent wire(String logger, String message) {
+        LoggingEvent event = new LoggingEvent(Logger.class.getName(), Logger.getLogger(logger), Level.DEBUG, message,
+                                              null);
+        event.getThreadName();
+        return event;
+    }
+
+    private void fill() {
+        for (LoggingEvent e : events) {
+            appender.append(e);
+        }
+    }
+
+    private void assertWithinBudget(String name, Operation operation, int iterations, long budget) {
+        for (int i = 0; i < WARMUP; i++) {
+            operation.run();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        long perOperation = (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+
+        assertTrue(name + " allocated " + perOperation + " bytes per operation, budget is " + budget,
+                   perOperation <= budget);
+    }
+
+    private interface Operation {
+        void run();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips {@link LoggingEvent}s through {@link BinaryDumpWriter},
+ * {@link BinaryDumpReader} and {@link DumpDecoder}.
+ *
+ * @author russell
+ *
+ */
+public class BinaryDumpTest {
+
+    private static final int EVENTS = 100000;
+
+    private File dumpFile;
+    private InMemoryAppender inMemoryAppender;
+
+    @Before public void setUp() throws IOException {
+        dumpFile = File.createTempFile("inmem", BinaryDumpWriter.FILE_SUFFIX);
+        inMemoryAppender = new InMemoryAppender();
+        inMemoryAppender.setCapacity(EVENTS + 1);
+        inMemoryAppender.setDumpSummary(false);
+    }
+
+    @After public void tearDown() {
+        dumpFile.delete();
+    }
+
+    /**
+     * Every field the decoder needs must survive the round trip, in order.
+     */
+    @Test public void roundTripsEvents() throws IOException {
+        Logger wire = Logger.getLogger("httpclient.wire.content");
+        long start = System.currentTimeMillis();
+
+        for (int i = 0; i < EVENTS; i++) {
+            inMemoryAppender.append(event(wire, start + i / 10, Level.DEBUG, "thread-" + (i % 4), "<< \"chunk " + i
+                                                                                            + "\""));
+        }
+        inMemoryAppender.append(new LoggingEvent(Logger.class.getName(), wire, start, Level.ERROR, "failed",
+                                                 new IOException("boom")));
+
+        assertEquals(EVENTS + 1, inMemoryAppender.dump(dumpFile));
+        assertTrue("Expected the binary dump to be compact", dumpFile.length() < EVENTS * 25);
+
+        BinaryDumpReader reader = new BinaryDumpReader(new FileInputStream(dumpFile));
+        try {
+            for (int i = 0; i < EVENTS; i++) {
+                LoggingEvent e = reader.next();
+                assertEquals("httpclient.wire.content", e.getLoggerName());
+                assertEquals("thread-" + (i % 4), e.getThreadName());
+                assertEquals(start + i / 10, e.getTimeStamp());
+                assertEquals(Level.DEBUG, e.getLevel());
+                assertEquals("<< \"chunk " + i + "\"", e.getRenderedMessage());
+            }
+            LoggingEvent error = reader.next();
+            assertEquals(Level.ERROR, error.getLevel());
+            assertEquals(start, error.getTimeStamp());
+            assertTrue(error.getThrowableStrRep()[0].contains("boom"));
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The decoder renders with the given layout and applies its filters.
+     */
+    @Test public void decoderFiltersAndRenders() throws IOException {
+        Logger wire = Logger.getLogger("httpclient.wire.header");
+
+        inMemoryAppender.append(event(wire, 1000, Level.DEBUG, "a", "one"));
+        inMemoryAppender.append(event(wire, 2000, Level.DEBUG, "b", "two"));
+        inMemoryAppender.append(event(wire, 3000, Level.WARN, "a", "three"));
+        inMemoryAppender.append(event(wire, 4000, Level.DEBUG, "a", "four"));
+        inMemoryAppender.dump(dumpFile);
+
+        DumpDecoder decoder = new DumpDecoder();
+        decoder.setLayout(new PatternLayout("%t:%m;"));
+        decoder.setThread("a");
+        decoder.setTimeRange(1500, 5000);
+
+        assertEquals("a:three;a:four;", decode(decoder));
+
+        decoder.setLevel(Level.WARN);
+        assertEquals("a:three;", decode(decoder));
+    }
+
+    /**
+     * Tests that <code>null</code> and empty strings stay apart, and that
+     * the MDC and NDC survive for the decoder's <code>%X</code> and
+     * <code>%x</code>.
+     */
+    @Test public void roundTripsNullsMdcAndNdc() throws IOException {
+        Logger wire = Logger.getLogger("httpclient.wire.header");
+        Map<String, String> mdc = new HashMap<String, String>();
+        mdc.put("route", "riak1:8098");
+        inMemoryAppender.append(new LoggingEvent(Logger.class.getName(), wire, 1000, Level.DEBUG, "", "a", null,
+                                                 "request 7", null, mdc));
+        inMemoryAppender.append(new LoggingEvent(Logger.class.getName(), wire, 2000, Level.DEBUG, null, "a", null,
+                                                 null, null, null));
+        inMemoryAppender.dump(dumpFile);
+
+        BinaryDumpReader reader = new BinaryDumpReader(new FileInputStream(dumpFile));
+        try {
+            LoggingEvent first = reader.next();
+            assertEquals("", first.getMessage());
+            assertEquals("request 7", first.getNDC());
+            assertEquals("riak1:8098", first.getMDC("route"));
+            LoggingEvent second = reader.next();
+            assertNull(second.getMessage());
+            assertNull(second.getNDC());
+        } finally {
+            reader.close();
+        }
+
+        DumpDecoder decoder = new DumpDecoder();
+        decoder.setLayout(new PatternLayout("%X{route}/%x;"));
+        assertEquals("riak1:8098/request 7;/;", decode(decoder));
+    }
+
+    /**
+     * Tests that a corrupt length fails as an {@link IOException}, not by
+     * allocating it.
+     */
+    @Test public void rejectsCorruptLengths() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryDumpWriter writer = new BinaryDumpWriter(bytes);
+        writer.finish();
+        byte[] header = bytes.toByteArray();
+
+        // a logger name claiming to be 2GB long
+        byte[] corrupt = new byte[header.length - 1 + 7];
+        System.arraycopy(header, 0, corrupt, 0, header.length - 1);
+        int i = header.length - 1;
+        corrupt[i++] = BinaryDumpWriter.TAG_LOGGER;
+        corrupt[i++] = 0;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = 0x07;
+
+        BinaryDumpReader reader = new BinaryDumpReader(new ByteArrayInputStream(corrupt));
+        try {
+            reader.next();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("string length"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Tests that only the current version of the format is read.
+     */
+    @Test public void rejectsOtherVersions() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryDumpWriter writer = new BinaryDumpWriter(bytes);
+        writer.finish();
+        byte[] dump = bytes.toByteArray();
+
+        for (int version : new int[] { 1, BinaryDumpWriter.VERSION + 1 }) {
+            dump[4] = (byte) version;
+            try {
+                new BinaryDumpReader(new ByteArrayInputStream(dump));
+                fail("Expected IOException for version " + version);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("version " + version));
+            }
+        }
+    }
+
+    private String decode(DumpDecoder decoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryDumpReader reader = new BinaryDumpReader(new FileInputStream(dumpFile));
+        try {
+            decoder.decode(reader, new PrintStream(bytes, true));
+        } finally {
+            reader.close();
+        }
+        return bytes.toString();
+    }
+
+    private static LoggingEvent event(Logger logger, long timestamp, Level level, String thread, String message) {
+        return new LoggingEvent(Logger.class.getName(), logger, timestamp, level, message, thread, null, null, null,
+                                null);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * With <code>maxBodyBytes</code> set, headers are kept whole and bodies cut
+ * off, with a summary of what was cut.
+ *
+ * @author russell
+ *
+ */
+public class BodyLimitTest {
+
+    private static final Logger HEADER = Logger.getLogger("httpclient.wire.header");
+    private static final Logger CONTENT = Logger.getLogger("httpclient.wire.content");
+
+    private File dumpFile;
+    private InMemoryAppender appender;
+
+    @Before public void setUp() throws IOException {
+        dumpFile = File.createTempFile("inmem", BinaryDumpWriter.FILE_SUFFIX);
+        appender = new InMemoryAppender();
+        appender.setDumpSummary(false);
+        appender.setMaxBodyBytes(10);
+    }
+
+    @After public void tearDown() {
+        dumpFile.delete();
+    }
+
+    /**
+     * Tests that the body is cut at the limit, per direction, and summarised
+     * where it is cut.
+     */
+    @Test public void truncatesBodiesKeepsHeaders() throws IOException {
+        append(HEADER, ">> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"");
+        append(HEADER, ">> \"Content-Type: text/plain[\\r][\\n]\"");
+        append(CONTENT, ">> \"0123456\"");
+        append(CONTENT, ">> \"789abcdef\"");
+        append(CONTENT, ">> \"ghijklmnopqrstuvwxyz\"");
+        append(HEADER, "<< \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(CONTENT, "<< \"[0x1f][0x8b]0123456789\"");
+
+        assertEquals(messages(">> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"", ">> \"Content-Type: text/plain[\\r][\\n]\"",
+                              ">> \"0123456\"", ">> \"789\"", ">> [body truncated at 10 bytes]",
+                              "<< \"HTTP/1.1 200 OK[\\r][\\n]\"", "<< \"[0x1f][0x8b]01234567\"",
+                              "<< [body truncated at 10 bytes]"), dump());
+        assertEquals(28, appender.getTruncatedBodyBytes());
+    }
+
+    /**
+     * Tests that each request gets its own allowance.
+     */
+    @Test public void resetsPerRequest() throws IOException {
+        append(HEADER, ">> \"GET /riak/b/k1 HTTP/1.1[\\r][\\n]\"");
+        append(CONTENT, "<< \"0123456789abc\"");
+        append(HEADER, ">> \"GET /riak/b/k2 HTTP/1.1[\\r][\\n]\"");
+        append(CONTENT, "<< \"0123456789\"");
+
+        assertEquals(messages(">> \"GET /riak/b/k1 HTTP/1.1[\\r][\\n]\"", "<< \"0123456789\"",
+                              "<< [body truncated at 10 bytes]", ">> \"GET /riak/b/k2 HTTP/1.1[\\r][\\n]\"",
+                              "<< \"0123456789\""), dump());
+    }
+
+    /**
+     * Tests that HttpClient 5.x's single wire logger has its bodies cut after
+     * the empty line ending the headers, on their connection.
+     */
+    @Test public void truncatesHttpClient5Wire() throws IOException {
+        Logger wire = Logger.getLogger("org.apache.hc.client5.http.wire");
+        append(wire, "http-outgoing-1 >> \"GET /riak/b/k HTTP/1.1[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 >> \"[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"Content-Type: text/plain[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"0123456789abc\"");
+
+        assertEquals(messages("http-outgoing-1 >> \"GET /riak/b/k HTTP/1.1[\\r][\\n]\"",
+                              "http-outgoing-1 >> \"[\\r][\\n]\"",
+                              "http-outgoing-1 << \"HTTP/1.1 200 OK[\\r][\\n]\"",
+                              "http-outgoing-1 << \"Content-Type: text/plain[\\r][\\n]\"",
+                              "http-outgoing-1 << \"[\\r][\\n]\"", "http-outgoing-1 << \"0123456789\"",
+                              "http-outgoing-1 << [body truncated at 10 bytes]"), dump());
+    }
+
+    /**
+     * Tests that bodies are counted per connection, not per thread: two
+     * connections on one thread each get their allowance, and a connection
+     * picked up by another thread keeps its count.
+     */
+    @Test public void countsPerConnection() throws Exception {
+        final Logger wire = Logger.getLogger("org.apache.http.wire");
+        append(wire, "http-outgoing-1 >> \"GET /riak/b/k1 HTTP/1.1[\\r][\\n]\"");
+        append(wire, "http-outgoing-2 >> \"GET /riak/b/k2 HTTP/1.1[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(wire, "http-outgoing-2 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"[\\r][\\n]\"");
+        append(wire, "http-outgoing-2 << \"[\\r][\\n]\"");
+        append(wire, "http-outgoing-1 << \"01234567\"");
+        append(wire, "http-outgoing-2 << \"01234567\"");
+
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                append(wire, "http-outgoing-1 << \"89abc\"");
+            }
+        });
+        other.start();
+        other.join();
+
+        assertEquals(messages("http-outgoing-1 >> \"GET /riak/b/k1 HTTP/1.1[\\r][\\n]\"",
+                              "http-outgoing-2 >> \"GET /riak/b/k2 HTTP/1.1[\\r][\\n]\"",
+                              "http-outgoing-1 << \"HTTP/1.1 200 OK[\\r][\\n]\"",
+                              "http-outgoing-2 << \"HTTP/1.1 200 OK[\\r][\\n]\"",
+                              "http-outgoing-1 << \"[\\r][\\n]\"", "http-outgoing-2 << \"[\\r][\\n]\"",
+                              "http-outgoing-1 << \"01234567\"", "http-outgoing-2 << \"01234567\"",
+                              "http-outgoing-1 << \"89\"", "http-outgoing-1 << [body truncated at 10 bytes]"),
+                     dump());
+        assertEquals(3, appender.getTruncatedBodyBytes());
+    }
+
+    private void append(Logger logger, String message) {
+        appender.append(new LoggingEvent(Logger.class.getName(), logger, Level.DEBUG, message, null));
+    }
+
+    private List<String> dump() throws IOException {
+        appender.dump(dumpFile);
+        List<String> messages = new ArrayList<String>();
+        BinaryDumpReader reader = new BinaryDumpReader(new FileInputStream(dumpFile));
+        try {
+            LoggingEvent e;
+            while ((e = reader.next()) != null) {
+                messages.add(e.getRenderedMessage());
+            }
+        } finally {
+            reader.close();
+        }
+        return messages;
+    }
+
+    private static List<String> messages(String... messages) {
+        List<String> list = new ArrayList<String>();
+        for (String message : messages) {
+            list.add(message);
+        }
+        return list;
+    }
+}
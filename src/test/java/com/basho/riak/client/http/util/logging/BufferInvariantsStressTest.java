@@ -0,0 +1,379 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+/**
+ * Randomised, adversarial interleavings of <code>append</code>,
+ * <code>dump</code>, <code>setCapacity</code> and <code>clear</code> on many
+ * threads, checking the {@link InMemoryAppender}'s buffer invariants after
+ * every round:
+ * <ul>
+ * <li>no loss: every event appended is dumped, or counted as evicted or
+ * dropped; with capacity for them all, none are evicted</li>
+ * <li>no duplication: no event is dumped twice</li>
+ * <li>FIFO per thread: each producer's events are dumped in the order it
+ * appended them</li>
+ * <li>capacity: no dump holds more events than the largest capacity set</li>
+ * </ul>
+ * <p>
+ * Each round draws its thread counts, capacity, lossy mode and how often
+ * threads yield from a seed; the scenarios explored are written to
+ * <code>target/buffer-invariants.txt</code> and a failure names its seed. Runs a few rounds in the normal build; use
+ * <code>mvn test -Pstress</code> for thousands, or
+ * <code>-Dinmem.stress.seed=...</code> to replay one.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public class BufferInvariantsStressTest {
+
+    private static final int ROUNDS = Integer.getInteger("inmem.stress.rounds", 20);
+    private static final long SEED = Long.getLong("inmem.stress.seed", System.nanoTime());
+    private static final long TIMEOUT_MILLIS = 60000;
+
+    @Test public void randomisedInterleavings() throws Exception {
+        Random seeds = new Random(SEED);
+        StringBuilder report = new StringBuilder();
+        report.append("BufferInvariantsStressTest seed=").append(SEED).append(", ").append(ROUNDS)
+              .append(" rounds\n");
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long seed = seeds.nextLong();
+            Round r = new Round(seed);
+            try {
+                r.run();
+            } catch (AssertionError e) {
+                AssertionError named = new AssertionError("round " + round + " " + r + ": " + e.getMessage());
+                named.initCause(e);
+                throw named;
+            }
+            report.append("  ").append(round).append(": ").append(r).append('\n');
+        }
+        TestReports.write("buffer-invariants.txt", report);
+    }
+
+    /**
+     * One randomised scenario
+     */
+    private static final class Round {
+
+        private final long seed;
+        private final Random random;
+        private final int producers;
+        private final int perProducer;
+        private final boolean roomForAll;
+        private final int initialCapacity;
+        private final int dumpers;
+        private final int resizers;
+        private final int clearers;
+        private final boolean lossy;
+        private final int yieldOneIn;
+
+        private final AtomicInteger maxCapacity = new AtomicInteger();
+        private int dumps;
+        private int dumped;
+        private int switches;
+        private int largestDump;
+
+        Round(long seed) {
+            this.seed = seed;
+            this.random = new Random(seed);
+            producers = 2 + random.nextInt(15);
+            perProducer = 10 + random.nextInt(1000);
+            roomForAll = random.nextInt(3) == 0;
+            initialCapacity = roomForAll ? producers * perProducer : 1 + random.nextInt(producers * perProducer);
+            dumpers = random.nextInt(4);
+            resizers = random.nextInt(3);
+            clearers = roomForAll ? 0 : random.nextInt(4) == 0 ? 1 : 0;
+            lossy = random.nextInt(4) == 0;
+            yieldOneIn = 1 + random.nextInt(64);
+        }
+
+        void run() throws Exception {
+            String sinkName = "stress.sink." + UUID.randomUUID();
+            final Sink sink = new Sink();
+            Logger sinkLogger = Logger.getLogger(sinkName);
+            sinkLogger.setAdditivity(false);
+            sinkLogger.addAppender(sink);
+
+            final InMemoryAppender appender = new InMemoryAppender();
+            appender.setName("stress");
+            appender.setDelegateName(sinkName);
+            appender.setCapacity(initialCapacity);
+            appender.setLossy(lossy);
+            maxCapacity.set(initialCapacity);
+
+            final Logger wire = Logger.getLogger("httpclient.wire.content");
+            final AtomicBoolean producing = new AtomicBoolean(true);
+            final AtomicInteger producersLeft = new AtomicInteger(producers);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            int threadCount = producers + dumpers + resizers + clearers;
+            final CyclicBarrier start = new CyclicBarrier(threadCount);
+            List<Thread> threads = new ArrayList<Thread>();
+
+            for (int p = 0; p < producers; p++) {
+                final String name = "producer-" + p;
+                final Random yields = new Random(seed + p);
+                threads.add(new Thread(new Guarded(start, failure) {
+                    void body() {
+                        for (int n = 0; n < perProducer; n++) {
+                            appender.doAppend(new LoggingEvent(Logger.class.getName(), wire, 0, Level.DEBUG, name
+                                                                                                            + ":" + n,
+                                                               name, null, null, null, null));
+                            maybeYield(yields);
+                        }
+                        if (producersLeft.decrementAndGet() == 0) {
+                            producing.set(false);
+                        }
+                    }
+                }, name));
+            }
+
+            for (int d = 0; d < dumpers; d++) {
+                final Random yields = new Random(seed - d);
+                threads.add(new Thread(new Guarded(start, failure) {
+                    void body() {
+                        while (producing.get()) {
+                            appender.dump();
+                            maybeYield(yields);
+                        }
+                    }
+                }, "dumper-" + d));
+            }
+
+            for (int c = 0; c < resizers; c++) {
+                final Random sizes = new Random(seed * 31 + c);
+                threads.add(new Thread(new Guarded(start, failure) {
+                    void body() {
+                        while (producing.get()) {
+                            int capacity = roomForAll ? initialCapacity + sizes.nextInt(initialCapacity)
+                                    : 1 + sizes.nextInt(2 * initialCapacity);
+                            try {
+                                // record first, events may arrive before
+                                // setCapacity returns
+                                raiseMax(capacity);
+                                appender.setCapacity(capacity);
+                            } catch (IllegalArgumentException e) {
+                                // smaller than the buffer holds, expected
+                            }
+                            maybeYield(sizes);
+                        }
+                    }
+                }, "resizer-" + c));
+            }
+
+            for (int c = 0; c < clearers; c++) {
+                final Random yields = new Random(seed ^ c);
+                threads.add(new Thread(new Guarded(start, failure) {
+                    void body() {
+                        while (producing.get()) {
+                            appender.clear();
+                            maybeYield(yields);
+                        }
+                    }
+                }, "clearer-" + c));
+            }
+
+            for (Thread t : threads) {
+                t.start();
+            }
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            for (Thread t : threads) {
+                t.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (t.isAlive()) {
+                    fail("deadlock or livelock, " + t.getName() + " is " + t.getState());
+                }
+            }
+            if (failure.get() != null) {
+                AssertionError e = new AssertionError("thread failed: " + failure.get());
+                e.initCause(failure.get());
+                throw e;
+            }
+
+            appender.dump();
+            sinkLogger.removeAppender(sink);
+            check(sink, appender);
+        }
+
+        private void check(Sink sink, InMemoryAppender appender) {
+            List<Segment> segments = sink.segments();
+            dumps = segments.size();
+            Collections.sort(segments, new Comparator<Segment>() {
+                public int compare(Segment o1, Segment o2) {
+                    return o1.first < o2.first ? -1 : (o1.first == o2.first ? 0 : 1);
+                }
+            });
+
+            Set<String> seen = new HashSet<String>();
+            Map<String, Integer> lastByProducer = new HashMap<String, Integer>();
+            String lastProducer = null;
+
+            for (Segment segment : segments) {
+                largestDump = Math.max(largestDump, segment.messages.size());
+                assertTrue("dump of " + segment.messages.size() + " events exceeds capacity " + maxCapacity.get(),
+                           segment.messages.size() <= maxCapacity.get());
+
+                for (String message : segment.messages) {
+                    assertTrue("duplicated " + message, seen.add(message));
+
+                    int colon = message.indexOf(':');
+                    String producer = message.substring(0, colon);
+                    int n = Integer.parseInt(message.substring(colon + 1));
+                    Integer last = lastByProducer.put(producer, n);
+                    assertTrue(producer + " out of order, " + n + " after " + last, last == null || n > last);
+
+                    if (lastProducer != null && !lastProducer.equals(producer)) {
+                        switches++;
+                    }
+                    lastProducer = producer;
+                }
+            }
+
+            dumped = seen.size();
+            int appended = producers * perProducer;
+            if (clearers == 0) {
+                assertEquals("events lost", appended,
+                             dumped + appender.getEvictedCount() + appender.getDroppedCount());
+            }
+            if (roomForAll && !lossy) {
+                assertEquals("evicted below capacity", 0, appender.getEvictedCount());
+                assertEquals(appended, dumped);
+            }
+        }
+
+        private void raiseMax(int capacity) {
+            int current;
+            while (capacity > (current = maxCapacity.get())) {
+                if (maxCapacity.compareAndSet(current, capacity)) {
+                    return;
+                }
+            }
+        }
+
+        private void maybeYield(Random yields) {
+            if (yields.nextInt(yieldOneIn) == 0) {
+                Thread.yield();
+            }
+        }
+
+        @Override public String toString() {
+            return "seed=" + seed + " producers=" + producers + "x" + perProducer + " capacity=" + initialCapacity
+                   + (roomForAll ? "(room for all)" : "") + " dumpers=" + dumpers + " resizers=" + resizers
+                   + " clearers=" + clearers + " lossy=" + lossy + " yield=1/" + yieldOneIn + " -> dumps=" + dumps
+                   + " dumped=" + dumped + " largestDump=" + largestDump + " producerSwitches=" + switches;
+        }
+    }
+
+    /**
+     * Waits for every thread to be ready, then runs <code>body</code>,
+     * keeping the first failure
+     */
+    private abstract static class Guarded implements Runnable {
+        private final CyclicBarrier start;
+        private final AtomicReference<Throwable> failure;
+
+        Guarded(CyclicBarrier start, AtomicReference<Throwable> failure) {
+            this.start = start;
+            this.failure = failure;
+        }
+
+        public void run() {
+            try {
+                start.await();
+                body();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }
+
+        abstract void body();
+    }
+
+    /**
+     * A dump's summary line and the events after it
+     */
+    private static final class Segment {
+        private long first = Long.MAX_VALUE;
+        private final List<String> messages = new ArrayList<String>();
+    }
+
+    /**
+     * Collects dumped events per dumping thread, split into dumps at each
+     * summary line. Dumps flush outside the buffer lock, so two dumps may
+     * interleave here; the summary's sequence range puts them back in order.
+     */
+    private static final class Sink extends AppenderSkeleton {
+        private final Map<Thread, List<Segment>> byThread = new HashMap<Thread, List<Segment>>();
+
+        @Override protected synchronized void append(LoggingEvent event) {
+            List<Segment> segments = byThread.get(Thread.currentThread());
+            if (segments == null) {
+                segments = new ArrayList<Segment>();
+                byThread.put(Thread.currentThread(), segments);
+            }
+
+            String message = event.getRenderedMessage();
+            if (message.startsWith("stress dumping")) {
+                Segment segment = new Segment();
+                int hash = message.indexOf('#');
+                if (hash >= 0) {
+                    segment.first = Long.parseLong(message.substring(hash + 1, message.indexOf('-', hash)));
+                }
+                segments.add(segment);
+            } else {
+                segments.get(segments.size() - 1).messages.add(message);
+            }
+        }
+
+        synchronized List<Segment> segments() {
+            List<Segment> all = new ArrayList<Segment>();
+            for (List<Segment> segments : byThread.values()) {
+                all.addAll(segments);
+            }
+            return all;
+        }
+
+        public void close() {}
+
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Several {@link InMemoryAppender}s sharing a {@link BufferPool} must stay
+ * within its budget together.
+ *
+ * @author russell
+ *
+ */
+public class BufferPoolTest {
+
+    // pools are looked up by name and live forever
+    private final String poolName = UUID.randomUUID().toString();
+
+    private InMemoryAppender wire;
+    private InMemoryAppender headers;
+
+    @Before public void setUp() {
+        wire = pooledAppender("wire");
+        wire.setPoolEvents(10);
+        wire.activateOptions();
+        headers = pooledAppender("headers");
+        headers.activateOptions();
+    }
+
+    /**
+     * Tests that the pool evicts from the member holding the most.
+     */
+    @Test public void evictsFromTheLargestMember() {
+        BufferPool pool = BufferPool.get(poolName);
+        assertEquals(10, pool.getBudget());
+
+        append(wire, 10);
+        assertEquals(10, pool.getUsed());
+
+        append(headers, 4);
+        assertEquals(10, pool.getUsed());
+        assertEquals(6, wire.getPoolUsage());
+        assertEquals(4, headers.getPoolUsage());
+
+        Map<String, Long> occupancy = pool.getOccupancy();
+        assertEquals(Long.valueOf(6), occupancy.get("wire"));
+        assertEquals(Long.valueOf(4), occupancy.get("headers"));
+    }
+
+    /**
+     * Tests that a member at its fair share evicts its own oldest events.
+     */
+    @Test public void memberAtFairShareEvictsItself() {
+        append(wire, 5);
+        append(headers, 5);
+        append(headers, 3);
+
+        assertEquals(10, BufferPool.get(poolName).getUsed());
+        assertTrue(headers.getPoolUsage() <= 5 + 3);
+        assertEquals(10, wire.getPoolUsage() + headers.getPoolUsage());
+    }
+
+    /**
+     * Tests that dumping and closing give budget back to the pool.
+     */
+    @Test public void dumpAndCloseReleaseBudget() {
+        BufferPool pool = BufferPool.get(poolName);
+        append(wire, 3);
+        append(headers, 2);
+
+        wire.dump();
+        assertEquals(0, wire.getPoolUsage());
+        assertEquals(2, pool.getUsed());
+
+        headers.close();
+        assertEquals(0, pool.getUsed());
+        assertEquals(1, pool.getOccupancy().size());
+    }
+
+    /**
+     * Tests that a byte budget counts message sizes.
+     */
+    @Test public void byteBudgetCountsMessageSize() {
+        BufferPool pool = BufferPool.get(poolName);
+        pool.setByteBudget(2 * (BufferPool.EVENT_OVERHEAD + 2 * 100));
+
+        wire.append(event(repeat('x', 100)));
+        wire.append(event(repeat('x', 100)));
+        assertEquals(2, wire.getPoolUsage() / (BufferPool.EVENT_OVERHEAD + 2 * 100));
+
+        headers.append(event(repeat('y', 100)));
+        assertEquals(pool.getBudget(), pool.getUsed());
+        assertEquals(BufferPool.EVENT_OVERHEAD + 2 * 100, wire.getPoolUsage());
+    }
+
+    /**
+     * Tests that a closed member is out of the pool and drops appends, so it
+     * can't charge the pool again.
+     */
+    @Test public void closedMemberDropsAppends() {
+        BufferPool pool = BufferPool.get(poolName);
+        append(headers, 2);
+        headers.close();
+        headers.close();
+
+        append(headers, 3);
+        assertEquals(0, headers.getPoolUsage());
+        assertEquals(null, headers.getBufferPool());
+        assertEquals(0, pool.getUsed());
+    }
+
+    /**
+     * Tests that a byte budget renders the message, running its
+     * <code>toString()</code>, without holding the buffer.
+     */
+    @Test public void costsMessageOutsideTheBuffer() throws InterruptedException {
+        BufferPool.get(poolName).setByteBudget(1024 * 1024);
+        final boolean[] blocked = new boolean[1];
+        Object message = new Object() {
+            private boolean rendered = false;
+
+            @Override public String toString() {
+                if (!rendered) {
+                    rendered = true;
+                    // another thread can only dump if the buffer is free
+                    Thread dumper = new Thread(new Runnable() {
+                        public void run() {
+                            wire.dump();
+                        }
+                    });
+                    dumper.start();
+                    try {
+                        dumper.join(5000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    blocked[0] = dumper.isAlive();
+                }
+                return "rendered";
+            }
+        };
+
+        wire.append(new LoggingEvent(Logger.class.getName(), Logger.getLogger("pooled"), Level.DEBUG, message, null));
+        assertFalse("rendered holding the buffer lock", blocked[0]);
+        assertEquals(BufferPool.EVENT_OVERHEAD + 2 * "rendered".length(), wire.getPoolUsage());
+    }
+
+    private InMemoryAppender pooledAppender(String name) {
+        InMemoryAppender appender = new InMemoryAppender();
+        appender.setName(name);
+        appender.setPool(poolName);
+        return appender;
+    }
+
+    private static void append(InMemoryAppender appender, int count) {
+        for (int i = 0; i < count; i++) {
+            appender.append(event("message " + i));
+        }
+    }
+
+    private static LoggingEvent event(String message) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("pooled"), Level.DEBUG, message, null);
+    }
+
+    private static String repeat(char c, int times) {
+        StringBuilder sb = new StringBuilder(times);
+        for (int i = 0; i < times; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import org.apache.commons.httpclient.ConnectTimeoutException;
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.TriggeringEventEvaluator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author russell
+ *
+ */
+public class DumpTriggerTest {
+
+    private static final String APPENDER_NAME = "triggerTest";
+
+    private DumpTrigger trigger;
+    private CountingAppender appender;
+
+    @Before public void setUp() {
+        trigger = new DumpTrigger();
+        appender = new CountingAppender();
+        appender.setName(APPENDER_NAME);
+        Logger.getLogger("httpclient.wire").addAppender(appender);
+    }
+
+    @After public void tearDown() {
+        Logger.getLogger("httpclient.wire").removeAppender(appender);
+    }
+
+    /**
+     * By default only {@link NoHttpResponseException} and sub classes trigger.
+     */
+    @Test public void defaultsToNoHttpResponseException() {
+        assertTrue(trigger.shouldDump(new NoHttpResponseException(), 1));
+        assertTrue(trigger.shouldDump(new NoHttpResponseException() {
+            private static final long serialVersionUID = 1L;
+        }, 1));
+        assertFalse(trigger.shouldDump(new ConnectTimeoutException(), 1));
+        assertFalse(trigger.shouldDump(null, 1));
+    }
+
+    /**
+     * Configured types match themselves and sub classes, and the cause chain
+     * when asked.
+     */
+    @Test public void matchesConfiguredTypesAndCauses() {
+        trigger.setExceptions("java.net.SocketTimeoutException, java.io.InterruptedIOException");
+        assertTrue(trigger.shouldDump(new SocketTimeoutException(), 1));
+        assertTrue(trigger.shouldDump(new ConnectTimeoutException(), 1));
+        assertFalse(trigger.shouldDump(new NoHttpResponseException(), 1));
+
+        IOException wrapped = new IOException("wrapped", new SocketTimeoutException());
+        assertFalse(trigger.shouldDump(wrapped, 1));
+        trigger.setCauses(true);
+        assertTrue(trigger.shouldDump(wrapped, 1));
+    }
+
+    /**
+     * A cause chain that loops back on itself is looked at only once around,
+     * and reconfiguring the types takes effect at once.
+     */
+    @Test public void stopsAtLoopingCauses() {
+        trigger.setCauses(true);
+        IOException first = new IOException("first");
+        IOException second = new IOException("second", first);
+        first.initCause(second);
+        assertFalse(trigger.shouldDump(first, 1));
+
+        trigger.setExceptions("java.io.IOException");
+        assertTrue(trigger.shouldDump(first, 1));
+        trigger.setExceptions("java.net.SocketTimeoutException");
+        assertFalse(trigger.shouldDump(first, 1));
+    }
+
+    /**
+     * Nothing triggers below the minimum execution count.
+     */
+    @Test public void respectsMinExecutionCount() {
+        trigger.setMinExecutionCount(2);
+        assertFalse(trigger.shouldDump(new NoHttpResponseException(), 1));
+        assertTrue(trigger.shouldDump(new NoHttpResponseException(), 2));
+    }
+
+    /**
+     * The retry handler dumps according to the appender's trigger.
+     */
+    @Test public void retryHandlerUsesAppenderTrigger() {
+        LogNoHttpResponseRetryHandler handler = new LogNoHttpResponseRetryHandler(APPENDER_NAME);
+        appender.setTriggerExceptions(SocketTimeoutException.class.getName());
+
+        handler.retryMethod(new GetMethod(), new NoHttpResponseException(), 1);
+        assertEquals(0, appender.dumps);
+
+        handler.retryMethod(new GetMethod(), new SocketTimeoutException(), 1);
+        assertEquals(1, appender.dumps);
+    }
+
+    /**
+     * An event at or above the trigger level dumps the buffer, as does an
+     * event accepted by a configured evaluator.
+     */
+    @Test public void triggersOnEventLevelAndEvaluator() {
+        Logger logger = Logger.getLogger("httpclient.wire");
+        logger.setLevel(Level.DEBUG);
+
+        logger.error("no trigger level yet");
+        assertEquals(0, appender.dumps);
+
+        appender.setTriggerLevel("ERROR");
+        logger.warn("below the trigger level");
+        assertEquals(0, appender.dumps);
+        logger.error("at the trigger level");
+        assertEquals(1, appender.dumps);
+
+        appender.setEvaluatorClass(WarnEvaluator.class.getName());
+        logger.warn("accepted by the evaluator");
+        assertEquals(2, appender.dumps);
+    }
+
+    public static final class WarnEvaluator implements TriggeringEventEvaluator {
+        public boolean isTriggeringEvent(LoggingEvent event) {
+            return event.getLevel() == Level.WARN;
+        }
+    }
+
+    private static final class CountingAppender extends InMemoryAppender {
+        private int dumps = 0;
+
+        @Override public void dump() {
+            dumps++;
+        }
+    }
+}
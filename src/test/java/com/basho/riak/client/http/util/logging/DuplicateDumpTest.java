@@ -0,0 +1,151 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * With <code>duplicateWindowMillis</code> set, a dump that repeats a recent
+ * one is logged as a single line.
+ *
+ * @author russell
+ *
+ */
+public class DuplicateDumpTest {
+
+    private static final Logger HEADER = Logger.getLogger("httpclient.wire.header");
+    private static final Logger CONTENT = Logger.getLogger("httpclient.wire.content");
+    private static final String SINK = "duplicateDumpTest.sink";
+
+    private final List<String> sunk = new ArrayList<String>();
+    private final AppenderSkeleton capture = new AppenderSkeleton() {
+        @Override protected void append(LoggingEvent event) {
+            sunk.add(event.getRenderedMessage());
+        }
+
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        public void close() {}
+    };
+    private InMemoryAppender appender;
+
+    @Before public void setUp() {
+        Logger.getLogger(SINK).addAppender(capture);
+        Logger.getLogger(SINK).setAdditivity(false);
+        // not whatever level an earlier test left the root logger at
+        Logger.getLogger(SINK).setLevel(Level.ALL);
+        appender = new InMemoryAppender();
+        appender.setName("dupes");
+        appender.setDelegateName(SINK);
+        appender.setDuplicateWindowMillis(60000);
+    }
+
+    @After public void tearDown() {
+        Logger.getLogger(SINK).removeAppender(capture);
+    }
+
+    /**
+     * Tests that the same failure against different keys and values is one
+     * fingerprint, and only the first dump is written.
+     */
+    @Test public void suppressesRepeats() {
+        failedPut("k1", "12", "hello world!");
+        appender.dump();
+        assertEquals(6, sunk.size());
+        assertTrue(sunk.get(0), sunk.get(0).contains(", fingerprint "));
+        String fingerprint = sunk.get(0).substring(sunk.get(0).lastIndexOf(' ') + 1);
+
+        sunk.clear();
+        failedPut("another-key", "3", "abc");
+        appender.dump();
+        assertEquals(1, sunk.size());
+        assertTrue(sunk.get(0), sunk.get(0).startsWith("dupes dump repeats fingerprint " + fingerprint + ", 1 repeats"));
+        assertTrue(sunk.get(0), sunk.get(0).endsWith(", 5 events suppressed"));
+    }
+
+    /**
+     * Tests that a different failure, or the same one after the window, is
+     * written in full.
+     */
+    @Test public void writesDistinctDumps() {
+        failedPut("k1", "12", "hello world!");
+        appender.dump();
+
+        sunk.clear();
+        append(HEADER, ">> \"DELETE /riak/b/k1 HTTP/1.1[\\r][\\n]\"");
+        append(HEADER, "<< \"HTTP/1.1 404 Not Found[\\r][\\n]\"");
+        appender.dump();
+        assertEquals(3, sunk.size());
+
+        sunk.clear();
+        appender.setDuplicateWindowMillis(-1);
+        failedPut("k1", "12", "hello world!");
+        appender.dump();
+        assertEquals(6, sunk.size());
+        assertFalse(sunk.get(0).contains("fingerprint"));
+    }
+
+    /**
+     * Tests that header values and body chunks don't change the fingerprint,
+     * but header names and statuses do.
+     */
+    @Test public void fingerprintIgnoresValues() {
+        long put = DumpFingerprints.of(events(">> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"",
+                                              ">> \"Content-Length: 12[\\r][\\n]\"", "<< \"HTTP/1.1 500 Error[\\r][\\n]\""));
+        assertEquals(put, DumpFingerprints.of(events(">> \"PUT /riak/x/y HTTP/1.1[\\r][\\n]\"",
+                                                     ">> \"Content-Length: 9999[\\r][\\n]\"",
+                                                     "<< \"HTTP/1.1 500 Error[\\r][\\n]\"")));
+        assertFalse(put == DumpFingerprints.of(events(">> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"",
+                                                      ">> \"Content-Type: text/plain[\\r][\\n]\"",
+                                                      "<< \"HTTP/1.1 500 Error[\\r][\\n]\"")));
+        assertFalse(put == DumpFingerprints.of(events(">> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"",
+                                                      ">> \"Content-Length: 12[\\r][\\n]\"",
+                                                      "<< \"HTTP/1.1 503 Unavailable[\\r][\\n]\"")));
+    }
+
+    private void failedPut(String key, String length, String body) {
+        append(HEADER, ">> \"PUT /riak/b/" + key + " HTTP/1.1[\\r][\\n]\"");
+        append(HEADER, ">> \"Content-Length: " + length + "[\\r][\\n]\"");
+        append(HEADER, ">> \"[\\r][\\n]\"");
+        append(CONTENT, ">> \"" + body + "\"");
+        append(HEADER, "<< \"HTTP/1.1 500 Internal Server Error[\\r][\\n]\"");
+    }
+
+    private void append(Logger logger, String message) {
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.DEBUG, message, null));
+    }
+
+    private static List<LoggingEvent> events(String... messages) {
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+        for (String message : messages) {
+            events.add(new LoggingEvent(Logger.class.getName(), HEADER, Level.DEBUG, message, null));
+        }
+        return events;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.OnlyOnceErrorHandler;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * With an <code>archiveDirectory</code>, evicted events end up in rolling
+ * segments on disk.
+ *
+ * @author russell
+ *
+ */
+public class EvictionArchiverTest {
+
+    private static final Logger WIRE = Logger.getLogger("httpclient.wire.header");
+
+    private final List<String> errors = new ArrayList<String>();
+    private File directory;
+    private InMemoryAppender appender;
+
+    @Before public void setUp() throws IOException {
+        directory = File.createTempFile("archive", "");
+        directory.delete();
+        appender = new InMemoryAppender();
+        appender.setName("archived");
+        appender.setCapacity(10);
+        appender.setArchiveDirectory(directory.getPath());
+    }
+
+    @After public void tearDown() {
+        appender.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Tests that every evicted event, and only those, is archived in order.
+     */
+    @Test public void archivesEvictedEvents() throws IOException {
+        appender.activateOptions();
+        for (int i = 0; i < 110; i++) {
+            append("event " + i);
+        }
+        appender.close();
+
+        assertEquals(100, appender.getEvictedCount());
+        List<String> archived = readArchive();
+        assertEquals(100, archived.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("event " + i, archived.get(i));
+        }
+    }
+
+    /**
+     * Tests that segments roll, and the oldest are deleted to stay within
+     * the disk budget.
+     */
+    @Test public void rollsWithinBudget() throws Exception {
+        appender.setArchiveSegmentBytes(1);
+        appender.setArchiveMaxBytes(200);
+        appender.activateOptions();
+
+        for (int i = 0; i < 20; i++) {
+            append("event " + i);
+            Thread.sleep(5);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (appender.getArchivedCount() < 10 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        appender.close();
+
+        assertEquals(10, appender.getArchivedCount());
+        long total = 0;
+        for (File segment : directory.listFiles()) {
+            total += segment.length();
+        }
+        assertTrue("archive is " + total + " bytes", total <= 200);
+        List<String> archived = readArchive();
+        assertTrue(archived.toString(), !archived.isEmpty());
+        assertEquals("event 9", archived.get(archived.size() - 1));
+    }
+
+    /**
+     * Tests that the segment being written counts against the budget: after
+     * every batch the whole archive fits.
+     */
+    @Test public void countsOpenSegment() throws Exception {
+        final long maxBytes = 160 * 1024;
+        appender.setArchiveSegmentBytes(100 * 1024);
+        appender.setArchiveMaxBytes(maxBytes);
+        appender.activateOptions();
+
+        Random random = new Random(42);
+        StringBuilder noise = new StringBuilder();
+        for (int i = 0; i < 8000; i++) {
+            noise.setLength(0);
+            for (int j = 0; j < 8; j++) {
+                noise.append(Long.toHexString(random.nextLong()));
+            }
+            append("event " + i + " " + noise);
+            if (i % 100 == 99) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (appender.getArchivedCount() < i - 9 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(1);
+                }
+                long total = 0;
+                for (File segment : directory.listFiles()) {
+                    total += segment.length();
+                }
+                assertTrue("archive is " + total + " bytes after event " + i, total <= maxBytes);
+            }
+        }
+    }
+
+    /**
+     * Tests that a segment too big for the budget is refused, rather than
+     * letting the archive overrun it.
+     */
+    @Test public void refusesSegmentOverBudget() {
+        appender.setArchiveSegmentBytes(2000);
+        appender.setArchiveMaxBytes(1000);
+        appender.setErrorHandler(new OnlyOnceErrorHandler() {
+            @Override public void error(String message) {
+                errors.add(message);
+            }
+        });
+        appender.activateOptions();
+
+        for (int i = 0; i < 20; i++) {
+            append("event " + i);
+        }
+        assertEquals(0, appender.getArchivedCount());
+        assertEquals(1, errors.size());
+    }
+
+    private void append(String message) {
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG, message, null));
+    }
+
+    private List<String> readArchive() throws IOException {
+        File[] segments = directory.listFiles();
+        Arrays.sort(segments);
+        List<String> messages = new ArrayList<String>();
+        for (File segment : segments) {
+            assertTrue(segment.getName(), segment.getName().endsWith(EvictionArchiver.SEGMENT_SUFFIX));
+            BinaryDumpReader reader = new BinaryDumpReader(new GZIPInputStream(new FileInputStream(segment)));
+            try {
+                LoggingEvent e;
+                while ((e = reader.next()) != null) {
+                    messages.add(e.getRenderedMessage());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Round trips events through a flight recorder {@link InMemoryAppender} and
+ * {@link FlightRecordingReader}.
+ *
+ * @author russell
+ *
+ */
+public class FlightRecorderTest {
+
+    private static final String SINK = "flightRecorderTest.sink";
+
+    private File directory;
+    private Recording recording;
+    private InMemoryAppender appender;
+    private CapturingAppender captured;
+
+    @Before public void setUp() throws IOException {
+        directory = File.createTempFile("inmem", "jfr");
+        directory.delete();
+        directory.mkdir();
+
+        recording = new Recording();
+        recording.enable(WireEvent.NAME);
+        recording.enable(DumpTriggeredEvent.NAME);
+        recording.start();
+
+        appender = new InMemoryAppender();
+        appender.setName("jfr");
+        appender.setFlightRecorder(true);
+        appender.setFlightRecorderDirectory(directory.getPath());
+        appender.activateOptions();
+
+        captured = new CapturingAppender();
+        Logger.getLogger(SINK).addAppender(captured);
+        Logger.getLogger(SINK).setAdditivity(false);
+    }
+
+    @After public void tearDown() {
+        recording.close();
+        Logger.getLogger(SINK).removeAppender(captured);
+        for (File f : directory.listFiles()) {
+            f.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Events are recorded, not buffered, and a dump snapshots them to a file
+     * the reader replays to the delegate logger.
+     */
+    @Test public void snapshotReplaysToDelegate() throws IOException {
+        assertTrue(appender.isFlightRecorder());
+        Logger wire = Logger.getLogger("httpclient.wire.header");
+
+        appender.append(new LoggingEvent(Logger.class.getName(), wire, 1000, Level.DEBUG, ">> \"GET / HTTP/1.1\"",
+                                         "worker-1", null, null, null, null));
+        appender.append(new LoggingEvent(Logger.class.getName(), wire, 2000, Level.ERROR, "failed", "worker-2",
+                                         new ThrowableInformation(new IOException("boom")),
+                                         null, null, null));
+        assertEquals(0, appender.getSequence());
+
+        appender.recordDumpTrigger("node1:8098", new NoHttpResponseException("gone"), 1);
+        appender.dump();
+
+        File[] snapshots = directory.listFiles();
+        assertEquals(1, snapshots.length);
+        assertTrue(snapshots[0].getName().endsWith(".jfr"));
+
+        FlightRecordingReader reader = new FlightRecordingReader(SINK);
+        assertEquals(3, reader.replay(snapshots[0]));
+
+        LoggingEvent first = captured.find(">> \"GET / HTTP/1.1\"");
+        assertNotNull(first);
+        assertEquals("httpclient.wire.header", first.getLoggerName());
+        assertEquals("worker-1", first.getThreadName());
+        assertEquals(Level.DEBUG, first.getLevel());
+        assertEquals(1000, first.getTimeStamp());
+
+        LoggingEvent error = captured.find("failed");
+        assertEquals(Level.ERROR, error.getLevel());
+        assertTrue(error.getThrowableStrRep()[0].contains("boom"));
+
+        boolean triggered = false;
+        for (LoggingEvent e : captured.events) {
+            String message = e.getRenderedMessage();
+            if (message.contains("NoHttpResponseException") && message.contains("node1:8098")) {
+                triggered = true;
+            }
+        }
+        assertTrue(triggered);
+    }
+
+    /**
+     * Without a directory a dump writes nothing.
+     */
+    @Test public void noDirectoryNoSnapshot() {
+        appender.setFlightRecorderDirectory(null);
+        appender.append(new LoggingEvent(Logger.class.getName(), Logger.getLogger("httpclient.wire"), Level.DEBUG,
+                                         "event", null));
+        appender.dump();
+        assertFalse(directory.listFiles().length > 0);
+    }
+
+    private static final class CapturingAppender extends AppenderSkeleton {
+        private final List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+
+        @Override protected void append(LoggingEvent event) {
+            events.add(event);
+        }
+
+        LoggingEvent find(String message) {
+            for (LoggingEvent e : events) {
+                if (message.equals(e.getRenderedMessage())) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        public void close() {}
+
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+}
@@ -13,6 +13,7 @@
  */
 package com.basho.riak.client.http.util.logging;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -24,13 +25,16 @@ import static org.mockito.Mockito.verify;
 
 import java.util.UUID;
 
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
 import org.apache.log4j.PatternLayout;
 import org.apache.log4j.pattern.LogEvent;
 import org.apache.log4j.spi.LoggerFactory;
 import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -70,6 +74,8 @@ public class InMemoryAppenderTest {
         inMemoryAppender = new InMemoryAppender();
         inMemoryAppender.setCapacity(CAPACITY);
         inMemoryAppender.setDelegateName("mock.logger" + randomName);
+        // only the dumped events are counted, except by the summary tests
+        inMemoryAppender.setDumpSummary(false);
 
         Logger rootLogger = Logger.getRootLogger();
 
@@ -84,6 +90,10 @@ public class InMemoryAppenderTest {
         rootLogger.getLoggerRepository().getLogger("mock.logger" + randomName, lf).setAdditivity(false);
     }
 
+    @After public void tearDown() {
+        MDC.remove("route");
+    }
+
     /**
      * Test method for
      * {@link com.basho.riak.client.http.util.logging.InMemoryAppender#append(org.apache.log4j.spi.LoggingEvent)}
@@ -156,6 +166,203 @@ public class InMemoryAppenderTest {
         }
     }
 
+    /**
+     * Tests that each dump is preceded by a summary of the sequence range it
+     * covers and how many events were evicted before it.
+     */
+    @Test public void dumpSummaryReportsSequenceRangeAndEvictions() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setDumpSummary(true);
+
+        for (int i = 0; i < CAPACITY * 2 + 5; i++) {
+            testLogger.debug("message " + i);
+        }
+
+        inMemoryAppender.dump();
+
+        verify(mockLogger, times(CAPACITY + 1)).callAppenders(logEventCaptor.capture());
+        String summary = getLogMessage(logEventCaptor.getAllValues().get(0));
+        assertTrue(summary, summary.contains("10 events #16-#25, 15 evicted since last dump"));
+        assertEquals(15, inMemoryAppender.getEvictedCount());
+        assertEquals(25, inMemoryAppender.getSequence());
+
+        reset(mockLogger);
+        inMemoryAppender.dump();
+        verify(mockLogger, never()).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that a partitioned buffer dumps only the requested route, and that
+     * the partition is gone once dumped.
+     */
+    @Test public void dumpsOnlyTheRequestedPartition() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setPartitionKey("route");
+
+        logTo(testLogger, "riak1:8098", 3);
+        logTo(testLogger, "riak2:8098", 2);
+
+        inMemoryAppender.dump("riak1:8098");
+        verify(mockLogger, times(3)).callAppenders(logEventCaptor.capture());
+        for (LoggingEvent le : logEventCaptor.getAllValues()) {
+            assertEquals("riak1:8098", le.getMDC("route"));
+        }
+
+        reset(mockLogger);
+        inMemoryAppender.dump("riak1:8098");
+        verify(mockLogger, never()).callAppenders(any(LoggingEvent.class));
+
+        inMemoryAppender.dump();
+        verify(mockLogger, times(2)).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that each partition is bounded by <code>partitionCapacity</code>
+     * and that a busy partition can't evict a quiet one's history.
+     */
+    @Test public void partitionsAreBoundedIndependently() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setPartitionKey("route");
+        inMemoryAppender.setPartitionCapacity(4);
+
+        logTo(testLogger, "quiet:8098", 2);
+        logTo(testLogger, "busy:8098", CAPACITY * 2);
+
+        inMemoryAppender.dump("quiet:8098");
+        verify(mockLogger, times(2)).callAppenders(any(LoggingEvent.class));
+
+        reset(mockLogger);
+        inMemoryAppender.dump("busy:8098");
+        verify(mockLogger, times(4)).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that <code>capacity</code> still bounds all partitions together,
+     * evicting from the largest.
+     */
+    @Test public void capacityBoundsAllPartitions() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setPartitionKey("route");
+
+        logTo(testLogger, "busy:8098", CAPACITY - 1);
+        logTo(testLogger, "quiet:8098", 3);
+
+        inMemoryAppender.dump("quiet:8098");
+        verify(mockLogger, times(3)).callAppenders(any(LoggingEvent.class));
+
+        reset(mockLogger);
+        inMemoryAppender.dump("busy:8098");
+        verify(mockLogger, times(CAPACITY - 3)).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that an append which evicts the only event of its own partition
+     * is kept, and counted.
+     */
+    @Test public void keepsEventWhenItsPartitionIsEvicted() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setCapacity(1);
+        inMemoryAppender.setPartitionKey("route");
+        inMemoryAppender.setPartitionCapacity(5);
+
+        logTo(testLogger, "riak1:8098", 2);
+
+        inMemoryAppender.dump("riak1:8098");
+        verify(mockLogger, times(1)).callAppenders(logEventCaptor.capture());
+        assertEquals("riak1:8098 message 1", logEventCaptor.getValue().getMessage());
+
+        // nothing is left over to count against capacity
+        reset(mockLogger);
+        logTo(testLogger, "riak2:8098", 1);
+        inMemoryAppender.dump("riak2:8098");
+        verify(mockLogger, times(1)).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that a partition capacity smaller than a partition is rejected.
+     */
+    @Test public void rejectsPartitionCapacityBelowPartitionSize() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setPartitionKey("route");
+        logTo(testLogger, "riak1:8098", 3);
+
+        try {
+            inMemoryAppender.setPartitionCapacity(2);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        inMemoryAppender.setPartitionCapacity(3);
+        logTo(testLogger, "riak1:8098", 1);
+        inMemoryAppender.dump("riak1:8098");
+        verify(mockLogger, times(3)).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that each partition's dump reports only its own evictions, and a
+     * later full dump the rest.
+     */
+    @Test public void partitionDumpReportsItsOwnEvictions() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setDumpSummary(true);
+        inMemoryAppender.setPartitionKey("route");
+        inMemoryAppender.setPartitionCapacity(4);
+
+        logTo(testLogger, "riak1:8098", 6);
+        logTo(testLogger, "riak2:8098", 7);
+
+        inMemoryAppender.dump("riak1:8098");
+        verify(mockLogger, times(5)).callAppenders(logEventCaptor.capture());
+        String summary = getLogMessage(logEventCaptor.getAllValues().get(0));
+        assertTrue(summary, summary.contains("2 evicted since last dump"));
+
+        reset(mockLogger);
+        logEventCaptor = ArgumentCaptor.forClass(LoggingEvent.class);
+        inMemoryAppender.dump();
+        verify(mockLogger, times(5)).callAppenders(logEventCaptor.capture());
+        summary = getLogMessage(logEventCaptor.getAllValues().get(0));
+        assertTrue(summary, summary.contains("3 evicted since last dump"));
+    }
+
+    /**
+     * Tests that dumping a route with no partition, because the route wasn't
+     * in the MDC, dumps the events logged without one.
+     */
+    @Test public void dumpsUnroutedWithoutPartitionForRoute() {
+        Logger testLogger = Logger.getLogger("inmem");
+        inMemoryAppender.setPartitionKey("route");
+
+        for (int i = 0; i < 3; i++) {
+            testLogger.debug("no route " + i);
+        }
+        logTo(testLogger, "riak1:8098", 2);
+        GetMethod method = new GetMethod("http://riak3:8098/riak/bucket/key");
+        inMemoryAppender.dump(inMemoryAppender.routeOf(method));
+        verify(mockLogger, times(3)).callAppenders(logEventCaptor.capture());
+        assertEquals("no route 0", logEventCaptor.getAllValues().get(0).getMessage());
+    }
+
+    /**
+     * The route is taken from the MDC if present, else from the method.
+     */
+    @Test public void routeOfPrefersMdc() {
+        GetMethod method = new GetMethod("http://riak3:8098/riak/bucket/key");
+        assertEquals("riak3:8098", inMemoryAppender.routeOf(method));
+
+        inMemoryAppender.setPartitionKey("route");
+        MDC.put("route", "riak4:8098");
+        assertEquals("riak4:8098", inMemoryAppender.routeOf(method));
+    }
+
+    private void logTo(Logger logger, String route, int count) {
+        MDC.put("route", route);
+        for (int i = 0; i < count; i++) {
+            logger.debug(route + " message " + i);
+        }
+        MDC.remove("route");
+    }
+
     /**
      * @param value
      * @return
@@ -0,0 +1,268 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.httpclient.NoHttpResponseException;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * With an <code>incidentDirectory</code>, dumps are stored by incident and
+ * can be fetched by the id the retry path logged.
+ *
+ * @author russell
+ *
+ */
+public class IncidentStoreTest {
+
+    private static final Logger WIRE = Logger.getLogger("httpclient.wire.header");
+
+    private File directory;
+    private InMemoryAppender appender;
+
+    @Before public void setUp() throws IOException {
+        directory = File.createTempFile("incidents", "");
+        directory.delete();
+        appender = new InMemoryAppender();
+        appender.setName("incidents");
+        appender.setIncidentDirectory(directory.getPath());
+        appender.activateOptions();
+    }
+
+    @After public void tearDown() {
+        appender.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Tests that a dump on the retry path is stored under the incident id
+     * returned, with its host and exception.
+     */
+    @Test public void storesDumpByIncident() throws IOException {
+        request("node1:8098");
+        appender.beginIncident("node1:8098", new NoHttpResponseException("gone"), 1);
+        String id = appender.getIncidentId();
+        try {
+            appender.dump();
+        } finally {
+            appender.endIncident();
+        }
+
+        IncidentStore store = appender.getIncidentStore();
+        List<IncidentRecord> records = store.get(id);
+        assertEquals(1, records.size());
+        IncidentRecord record = records.get(0);
+        assertEquals("node1:8098", record.getHost());
+        assertEquals(NoHttpResponseException.class.getName(), record.getException());
+        assertEquals(3, record.getEvents());
+
+        List<LoggingEvent> events = store.read(id);
+        assertEquals(3, events.size());
+        String summary = events.get(0).getRenderedMessage();
+        assertTrue(summary, summary.contains("incident " + id));
+        assertEquals(">> \"GET /riak HTTP/1.1[\\r][\\n]\"", events.get(1).getRenderedMessage());
+    }
+
+    /**
+     * Tests that a dump outside an incident gets its own, and takes the
+     * exception from the events.
+     */
+    @Test public void dumpOutsideIncident() throws IOException {
+        request("node2:8098");
+        append(new LoggingEvent(Logger.class.getName(), WIRE, Level.ERROR, "failed",
+                                            new IllegalStateException()));
+        appender.dump();
+
+        List<IncidentRecord> records = appender.getIncidentStore().getRecords();
+        assertEquals(1, records.size());
+        assertEquals("node2:8098", records.get(0).getHost());
+        assertEquals(IllegalStateException.class.getName(), records.get(0).getException());
+        assertTrue(records.get(0).getId().startsWith("incidents-"));
+    }
+
+    /**
+     * Tests that a failed append is truncated away, so the next append and
+     * the index stay readable.
+     */
+    @Test public void rollsBackFailedAppend() throws Exception {
+        IncidentStore store = IncidentStore.open(directory, "failing");
+        try {
+            List<LoggingEvent> events = Arrays.asList(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG,
+                                                                       ">> \"GET /riak HTTP/1.1[\\r][\\n]\"",
+                                                                       null));
+            IncidentRecord first = store.append("first", 1, "node1:8098", null, events);
+
+            Field data = IncidentStore.class.getDeclaredField("data");
+            data.setAccessible(true);
+            final OutputStream out = (OutputStream) data.get(store);
+            data.set(store, new OutputStream() {
+                @Override public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len / 2);
+                    throw new IOException("disk full");
+                }
+            });
+            try {
+                store.append("torn", 2, "node1:8098", null, events);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            out.close();
+            assertEquals(first.getOffset() + first.getLength(), store.getDataFile().length());
+
+            IncidentRecord second = store.append("second", 3, "node2:8098", null, events);
+            assertEquals(first.getOffset() + first.getLength(), second.getOffset());
+            assertEquals(1, store.read("second").size());
+        } finally {
+            store.close();
+        }
+
+        IncidentStore reopened = IncidentStore.openReadOnly(directory, "failing");
+        assertEquals(2, reopened.getRecords().size());
+        assertEquals(0, reopened.get("torn").size());
+        assertEquals(1, reopened.read("second").size());
+    }
+
+    /**
+     * Tests that the index survives a reopen, finds by host, exception and
+     * time, and that a partly written entry is dropped.
+     */
+    @Test public void reopensAndFinds() throws IOException {
+        incident("node1:8098", new NoHttpResponseException());
+        String second = incident("node2:8098", new ConnectException());
+        incident("node1:8098", new ConnectException());
+        appender.close();
+
+        File index = new File(directory, "incidents" + IncidentStore.INDEX_SUFFIX);
+        FileOutputStream torn = new FileOutputStream(index, true);
+        torn.write(new byte[] { 0, 20, 'i', 'n' });
+        torn.close();
+
+        IncidentStore store = IncidentStore.open(directory, "incidents");
+        try {
+            assertEquals(3, store.getRecords().size());
+            assertEquals(2, store.find("node1:8098", null, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            assertEquals(2, store.find(null, "java.net.ConnectException", Long.MIN_VALUE, Long.MAX_VALUE).size());
+            List<IncidentRecord> found = store.find("node2:8098", "java.net.ConnectException", Long.MIN_VALUE,
+                                                    Long.MAX_VALUE);
+            assertEquals(1, found.size());
+            assertEquals(second, found.get(0).getId());
+            long first = store.getRecords().get(0).getTime();
+            assertEquals(0, store.find(null, null, Long.MIN_VALUE, first - 1).size());
+            assertEquals(3, store.find(null, null, first, Long.MAX_VALUE).size());
+            assertEquals(3, store.read(second).size());
+
+            store.append("late", System.currentTimeMillis(), null, null, store.read(second));
+        } finally {
+            store.close();
+        }
+
+        IncidentStore readOnly = IncidentStore.openReadOnly(directory, "incidents");
+        assertEquals(4, readOnly.getRecords().size());
+        assertEquals(InMemoryAppender.UNKNOWN_HOST, readOnly.get("late").get(0).getHost());
+        assertEquals(3, readOnly.read("late").size());
+        readOnly.close();
+    }
+
+    /**
+     * Tests that a store with <code>maxBytes</code> drops its oldest dumps
+     * to stay within it, on disk and in its index, and that a reopen reads
+     * both generations.
+     */
+    @Test public void rotatesWithinMaxBytes() throws IOException {
+        List<LoggingEvent> events = Arrays.asList(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG,
+                                                                   ">> \"GET /riak HTTP/1.1[\\r][\\n]\"", null));
+        IncidentStore store = IncidentStore.open(directory, "bounded", 1024);
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.append("incident-" + i, i, "node1:8098", null, events);
+                assertTrue(store.getSize() + " bytes", store.getSize() <= 1024);
+            }
+            List<IncidentRecord> records = store.getRecords();
+            assertTrue(records.size() + " records", records.size() < 100);
+            assertEquals("incident-99", records.get(records.size() - 1).getId());
+            assertEquals(0, store.get("incident-0").size());
+            assertEquals(1, store.read(records.get(0).getId()).size());
+            assertTrue(new File(directory, "bounded" + IncidentStore.OLD + IncidentStore.DATA_SUFFIX).exists());
+
+            try {
+                store.append("huge", 100, "node1:8098", null, Arrays.asList(new LoggingEvent(
+                    Logger.class.getName(), WIRE, Level.DEBUG, new String(new char[1024]), null)));
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(records.size(), store.getRecords().size());
+        } finally {
+            store.close();
+        }
+
+        IncidentStore reopened = IncidentStore.openReadOnly(directory, "bounded");
+        List<IncidentRecord> records = reopened.getRecords();
+        assertEquals(store.getRecords().size(), records.size());
+        assertEquals(1, reopened.read(records.get(0).getId()).size());
+        assertEquals(1, reopened.read("incident-99").size());
+        reopened.close();
+    }
+
+    private String incident(String host, Throwable cause) {
+        request(host);
+        appender.beginIncident(host, cause, 1);
+        String id = appender.getIncidentId();
+        try {
+            appender.dump();
+        } finally {
+            appender.endIncident();
+        }
+        return id;
+    }
+
+    private void request(String host) {
+        append(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG, ">> \"GET /riak HTTP/1.1[\\r][\\n]\"",
+                                null));
+        append(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG, ">> \"Host: " + host + "[\\r][\\n]\"",
+                                null));
+    }
+
+    private void append(LoggingEvent event) {
+        appender.doAppend(event);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.UUID;
+
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggerFactory;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author russell
+ *
+ */
+public class LatencyTrackingHttpClientTest {
+
+    // needed to vary the logger name
+    // Log4j won't destroy or remove a logger
+    private final String randomName = UUID.randomUUID().toString();
+
+    private HttpServer server;
+    private InMemoryAppender inMemoryAppender;
+    @Mock private Logger mockLogger;
+    @Captor private ArgumentCaptor<LoggingEvent> logEventCaptor;
+
+    @Before public void setUp() throws IOException {
+        MockitoAnnotations.initMocks(this);
+        LoggerFactory lf = new LoggerFactory() {
+            @Override public Logger makeNewLoggerInstance(String str) {
+                return new DelegatingMockLogger("any", mockLogger);
+            }
+        };
+
+        inMemoryAppender = new InMemoryAppender();
+        inMemoryAppender.setName(randomName);
+        inMemoryAppender.setDelegateName("mock.logger" + randomName);
+        inMemoryAppender.setRequestScoped(true);
+
+        Logger wire = Logger.getLogger("httpclient.wire");
+        wire.setLevel(Level.DEBUG);
+        wire.setAdditivity(false);
+        wire.addAppender(inMemoryAppender);
+        Logger.getRootLogger().getLoggerRepository().getLogger("mock.logger" + randomName, lf).setAdditivity(false);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/fast", new Responder(0));
+        server.createContext("/slow", new Responder(1000));
+        server.start();
+    }
+
+    @After public void tearDown() {
+        Logger.getLogger("httpclient.wire").removeAppender(inMemoryAppender);
+        server.stop(0);
+    }
+
+    /**
+     * Tests that only the slow request's wire trace is dumped.
+     */
+    @Test public void dumpsSlowRequestsOnly() throws IOException {
+        LatencyTrackingHttpClient client = new LatencyTrackingHttpClient(randomName);
+        client.setSlowThresholdMillis(500);
+        inMemoryAppender.setRequestTimings(true);
+
+        execute(client, "/fast");
+        execute(client, "/fast");
+        verify(mockLogger, never()).callAppenders(any(LoggingEvent.class));
+
+        execute(client, "/slow");
+        verify(mockLogger, atLeastOnce()).callAppenders(logEventCaptor.capture());
+        boolean sawRequestLine = false;
+        for (LoggingEvent e : logEventCaptor.getAllValues()) {
+            String message = e.getRenderedMessage();
+            assertFalse(message, message.contains("/fast"));
+            sawRequestLine |= message.contains("GET /slow");
+        }
+        assertTrue("Expected the slow request line in the dump", sawRequestLine);
+        assertEquals(1, client.getSlowRequestCount());
+        assertEquals(3, client.getLatencies().getCount());
+
+        // the slow request was completed too
+        long timed = 0;
+        for (HostTimings timings : inMemoryAppender.getHostTimings()) {
+            timed += timings.getTotal().getCount();
+        }
+        assertEquals(3, timed);
+    }
+
+    /**
+     * Tests that once enough samples are seen requests slower than the
+     * percentile are slow.
+     */
+    @Test public void percentileThreshold() {
+        LatencyTrackingHttpClient client = new LatencyTrackingHttpClient(randomName);
+        client.setSlowPercentile(0.99, 256);
+
+        for (int i = 0; i < 256; i++) {
+            assertFalse(client.isSlow(1000 + i % 10));
+        }
+        assertFalse(client.isSlow(1005));
+        assertTrue(client.isSlow(5000));
+    }
+
+    /**
+     * Tests that the percentile is first calculated at minSamples, however
+     * that lines up with the recalculation interval.
+     */
+    @Test public void percentileFromMinSamples() {
+        LatencyTrackingHttpClient client = new LatencyTrackingHttpClient(randomName);
+        client.setSlowPercentile(0.99, 100);
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse(client.isSlow(1000 + i % 10));
+        }
+        assertTrue(client.isSlow(5000));
+    }
+
+    /**
+     * Tests the histogram's percentiles are within a bucket of the truth.
+     */
+    @Test public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertTrue(Math.abs(histogram.getPercentile(0.5) - 500) <= 500 / 8);
+        assertTrue(Math.abs(histogram.getPercentile(0.99) - 990) <= 990 / 8);
+        assertEquals(1000, histogram.getPercentile(1.0));
+    }
+
+    /**
+     * Tests that concurrent recording loses nothing.
+     */
+    @Test public void histogramCountsConcurrentRecords() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(offset * 10000 + i);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(80000, histogram.getCount());
+        assertEquals(79999, histogram.getMax());
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    private void execute(LatencyTrackingHttpClient client, String path) throws IOException {
+        GetMethod get = new GetMethod("http://127.0.0.1:" + server.getAddress().getPort() + path);
+        try {
+            client.executeMethod(get);
+            get.getResponseBody();
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    private static final class Responder implements HttpHandler {
+        private final long delay;
+
+        Responder(long delay) {
+            this.delay = delay;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = "ok".getBytes("UTF-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+}
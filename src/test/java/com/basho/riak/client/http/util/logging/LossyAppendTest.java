@@ -0,0 +1,140 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A lossy {@link InMemoryAppender} drops, rather than waits, when the buffer
+ * is busy.
+ *
+ * @author russell
+ *
+ */
+public class LossyAppendTest {
+
+    private InMemoryAppender appender;
+
+    @Before public void setUp() {
+        appender = new InMemoryAppender();
+        appender.setName("lossy");
+        appender.setLossy(true);
+        appender.activateOptions();
+    }
+
+    @After public void tearDown() {
+        appender.close();
+    }
+
+    /**
+     * Tests that an append made while another thread holds the buffer is
+     * dropped and counted, without waiting.
+     */
+    @Test public void dropsWhenBufferIsBusy() throws Exception {
+        final CountDownLatch holding = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // nothing the appender runs holds the buffer for long, so take it
+        Field field = InMemoryAppender.class.getDeclaredField("bufferLock");
+        field.setAccessible(true);
+        final Lock bufferLock = (Lock) field.get(appender);
+
+        Thread holder = new Thread(new Runnable() {
+            public void run() {
+                bufferLock.lock();
+                try {
+                    holding.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    bufferLock.unlock();
+                }
+            }
+        });
+        holder.start();
+        assertTrue(holding.await(5, TimeUnit.SECONDS));
+
+        long start = System.nanoTime();
+        appender.doAppend(event("fast"));
+        long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        release.countDown();
+        holder.join();
+
+        assertTrue("append waited " + took + "ms", took < 1000);
+        assertEquals(1, appender.getDroppedCount());
+        // numbered before the buffer was tried
+        assertEquals(1, appender.getSequence());
+        assertEquals(1.0, appender.getDropRate(), 0.0001);
+
+        appender.doAppend(event("after"));
+        assertEquals(1, appender.getDroppedCount());
+        assertEquals(2, appender.getSequence());
+        assertEquals(0.5, appender.getDropRate(), 0.0001);
+    }
+
+    /**
+     * Tests that a dump the evaluator triggers runs on the appender's own
+     * thread, not the one that logged the triggering event.
+     */
+    @Test public void dumpsOffTheAppendingThread() throws Exception {
+        final CountDownLatch dumped = new CountDownLatch(1);
+        final String[] dumpedBy = new String[1];
+        InMemoryAppender triggered = new InMemoryAppender() {
+            @Override public void dump() {
+                dumpedBy[0] = Thread.currentThread().getName();
+                dumped.countDown();
+            }
+        };
+        triggered.setName("triggered");
+        triggered.setLossy(true);
+        triggered.setTriggerLevel("ERROR");
+        triggered.activateOptions();
+        try {
+            triggered.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger("lossy"), Level.ERROR,
+                                                "trigger", null));
+            assertTrue(dumped.await(5, TimeUnit.SECONDS));
+            assertEquals("triggered-dumper", dumpedBy[0]);
+        } finally {
+            triggered.close();
+        }
+    }
+
+    /**
+     * Tests that skipping log4j's monitor still honours the threshold.
+     */
+    @Test public void honoursThreshold() {
+        appender.setThreshold(Level.INFO);
+        appender.doAppend(event("below threshold"));
+        assertEquals(0, appender.getSequence());
+        assertEquals(0, appender.getDroppedCount());
+    }
+
+    private static LoggingEvent event(Object message) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("lossy"), Level.DEBUG, message, null);
+    }
+}
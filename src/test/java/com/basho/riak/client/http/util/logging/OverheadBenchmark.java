@@ -0,0 +1,496 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Recording;
+
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodRetryHandler;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.log4j.FileAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.MDC;
+import org.apache.log4j.PatternLayout;
+import org.apache.log4j.varia.NullAppender;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * What always-on wire tracing costs request throughput, end to end.
+ * <p>
+ * Runs commons-httpclient 3.1 against an in-process stub server
+ * (<code>com.sun.net.httpserver</code>) that drops the first attempt of some
+ * requests without a response, answers some slowly and some with a large
+ * body. Which requests misbehave is fixed by the seed, so every mode sees the
+ * same faults. The same load is run with the wire trace off, to a plain
+ * {@link FileAppender}, and to an {@link InMemoryAppender} in each of its
+ * modes, retried by a {@link LogNoHttpResponseRetryHandler}. For each it
+ * reports requests per second, p50, p99 and p999 latency, the allocation
+ * rate of the client threads and the GC time, in
+ * <code>target/overhead-benchmark.txt</code>.
+ * </p>
+ * <p>
+ * Not run by the normal build, use <code>mvn test -Pbenchmark</code>. Tune
+ * with <code>-Dinmem.bench.requests</code>, <code>.warmup</code>,
+ * <code>.threads</code>, <code>.drop</code>, <code>.slow</code>,
+ * <code>.large</code> (rates between 0 and 1) and <code>.seed</code>.
+ * </p>
+ *
+ * @author russell
+ *
+ */
+public class OverheadBenchmark {
+
+    private static final int REQUESTS = Integer.getInteger("inmem.bench.requests", 2000);
+    private static final int WARMUP = Integer.getInteger("inmem.bench.warmup", 500);
+    private static final int THREADS = Integer.getInteger("inmem.bench.threads", 8);
+    private static final double DROP_RATE = rate("inmem.bench.drop", 0.005);
+    private static final double SLOW_RATE = rate("inmem.bench.slow", 0.01);
+    private static final double LARGE_RATE = rate("inmem.bench.large", 0.01);
+    private static final long SEED = Long.getLong("inmem.bench.seed", 42);
+    private static final long SLOW_MILLIS = 20;
+    private static final int LARGE_BYTES = 256 * 1024;
+    private static final int SMALL_BYTES = 64;
+
+    private static final String WIRE = "httpclient.wire";
+    private static final String APPENDER = "bench";
+    private static final String SINK = "overheadBenchmark.sink";
+
+    @Test public void compareModes() throws Exception {
+        StubServer server = new StubServer();
+        Logger wire = Logger.getLogger(WIRE);
+        Logger httpclient = Logger.getLogger("org.apache.commons.httpclient");
+        Level wireLevel = wire.getLevel();
+        Level httpclientLevel = httpclient.getLevel();
+        httpclient.setLevel(Level.WARN);
+        Logger.getLogger(SINK).setAdditivity(false);
+        Logger.getLogger(SINK).addAppender(new NullAppender());
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("OverheadBenchmark %d requests, %d threads, drop %.3f, slow %.3f, large %.3f, seed %d%n",
+                                    REQUESTS, THREADS, DROP_RATE, SLOW_RATE, LARGE_RATE, SEED));
+        report.append(String.format("%-22s %10s %9s %9s %9s %12s %10s %8s %7s%n", "mode", "req/s", "p50 ms",
+                                    "p99 ms", "p999 ms", "alloc MB/s", "KB/req", "GC ms", "errors"));
+
+        server.start();
+        try {
+            for (Mode mode : modes()) {
+                Result result = run(mode, server);
+                report.append(result).append('\n');
+                assertEquals(mode.name + " completed", REQUESTS, result.completed);
+            }
+        } finally {
+            server.stop();
+            wire.setLevel(wireLevel);
+            httpclient.setLevel(httpclientLevel);
+            Logger.getLogger(SINK).removeAllAppenders();
+        }
+        TestReports.write("overhead-benchmark.txt", report);
+    }
+
+    private Result run(Mode mode, StubServer server) throws Exception {
+        Logger wire = Logger.getLogger(WIRE);
+        wire.setLevel(Level.DEBUG);
+        HttpMethodRetryHandler handler = mode.install(wire);
+
+        MultiThreadedHttpConnectionManager connections = new MultiThreadedHttpConnectionManager();
+        connections.getParams().setDefaultMaxConnectionsPerHost(THREADS);
+        connections.getParams().setMaxTotalConnections(THREADS);
+        connections.getParams().setTcpNoDelay(true);
+        HttpClient client = new HttpClient(connections);
+
+        try {
+            // warm up on requests the measured phase won't repeat
+            load(client, handler, server, REQUESTS, WARMUP, new LatencyHistogram());
+
+            LatencyHistogram latencies = new LatencyHistogram();
+            long gcBefore = gcMillis();
+            long start = System.nanoTime();
+            Load load = load(client, handler, server, 0, REQUESTS, latencies);
+            long elapsed = System.nanoTime() - start;
+            return new Result(mode.name, load, latencies, elapsed, gcMillis() - gcBefore);
+        } finally {
+            connections.shutdown();
+            mode.uninstall(wire);
+        }
+    }
+
+    /**
+     * Request <code>/first</code> to <code>/first + count - 1</code> on
+     * <code>THREADS</code> threads
+     */
+    private Load load(final HttpClient client, final HttpMethodRetryHandler handler, final StubServer server,
+                      final int first, final int count, final LatencyHistogram latencies) throws InterruptedException {
+        final AtomicInteger next = new AtomicInteger(first);
+        final Load load = new Load();
+        final com.sun.management.ThreadMXBean threads = allocationCounter();
+        List<Thread> workers = new ArrayList<Thread>();
+
+        for (int i = 0; i < THREADS; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    long allocatedBefore = allocatedBytes(threads);
+                    int n;
+                    while ((n = next.getAndIncrement()) < first + count) {
+                        MDC.put("route", server.route());
+                        GetMethod method = new GetMethod(server.url(n));
+                        method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, handler);
+                        long start = System.nanoTime();
+                        try {
+                            client.executeMethod(method);
+                            drain(method.getResponseBodyAsStream());
+                            load.completed.incrementAndGet();
+                        } catch (IOException e) {
+                            load.errors.incrementAndGet();
+                        } finally {
+                            method.releaseConnection();
+                        }
+                        latencies.record((System.nanoTime() - start) / 1000);
+                    }
+                    MDC.remove("route");
+                    load.allocated.addAndGet(allocatedBytes(threads) - allocatedBefore);
+                }
+            }, "bench-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return load;
+    }
+
+    /**
+     * The wire trace configurations compared
+     */
+    private static List<Mode> modes() {
+        List<Mode> modes = new ArrayList<Mode>();
+
+        modes.add(new Mode("off") {
+            @Override HttpMethodRetryHandler install(Logger wire) {
+                wire.setLevel(Level.OFF);
+                return new DefaultHttpMethodRetryHandler();
+            }
+        });
+
+        modes.add(new Mode("file") {
+            private File file;
+
+            @Override HttpMethodRetryHandler install(Logger wire) throws IOException {
+                file = File.createTempFile("wire", ".log");
+                wire.addAppender(new FileAppender(new PatternLayout("%d [%t] %5p [%c] %m%n"), file.getPath()));
+                return new DefaultHttpMethodRetryHandler();
+            }
+
+            @Override void uninstall(Logger wire) {
+                super.uninstall(wire);
+                file.delete();
+            }
+        });
+
+        modes.add(new InMemoryMode("inmem"));
+        modes.add(new InMemoryMode("inmem lossy") {
+            @Override void configure(InMemoryAppender appender) {
+                appender.setLossy(true);
+            }
+        });
+        modes.add(new InMemoryMode("inmem partitioned") {
+            @Override void configure(InMemoryAppender appender) {
+                appender.setPartitionKey("route");
+            }
+        });
+        modes.add(new InMemoryMode("inmem request scoped") {
+            @Override void configure(InMemoryAppender appender) {
+                appender.setRequestScoped(true);
+            }
+        });
+        modes.add(new InMemoryMode("inmem byte pool") {
+            @Override void configure(InMemoryAppender appender) {
+                appender.setPool("overheadBenchmark");
+                appender.setPoolBytes(4 * 1024 * 1024);
+            }
+        });
+        modes.add(new InMemoryMode("inmem body limit") {
+            @Override void configure(InMemoryAppender appender) {
+                appender.setMaxBodyBytes(512);
+            }
+        });
+        modes.add(new InMemoryMode("inmem request timings") {
+            @Override void configure(InMemoryAppender appender) {
+                appender.setRequestTimings(true);
+            }
+        });
+        modes.add(new InMemoryMode("inmem archive") {
+            private File directory;
+
+            @Override void configure(InMemoryAppender appender) throws IOException {
+                directory = File.createTempFile("archive", "");
+                directory.delete();
+                appender.setArchiveDirectory(directory.getPath());
+            }
+
+            @Override void uninstall(Logger wire) {
+                super.uninstall(wire);
+                File[] segments = directory.listFiles();
+                if (segments != null) {
+                    for (File segment : segments) {
+                        segment.delete();
+                    }
+                }
+                directory.delete();
+            }
+        });
+        if (FlightRecorderBridge.isAvailable()) {
+            modes.add(new InMemoryMode("inmem flight recorder") {
+                private Recording recording;
+
+                @Override void configure(InMemoryAppender appender) {
+                    recording = new Recording();
+                    recording.enable(WireEvent.NAME);
+                    recording.start();
+                    appender.setFlightRecorder(true);
+                }
+
+                @Override void uninstall(Logger wire) {
+                    super.uninstall(wire);
+                    recording.close();
+                }
+            });
+        }
+        return modes;
+    }
+
+    private abstract static class Mode {
+        final String name;
+
+        Mode(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the retry handler to use
+         */
+        abstract HttpMethodRetryHandler install(Logger wire) throws IOException;
+
+        void uninstall(Logger wire) {
+            wire.removeAllAppenders();
+        }
+    }
+
+    private static class InMemoryMode extends Mode {
+
+        InMemoryMode(String name) {
+            super(name);
+        }
+
+        @Override HttpMethodRetryHandler install(Logger wire) throws IOException {
+            InMemoryAppender appender = new InMemoryAppender();
+            appender.setName(APPENDER);
+            appender.setDelegateName(SINK);
+            configure(appender);
+            appender.activateOptions();
+            wire.addAppender(appender);
+            return new LogNoHttpResponseRetryHandler(APPENDER);
+        }
+
+        @Override void uninstall(Logger wire) {
+            wire.getAppender(APPENDER).close();
+            super.uninstall(wire);
+        }
+
+        void configure(InMemoryAppender appender) throws IOException {}
+    }
+
+    /**
+     * Answers <code>/n</code> normally, slowly, with a large body or, the
+     * first time only, not at all, as the seed decides for <code>n</code>
+     */
+    private static final class StubServer implements HttpHandler {
+        private final byte[] small = new byte[SMALL_BYTES];
+        private final byte[] large = new byte[LARGE_BYTES];
+        private final Set<Integer> dropped = ConcurrentHashMap.newKeySet();
+        private HttpServer server;
+        private ExecutorService executor;
+
+        void start() throws IOException {
+            // read once, by the first server; without it Nagle and delayed
+            // acks add 40ms to every response, swamping what is measured
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            executor = Executors.newFixedThreadPool(THREADS * 2);
+            server.setExecutor(executor);
+            server.start();
+        }
+
+        void stop() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+
+        String route() {
+            return Routes.of("127.0.0.1", server.getAddress().getPort());
+        }
+
+        String url(int n) {
+            return "http://" + route() + "/" + n;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            int n = Integer.parseInt(exchange.getRequestURI().getPath().substring(1));
+            drain(exchange.getRequestBody());
+            double roll = uniform(n);
+
+            if (roll < DROP_RATE) {
+                if (dropped.add(n)) {
+                    // close the connection without a response
+                    exchange.close();
+                    return;
+                }
+            } else if (roll < DROP_RATE + SLOW_RATE) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            byte[] body = roll >= 1 - LARGE_RATE ? large : small;
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        /**
+         * @return a number in [0, 1) fixed by the seed and <code>n</code>
+         */
+        private static double uniform(int n) {
+            long x = (SEED ^ n) * 0x9E3779B97F4A7C15L;
+            x ^= x >>> 31;
+            x *= 0xBF58476D1CE4E5B9L;
+            x ^= x >>> 29;
+            return (x >>> 11) / (double) (1L << 53);
+        }
+    }
+
+    private static final class Load {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final AtomicLong allocated = new AtomicLong();
+    }
+
+    private static final class Result {
+        final String mode;
+        final int completed;
+        final int errors;
+        final double requestsPerSecond;
+        final LatencyHistogram latencies;
+        final double allocatedMBPerSecond;
+        final double allocatedKBPerRequest;
+        final long gcMillis;
+
+        Result(String mode, Load load, LatencyHistogram latencies, long elapsedNanos, long gcMillis) {
+            double seconds = elapsedNanos / 1e9;
+            this.mode = mode;
+            this.completed = load.completed.get();
+            this.errors = load.errors.get();
+            this.requestsPerSecond = REQUESTS / seconds;
+            this.latencies = latencies;
+            this.allocatedMBPerSecond = load.allocated.get() / seconds / (1024 * 1024);
+            this.allocatedKBPerRequest = load.allocated.get() / (double) REQUESTS / 1024;
+            this.gcMillis = gcMillis;
+        }
+
+        @Override public String toString() {
+            return String.format("%-22s %10.0f %9.2f %9.2f %9.2f %12.1f %10.1f %8d %7d", mode, requestsPerSecond,
+                                 latencies.getPercentile(0.5) / 1000.0, latencies.getPercentile(0.99) / 1000.0,
+                                 latencies.getPercentile(0.999) / 1000.0, allocatedMBPerSecond,
+                                 allocatedKBPerRequest, gcMillis, errors);
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buffer = new byte[8192];
+        try {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * @return the JVM's per thread allocation counter, or <code>null</code>
+     *         if it has none
+     */
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        return threads == null ? 0 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static double rate(String property, double defaultRate) {
+        String value = System.getProperty(property);
+        return value == null ? defaultRate : Double.parseDouble(value);
+    }
+}
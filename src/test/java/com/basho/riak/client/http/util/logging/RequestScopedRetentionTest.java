@@ -0,0 +1,232 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggerFactory;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * A request scoped {@link InMemoryAppender} must only retain the events of
+ * requests that failed.
+ *
+ * @author russell
+ *
+ */
+public class RequestScopedRetentionTest {
+
+    private static final String REQUEST_LINE = ">> \"GET /riak/bucket/%d HTTP/1.1[\\r][\\n]\"";
+    private static final int CAPACITY = 20;
+    // needed to vary the logger name
+    // Log4j won't destroy or remove a logger
+    private final String randomName = UUID.randomUUID().toString();
+
+    private InMemoryAppender inMemoryAppender;
+    private Logger wire;
+    @Mock private Logger mockLogger;
+    @Captor private ArgumentCaptor<LoggingEvent> logEventCaptor;
+
+    @Before public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        LoggerFactory lf = new LoggerFactory() {
+            @Override public Logger makeNewLoggerInstance(String str) {
+                return new DelegatingMockLogger("any", mockLogger);
+            }
+        };
+
+        inMemoryAppender = new InMemoryAppender();
+        inMemoryAppender.setCapacity(CAPACITY);
+        inMemoryAppender.setDelegateName("mock.logger" + randomName);
+        inMemoryAppender.setRequestScoped(true);
+        inMemoryAppender.setDumpSummary(false);
+
+        wire = Logger.getLogger("httpclient.wire.header" + randomName);
+        wire.setLevel(Level.DEBUG);
+        wire.setAdditivity(false);
+        wire.addAppender(inMemoryAppender);
+
+        Logger.getRootLogger().getLoggerRepository().getLogger("mock.logger" + randomName, lf).setAdditivity(false);
+    }
+
+    @After public void tearDown() {
+        inMemoryAppender.close();
+    }
+
+    /**
+     * Tests that a request is discarded when the next one starts on the same
+     * thread, or when it is completed.
+     */
+    @Test public void cleanRequestsAreDiscarded() {
+        request(1, 5);
+        request(2, 5);
+        inMemoryAppender.requestCompleted(true);
+
+        inMemoryAppender.dump();
+        verify(mockLogger, never()).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Tests that dumping, as the retry handler does, keeps the request in
+     * flight.
+     */
+    @Test public void requestInFlightIsDumped() {
+        request(1, 5);
+        request(2, 3);
+
+        inMemoryAppender.dump();
+        verify(mockLogger, times(3)).callAppenders(logEventCaptor.capture());
+        assertEquals(String.format(REQUEST_LINE, 2), logEventCaptor.getAllValues().get(0).getMessage());
+    }
+
+    /**
+     * Tests that failed requests survive far more clean traffic than the
+     * buffer could hold.
+     */
+    @Test public void failedRequestsOutliveCleanTraffic() {
+        request(1, 3);
+        wire.error("connection reset");
+        for (int i = 2; i < CAPACITY * 10; i++) {
+            request(i, 5);
+        }
+        request(CAPACITY * 10, 2);
+        inMemoryAppender.requestCompleted(false);
+
+        inMemoryAppender.dump();
+        verify(mockLogger, times(4 + 2)).callAppenders(logEventCaptor.capture());
+        assertEquals(String.format(REQUEST_LINE, 1), logEventCaptor.getAllValues().get(0).getMessage());
+        assertEquals(String.format(REQUEST_LINE, CAPACITY * 10), logEventCaptor.getAllValues().get(4).getMessage());
+    }
+
+    /**
+     * Tests that a new request capacity reaches a request already in flight
+     * on another thread.
+     */
+    @Test public void requestCapacityReachesOtherThreads() throws InterruptedException {
+        onOtherThread(new Runnable() {
+            public void run() {
+                inMemoryAppender.setRequestCapacity(2);
+            }
+        }, new Runnable() {
+            public void run() {
+                for (int i = 0; i < 3; i++) {
+                    wire.debug("<< \"more " + i + "\"");
+                }
+                inMemoryAppender.requestCompleted(false);
+            }
+        });
+
+        inMemoryAppender.dump();
+        verify(mockLogger, times(2)).callAppenders(logEventCaptor.capture());
+        assertEquals("<< \"more 2\"", logEventCaptor.getAllValues().get(1).getMessage());
+    }
+
+    /**
+     * Tests that every thread's requests in flight together hold no more
+     * than <code>maxPending</code> events, the thread going over gives up
+     * its own.
+     */
+    @Test public void maxPendingCoversEveryThread() throws InterruptedException {
+        inMemoryAppender.setMaxPending(7);
+        onOtherThread(new Runnable() {
+            public void run() {
+                request(2, 5);
+                assertEquals(7, inMemoryAppender.getPendingEvents());
+                assertEquals(3, inMemoryAppender.getPendingDroppedCount());
+            }
+        }, new Runnable() {
+            public void run() {
+                inMemoryAppender.requestCompleted(true);
+            }
+        });
+        assertEquals(2, inMemoryAppender.getPendingEvents());
+
+        inMemoryAppender.requestCompleted(false);
+        assertEquals(0, inMemoryAppender.getPendingEvents());
+        inMemoryAppender.dump();
+        verify(mockLogger, times(2)).callAppenders(logEventCaptor.capture());
+        assertEquals("<< \"line 3[\\r][\\n]\"", logEventCaptor.getAllValues().get(0).getMessage());
+    }
+
+    /**
+     * Tests that clearing forgets the requests in flight on every thread.
+     */
+    @Test public void clearForgetsOtherThreadsRequests() throws InterruptedException {
+        onOtherThread(new Runnable() {
+            public void run() {
+                inMemoryAppender.clear();
+                assertEquals(0, inMemoryAppender.getPendingEvents());
+            }
+        }, new Runnable() {
+            public void run() {
+                inMemoryAppender.requestCompleted(false);
+            }
+        });
+
+        inMemoryAppender.dump();
+        verify(mockLogger, never()).callAppenders(any(LoggingEvent.class));
+    }
+
+    /**
+     * Starts a five line request on another thread, runs <code>meanwhile</code>
+     * on this one, then <code>then</code> on the other.
+     */
+    private void onOtherThread(Runnable meanwhile, final Runnable then) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        Thread other = new Thread(new Runnable() {
+            public void run() {
+                request(1, 5);
+                started.countDown();
+                try {
+                    resume.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                then.run();
+            }
+        });
+        other.start();
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        meanwhile.run();
+        resume.countDown();
+        other.join(10000);
+    }
+
+    private void request(int id, int lines) {
+        wire.debug(String.format(REQUEST_LINE, id));
+        for (int i = 1; i < lines; i++) {
+            wire.debug("<< \"line " + i + "[\\r][\\n]\"");
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Request timings are worked out from wire event timestamps.
+ *
+ * @author russell
+ *
+ */
+public class RequestTimingTest {
+
+    private static final Logger HEADER = Logger.getLogger("httpclient.wire.header");
+    private static final Logger CONTENT = Logger.getLogger("httpclient.wire.content");
+    private static final String SINK = "requestTimingTest.sink";
+
+    private final List<String> sunk = new ArrayList<String>();
+    private final AppenderSkeleton capture = new AppenderSkeleton() {
+        @Override protected void append(LoggingEvent event) {
+            sunk.add(event.getRenderedMessage());
+        }
+
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        public void close() {}
+    };
+    private InMemoryAppender appender;
+
+    @Before public void setUp() {
+        Logger.getLogger(SINK).addAppender(capture);
+        Logger.getLogger(SINK).setAdditivity(false);
+        appender = new InMemoryAppender();
+        appender.setName("timed");
+        appender.setDelegateName(SINK);
+        appender.setDumpSummary(false);
+        appender.setRequestTimings(true);
+    }
+
+    @After public void tearDown() {
+        Logger.getLogger(SINK).removeAppender(capture);
+    }
+
+    /**
+     * Tests each phase of a request is timed.
+     */
+    @Test public void breaksDownRequest() {
+        put(1000, "node1:8098");
+
+        List<RequestTiming> timings = appender.getRequestTimings();
+        assertEquals(1, timings.size());
+        RequestTiming timing = timings.get(0);
+        assertEquals("PUT /riak/b/k", timing.getRequest());
+        assertEquals("node1:8098", timing.getHost());
+        assertEquals(1000, timing.getStart());
+        assertEquals(5, timing.getSendMillis());
+        assertEquals(40, timing.getFirstByteMillis());
+        assertEquals(2, timing.getHeaderMillis());
+        assertEquals(10, timing.getBodyMillis());
+        assertEquals(40, timing.getMaxGapMillis());
+        assertEquals(57, timing.getTotalMillis());
+        assertTrue(timing.isAnswered());
+
+        // the query leaves the buffer alone
+        assertEquals(1, appender.getRequestTimings().size());
+    }
+
+    /**
+     * Tests that HttpClient 4.x's single wire logger, connection ids and all,
+     * is timed the same way.
+     */
+    @Test public void timesHttpClient4Wire() {
+        Logger wire = Logger.getLogger("org.apache.http.wire");
+        append(wire, 1000, "main", "http-outgoing-3 >> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"");
+        append(wire, 1001, "main", "http-outgoing-3 >> \"Host: node1:8098[\\r][\\n]\"");
+        append(wire, 1002, "main", "http-outgoing-3 >> \"[\\r][\\n]\"");
+        append(wire, 1005, "main", "http-outgoing-3 >> \"value\"");
+        append(wire, 1045, "main", "http-outgoing-3 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(wire, 1047, "main", "http-outgoing-3 << \"[\\r][\\n]\"");
+        append(wire, 1050, "main", "http-outgoing-3 << \"chunk\"");
+        append(wire, 1057, "main", "http-outgoing-3 << \"chunk\"");
+
+        List<RequestTiming> timings = appender.getRequestTimings();
+        assertEquals(1, timings.size());
+        RequestTiming timing = timings.get(0);
+        assertEquals("PUT /riak/b/k", timing.getRequest());
+        assertEquals("node1:8098", timing.getHost());
+        assertEquals(5, timing.getSendMillis());
+        assertEquals(40, timing.getFirstByteMillis());
+        assertEquals(2, timing.getHeaderMillis());
+        assertEquals(10, timing.getBodyMillis());
+        assertEquals(57, timing.getTotalMillis());
+    }
+
+    /**
+     * Tests a request with no response, and that requests are told apart per
+     * thread.
+     */
+    @Test public void timesPerThread() {
+        append(HEADER, 0, "a", ">> \"GET /riak/b/1 HTTP/1.1[\\r][\\n]\"");
+        append(HEADER, 1, "b", ">> \"GET /riak/b/2 HTTP/1.1[\\r][\\n]\"");
+        append(HEADER, 2, "a", ">> \"[\\r][\\n]\"");
+        append(HEADER, 20, "b", "<< \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(HEADER, 30, "a", ">> \"GET /riak/b/3 HTTP/1.1[\\r][\\n]\"");
+
+        List<RequestTiming> timings = appender.getRequestTimings();
+        assertEquals(3, timings.size());
+        assertEquals("GET /riak/b/1", timings.get(0).getRequest());
+        assertFalse(timings.get(0).isAnswered());
+        assertEquals(2, timings.get(0).getTotalMillis());
+        assertEquals("GET /riak/b/2", timings.get(1).getRequest());
+        assertEquals("b", timings.get(1).getThread());
+        assertEquals(19, timings.get(1).getFirstByteMillis());
+        assertEquals("GET /riak/b/3", timings.get(2).getRequest());
+    }
+
+    /**
+     * Tests that HttpClient 4.x requests are told apart per connection: two
+     * connections interleaved on one thread, and a connection whose response
+     * is logged by another thread.
+     */
+    @Test public void timesPerConnection() {
+        Logger wire = Logger.getLogger("org.apache.http.wire");
+        append(wire, 0, "main", "http-outgoing-1 >> \"GET /riak/b/1 HTTP/1.1[\\r][\\n]\"");
+        append(wire, 1, "main", "http-outgoing-1 >> \"Host: node1:8098[\\r][\\n]\"");
+        append(wire, 2, "main", "http-outgoing-2 >> \"GET /riak/b/2 HTTP/1.1[\\r][\\n]\"");
+        append(wire, 3, "main", "http-outgoing-2 >> \"Host: node2:8098[\\r][\\n]\"");
+        append(wire, 10, "main", "http-outgoing-2 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(wire, 30, "other", "http-outgoing-1 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(wire, 40, "main", "http-outgoing-1 >> \"GET /riak/b/3 HTTP/1.1[\\r][\\n]\"");
+
+        List<RequestTiming> timings = appender.getRequestTimings();
+        assertEquals(3, timings.size());
+        assertEquals("GET /riak/b/1", timings.get(0).getRequest());
+        assertEquals("node1:8098", timings.get(0).getHost());
+        assertEquals(29, timings.get(0).getFirstByteMillis());
+        assertEquals("GET /riak/b/2", timings.get(1).getRequest());
+        assertEquals("node2:8098", timings.get(1).getHost());
+        assertEquals(7, timings.get(1).getFirstByteMillis());
+
+        // live, the first request was recorded when its connection's next began
+        assertEquals(1, appender.getHostTimings("node1:8098").getTotal().getCount());
+        assertEquals(null, appender.getHostTimings("node2:8098"));
+    }
+
+    /**
+     * Tests dumps follow each request with its timing.
+     */
+    @Test public void annotatesDump() {
+        put(1000, "node1:8098");
+        appender.dump();
+
+        assertEquals(9, sunk.size());
+        assertEquals("timed timing PUT /riak/b/k on node1:8098 [main]: send 5 ms, first byte 40 ms, headers 2 ms,"
+                     + " body 10 ms, max gap 40 ms, total 57 ms", sunk.get(8));
+    }
+
+    /**
+     * Tests completed requests feed their host's histograms.
+     */
+    @Test public void feedsHostHistograms() {
+        put(1000, "node1:8098");
+        put(2000, "node1:8098");
+        put(3000, "node2:8098");
+        appender.requestCompleted(true);
+
+        HostTimings node1 = appender.getHostTimings("node1:8098");
+        assertEquals(2, node1.getTotal().getCount());
+        assertEquals(40, node1.getFirstByte().getMax());
+        assertEquals(12, node1.getTransfer().getMax());
+        assertEquals(1, appender.getHostTimings("node2:8098").getTotal().getCount());
+        assertEquals(2, appender.getHostTimings().size());
+    }
+
+    private void put(long start, String host) {
+        append(HEADER, start, "main", ">> \"PUT /riak/b/k HTTP/1.1[\\r][\\n]\"");
+        append(HEADER, start + 1, "main", ">> \"Host: " + host + "[\\r][\\n]\"");
+        append(HEADER, start + 2, "main", ">> \"[\\r][\\n]\"");
+        append(CONTENT, start + 5, "main", ">> \"value\"");
+        append(HEADER, start + 45, "main", "<< \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        append(HEADER, start + 47, "main", "<< \"[\\r][\\n]\"");
+        append(CONTENT, start + 50, "main", "<< \"chunk\"");
+        append(CONTENT, start + 57, "main", "<< \"chunk\"");
+    }
+
+    private void append(Logger logger, long timestamp, String thread, String message) {
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, timestamp, Level.DEBUG, message, thread,
+                                           null, null, null, null));
+    }
+}
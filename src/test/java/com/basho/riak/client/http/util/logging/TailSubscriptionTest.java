@@ -0,0 +1,192 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.Filter;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author russell
+ *
+ */
+public class TailSubscriptionTest {
+
+    private InMemoryAppender appender;
+
+    @Before public void setUp() {
+        appender = new InMemoryAppender();
+        appender.setName("tailTest");
+        appender.setCapacity(10);
+    }
+
+    @After public void tearDown() {
+        appender.close();
+    }
+
+    /**
+     * Tests that history and live events meet without a gap or repeat.
+     */
+    @Test public void startsFromHistory() {
+        appender.doAppend(event("one"));
+        appender.doAppend(event("two"));
+
+        TailSubscription tail = appender.subscribe(null, 10, true);
+        appender.doAppend(event("three"));
+
+        assertEquals("[one, two, three]", messages(tail).toString());
+        assertEquals(3, tail.getDeliveredCount());
+
+        TailSubscription live = appender.subscribe(null, 10, false);
+        appender.doAppend(event("four"));
+        assertEquals("[four]", messages(live).toString());
+    }
+
+    /**
+     * Tests that a filter chain picks the events delivered, run as they are
+     * polled rather than appended.
+     */
+    @Test public void filters() {
+        final AtomicInteger decided = new AtomicInteger();
+        Filter denyTwo = new Filter() {
+            @Override public int decide(LoggingEvent event) {
+                decided.incrementAndGet();
+                return "two".equals(event.getMessage()) ? Filter.DENY : Filter.NEUTRAL;
+            }
+        };
+        TailSubscription tail = appender.subscribe(denyTwo, 10, false);
+
+        appender.doAppend(event("one"));
+        appender.doAppend(event("two"));
+        appender.doAppend(event("three"));
+        assertEquals(0, decided.get());
+
+        assertEquals("[one, three]", messages(tail).toString());
+        assertEquals(3, decided.get());
+        assertEquals(2, tail.getDeliveredCount());
+        // the buffer is unaffected
+        assertEquals(3, appender.getSequence());
+    }
+
+    /**
+     * Tests that a slow subscriber loses events, and is dropped once it has
+     * lost too many, without holding up appends.
+     */
+    @Test public void slowSubscriberLosesEvents() {
+        TailSubscription losing = appender.subscribe(null, 2, true);
+        TailSubscription dropped = appender.subscribe(null, 2, 3, false);
+
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(event("event " + i));
+        }
+
+        assertEquals(8, losing.getLostCount());
+        assertFalse(losing.isClosed());
+        assertEquals("[event 0, event 1]", messages(losing).toString());
+
+        assertEquals(4, dropped.getLostCount());
+        assertTrue(dropped.isClosed());
+        assertEquals(1, appender.getTailSubscriptions().size());
+        assertEquals("[event 0, event 1]", messages(dropped).toString());
+    }
+
+    /**
+     * Tests that a subscription not polled for the idle time is closed.
+     */
+    @Test public void closesIdleSubscription() throws InterruptedException {
+        appender.setTailIdleMillis(50);
+        TailSubscription tail = appender.subscribe(null, 10, false);
+
+        appender.doAppend(event("now"));
+        Thread.sleep(100);
+        appender.doAppend(event("later"));
+
+        assertTrue(tail.isClosed());
+        assertTrue(appender.getTailSubscriptions().isEmpty());
+        assertEquals("[now]", messages(tail).toString());
+    }
+
+    /**
+     * Tests that idleness is timed by the clock, not by the timestamps of
+     * the events appended.
+     */
+    @Test public void ignoresEventTimestampsForIdleness() {
+        appender.setTailIdleMillis(1000);
+        TailSubscription tail = appender.subscribe(null, 10, false);
+
+        long later = System.currentTimeMillis() + 60000;
+        appender.doAppend(new LoggingEvent(Logger.class.getName(), Logger.getLogger("tail"), later, Level.DEBUG,
+                                           "stamped later", null));
+
+        assertFalse(tail.isClosed());
+        assertEquals("[stamped later]", messages(tail).toString());
+    }
+
+    /**
+     * Tests subscribing and polling through JMX.
+     */
+    @Test public void tailsThroughJmx() throws Exception {
+        appender.setJmx(true);
+        appender.activateOptions();
+        appender.doAppend(event(">> \"GET /riak HTTP/1.1[\\r][\\n]\""));
+        appender.doAppend(event("<< \"HTTP/1.1 200 OK[\\r][\\n]\""));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = InMemoryTail.nameOf("tailTest");
+        long id = (Long) server.invoke(name, "subscribe", new Object[] { "^<<", true }, new String[] {
+                "java.lang.String", "boolean" });
+        appender.doAppend(event(">> \"PUT /riak HTTP/1.1[\\r][\\n]\""));
+        appender.doAppend(event("<< \"HTTP/1.1 204 No Content[\\r][\\n]\""));
+
+        String[] lines = (String[]) server.invoke(name, "poll", new Object[] { id, 10 },
+                                                  new String[] { "long", "int" });
+        assertEquals(2, lines.length);
+        assertTrue(lines[0], lines[0].contains("200 OK"));
+        assertTrue(lines[1], lines[1].contains("204 No Content"));
+        assertEquals(1, ((String[]) server.getAttribute(name, "Subscriptions")).length);
+
+        appender.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static List<Object> messages(TailSubscription tail) {
+        List<LoggingEvent> events = new ArrayList<LoggingEvent>();
+        tail.drainTo(events, Integer.MAX_VALUE);
+        List<Object> messages = new ArrayList<Object>();
+        for (LoggingEvent e : events) {
+            messages.add(e.getMessage());
+        }
+        return messages;
+    }
+
+    private static LoggingEvent event(String message) {
+        return new LoggingEvent(Logger.class.getName(), Logger.getLogger("tail"), Level.DEBUG, message, null);
+    }
+}
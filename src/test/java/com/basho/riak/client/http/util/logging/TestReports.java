@@ -0,0 +1,52 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes what a long running test found to a file under the build's
+ * <code>target</code> directory, rather than the console.
+ *
+ * @author russell
+ *
+ */
+final class TestReports {
+
+    private TestReports() {}
+
+    /**
+     * @param name
+     *            the report's file name
+     * @return the file written
+     */
+    static File write(String name, CharSequence report) throws IOException {
+        File directory = new File(System.getProperty("basedir", "."), "target");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File file = new File(directory, name);
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(report.toString());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.hc4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basho.riak.client.http.util.logging.InMemoryAppender;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author russell
+ *
+ */
+public class LogNoHttpResponseRequestRetryHandlerTest {
+
+    private static final Logger WIRE = Logger.getLogger(LogNoHttpResponseRequestRetryHandler.WIRE_LOGGER);
+    private static final String SINK = "hc4Test.sink";
+
+    private final List<String> sunk = new ArrayList<String>();
+    private final AppenderSkeleton capture = new AppenderSkeleton() {
+        @Override protected void append(LoggingEvent event) {
+            sunk.add(event.getRenderedMessage());
+        }
+
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        public void close() {}
+    };
+    private InMemoryAppender appender;
+    private LogNoHttpResponseRequestRetryHandler handler;
+
+    @Before public void setUp() {
+        Logger.getLogger(SINK).addAppender(capture);
+        Logger.getLogger(SINK).setAdditivity(false);
+        appender = new InMemoryAppender();
+        appender.setName("hc4");
+        appender.setDelegateName(SINK);
+        appender.setDumpSummary(false);
+        appender.setPartitionKey(InMemoryAppender.CONNECTION_KEY);
+        WIRE.addAppender(appender);
+        handler = new LogNoHttpResponseRequestRetryHandler("hc4", new HttpRequestRetryHandler() {
+            public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+                return true;
+            }
+        });
+    }
+
+    @After public void tearDown() {
+        WIRE.removeAppender(appender);
+        Logger.getLogger(SINK).removeAppender(capture);
+    }
+
+    /**
+     * Tests only the failed request's connection is dumped.
+     */
+    @Test public void dumpsFailedConnection() {
+        wire("http-outgoing-0 >> \"GET /riak/b/1 HTTP/1.1[\\r][\\n]\"");
+        wire("http-outgoing-1 >> \"GET /riak/b/2 HTTP/1.1[\\r][\\n]\"");
+        wire("http-outgoing-0 << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+        wire("http-outgoing-1 >> \"[\\r][\\n]\"");
+
+        assertTrue(handler.retryRequest(new NoHttpResponseException("gone"), 1, contextOn("http-outgoing-1")));
+        assertEquals(Arrays.asList("http-outgoing-1 >> \"GET /riak/b/2 HTTP/1.1[\\r][\\n]\"",
+                                   "http-outgoing-1 >> \"[\\r][\\n]\""), sunk);
+    }
+
+    /**
+     * Tests other exceptions don't dump, but are still handed to the
+     * delegate.
+     */
+    @Test public void ignoresOtherExceptions() {
+        wire("http-outgoing-0 >> \"GET /riak/b/1 HTTP/1.1[\\r][\\n]\"");
+
+        assertTrue(handler.retryRequest(new SocketTimeoutException(), 1, contextOn("http-outgoing-0")));
+        assertTrue(sunk.isEmpty());
+    }
+
+    /**
+     * Tests the failed connection is dumped by the id recorded when the
+     * request was sent, as HttpClient has released it to the pool by the time
+     * the handler is called.
+     */
+    @Test public void dumpsRecordedConnectionFromPool() throws Exception {
+        CloseableHttpClient client = clientFor(HttpClients.custom()
+                                                          .setRequestExecutor(new ConnectionRecordingRequestExecutor()));
+        assertRetried(client);
+    }
+
+    /**
+     * Tests that without the recorded id the handler still dumps, every
+     * connection waiting on the failed host, and the request is retried.
+     */
+    @Test public void dumpsUnansweredFromPool() throws Exception {
+        assertRetried(clientFor(HttpClients.custom()));
+    }
+
+    private CloseableHttpClient clientFor(HttpClientBuilder builder) {
+        handler = new LogNoHttpResponseRequestRetryHandler("hc4", DefaultHttpRequestRetryHandler.INSTANCE);
+        return builder.setConnectionManager(new PoolingHttpClientConnectionManager()).setRetryHandler(handler)
+                      .build();
+    }
+
+    /**
+     * Runs a GET against a server that drops the first attempt without a
+     * response
+     */
+    private void assertRetried(CloseableHttpClient client) throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, 2);
+                exchange.getResponseBody().write("ok".getBytes("UTF-8"));
+                exchange.close();
+            }
+        });
+        server.start();
+        Level level = WIRE.getLevel();
+        WIRE.setLevel(Level.DEBUG);
+
+        try {
+            CloseableHttpResponse response = client.execute(new HttpGet("http://127.0.0.1:"
+                                                                        + server.getAddress().getPort() + "/riak"));
+            try {
+                assertEquals(200, response.getStatusLine().getStatusCode());
+                EntityUtils.consume(response.getEntity());
+            } finally {
+                response.close();
+            }
+        } finally {
+            WIRE.setLevel(level);
+            client.close();
+            server.stop(0);
+        }
+
+        assertEquals(2, attempts.get());
+        assertTrue(sunk.toString(), !sunk.isEmpty());
+        assertTrue(sunk.get(0), sunk.get(0).matches("http-outgoing-\\d+ >> \"GET /riak HTTP/1.1.*"));
+        String connection = sunk.get(0).substring(0, sunk.get(0).indexOf(' '));
+        for (String line : sunk) {
+            assertTrue(line, line.startsWith(connection + " "));
+        }
+    }
+
+    private static HttpContext contextOn(String connectionId) {
+        ManagedHttpClientConnection connection = mock(ManagedHttpClientConnection.class);
+        when(connection.getId()).thenReturn(connectionId);
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpClientContext.HTTP_CONNECTION, connection);
+        return context;
+    }
+
+    private static void wire(String message) {
+        WIRE.callAppenders(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG, message, null));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.hc5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.NoHttpResponseException;
+import org.apache.hc.core5.http.io.HttpClientResponseHandler;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.basho.riak.client.http.util.logging.InMemoryAppender;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author russell
+ *
+ */
+public class LogNoHttpResponseRetryStrategyTest {
+
+    private static final Logger WIRE = Logger.getLogger(LogNoHttpResponseRetryStrategy.WIRE_LOGGER);
+    private static final String SINK = "hc5Test.sink";
+
+    private final List<String> sunk = new ArrayList<String>();
+    private final AppenderSkeleton capture = new AppenderSkeleton() {
+        @Override protected void append(LoggingEvent event) {
+            sunk.add(event.getRenderedMessage());
+        }
+
+        public boolean requiresLayout() {
+            return false;
+        }
+
+        public void close() {}
+    };
+    private InMemoryAppender appender;
+    private LogNoHttpResponseRetryStrategy strategy;
+
+    @Before public void setUp() {
+        Logger.getLogger(SINK).addAppender(capture);
+        Logger.getLogger(SINK).setAdditivity(false);
+        appender = new InMemoryAppender();
+        appender.setName("hc5");
+        appender.setDelegateName(SINK);
+        appender.setDumpSummary(false);
+        appender.setPartitionKey(InMemoryAppender.CONNECTION_KEY);
+        WIRE.addAppender(appender);
+        strategy = new LogNoHttpResponseRetryStrategy("hc5");
+    }
+
+    @After public void tearDown() {
+        WIRE.removeAppender(appender);
+        Logger.getLogger(SINK).removeAppender(capture);
+    }
+
+    /**
+     * Tests that of the connections multiplexed on one I/O thread, only the
+     * ones awaiting a response from the failed host are dumped.
+     */
+    @Test public void dumpsUnansweredConnectionsToHost() {
+        request("i/o-0000000a", "/riak/b/1", "node1:8098");
+        request("i/o-0000000b", "/riak/b/2", "node1:8098");
+        request("i/o-0000000c", "/riak/b/3", "node2:8098");
+        wire("i/o-0000000b << \"HTTP/1.1 200 OK[\\r][\\n]\"");
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpClientContext.HTTP_ROUTE, new HttpRoute(new HttpHost("http", "node1", 8098)));
+        strategy.retryRequest(new BasicHttpRequest("GET", "/riak/b/1"), new NoHttpResponseException("gone"), 1,
+                              context);
+
+        assertEquals(Arrays.asList("i/o-0000000a >> \"GET /riak/b/1 HTTP/1.1[\\r][\\n]\"",
+                                   "i/o-0000000a >> \"Host: node1:8098[\\r][\\n]\"",
+                                   "i/o-0000000a >> \"[\\r][\\n]\""), sunk);
+    }
+
+    /**
+     * Tests a host header without the default port still matches.
+     */
+    @Test public void matchesDefaultPort() {
+        request("http-outgoing-0", "/", "node1");
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setAttribute(HttpClientContext.HTTP_ROUTE, new HttpRoute(new HttpHost("http", "node1", 80)));
+        strategy.retryRequest(new BasicHttpRequest("GET", "/"), new NoHttpResponseException("gone"), 1, context);
+
+        assertEquals(3, sunk.size());
+    }
+
+    /**
+     * Tests a real classic client, logging its wire through SLF4J, dumps the
+     * connection the server dropped and retries the request.
+     */
+    @Test public void dumpsDroppedConnectionOfClassicClient() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                if (attempts.incrementAndGet() == 1) {
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(200, 2);
+                exchange.getResponseBody().write("ok".getBytes("UTF-8"));
+                exchange.close();
+            }
+        });
+        server.start();
+        Level level = WIRE.getLevel();
+        WIRE.setLevel(Level.DEBUG);
+
+        strategy = new LogNoHttpResponseRetryStrategy("hc5", new DefaultHttpRequestRetryStrategy(1,
+                                                                                              TimeValue.ZERO_MILLISECONDS));
+        CloseableHttpClient client = HttpClients.custom()
+                                                .setConnectionManager(PoolingHttpClientConnectionManagerBuilder.create()
+                                                                                                               .build())
+                                                .setRetryStrategy(strategy).build();
+        int status;
+        try {
+            status = client.execute(new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/riak"),
+                                    new HttpClientResponseHandler<Integer>() {
+                                        public Integer handleResponse(ClassicHttpResponse response)
+                                                throws IOException {
+                                            EntityUtils.consume(response.getEntity());
+                                            return response.getCode();
+                                        }
+                                    });
+        } finally {
+            WIRE.setLevel(level);
+            client.close();
+            server.stop(0);
+        }
+
+        assertEquals(200, status);
+        assertEquals(2, attempts.get());
+        assertTrue(sunk.toString(), !sunk.isEmpty());
+        assertTrue(sunk.get(0), sunk.get(0).matches("http-outgoing-\\d+ >> \"GET /riak HTTP/1.1.*"));
+        String connection = sunk.get(0).substring(0, sunk.get(0).indexOf(' '));
+        for (String line : sunk) {
+            assertTrue(line, line.startsWith(connection + " "));
+        }
+    }
+
+    private static void request(String connection, String path, String host) {
+        wire(connection + " >> \"GET " + path + " HTTP/1.1[\\r][\\n]\"");
+        wire(connection + " >> \"Host: " + host + "[\\r][\\n]\"");
+        wire(connection + " >> \"[\\r][\\n]\"");
+    }
+
+    private static void wire(String message) {
+        WIRE.callAppenders(new LoggingEvent(Logger.class.getName(), WIRE, Level.DEBUG, message, null));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * This file is provided to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.basho.riak.client.http.util.logging.log4j2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.message.ReusableSimpleMessage;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The Log4j 2 appender must copy reused events, evict FIFO, append without
+ * allocating, and keep appending while a dump flushes.
+ *
+ * @author russell
+ *
+ */
+public class Log4j2InMemoryAppenderTest {
+
+    private static final int CAPACITY = 10;
+
+    private final String sinkName = "log4j2.sink." + UUID.randomUUID();
+
+    private LoggerContext context;
+    private Sink sink;
+    private Log4j2InMemoryAppender appender;
+    private MutableLogEvent event;
+    private ReusableSimpleMessage message;
+
+    @Before public void setUp() {
+        context = LoggerContext.getContext(false);
+        Configuration config = context.getConfiguration();
+        sink = new Sink();
+        sink.start();
+        config.addAppender(sink);
+        LoggerConfig loggerConfig = new LoggerConfig(sinkName, Level.ALL, false);
+        loggerConfig.addAppender(sink, null, null);
+        config.addLogger(sinkName, loggerConfig);
+        context.updateLoggers();
+
+        appender = Log4j2InMemoryAppender.createAppender("InMem", CAPACITY, sinkName, null);
+        appender.start();
+
+        // one event and message, reused like Log4j 2's garbage free mode
+        event = new MutableLogEvent();
+        message = new ReusableSimpleMessage();
+        event.setLoggerName("httpclient.wire.content");
+        event.setLevel(Level.DEBUG);
+        event.setThreadName("worker");
+    }
+
+    @After public void tearDown() {
+        appender.stop();
+        context.getConfiguration().removeLogger(sinkName);
+        context.updateLoggers();
+        sink.stop();
+    }
+
+    /**
+     * Tests that each append is a copy, not the reused event.
+     */
+    @Test public void copiesReusedEvents() {
+        for (int i = 0; i < 3; i++) {
+            append("<< \"chunk " + i + "\"", 1000 + i);
+        }
+        appender.dump();
+
+        assertEquals(4, sink.events.size());
+        assertTrue(sink.messages().get(0).startsWith("InMem dumping 3 events #1-#3, 0 evicted since last dump"));
+        for (int i = 0; i < 3; i++) {
+            LogEvent dumped = sink.events.get(i + 1);
+            assertEquals("<< \"chunk " + i + "\"", dumped.getMessage().getFormattedMessage());
+            assertEquals("httpclient.wire.content", dumped.getLoggerName());
+            assertEquals("worker", dumped.getThreadName());
+            assertEquals(1000 + i, dumped.getTimeMillis());
+        }
+    }
+
+    /**
+     * Tests that the oldest events are evicted, and counted, at capacity.
+     */
+    @Test public void evictsOldest() {
+        for (int i = 0; i < CAPACITY + 5; i++) {
+            append("message " + i, i);
+        }
+        assertEquals(5, appender.getEvictedCount());
+        appender.dump();
+
+        List<String> messages = sink.messages();
+        assertEquals(CAPACITY + 1, messages.size());
+        assertTrue(messages.get(0), messages.get(0).contains("#6-#15, 5 evicted since last dump"));
+        assertEquals("message 5", messages.get(1));
+        assertEquals("message 14", messages.get(CAPACITY));
+
+        // slots are reused after a dump
+        append("again", 0);
+        appender.dump();
+        assertEquals("again", sink.messages().get(CAPACITY + 2));
+    }
+
+    /**
+     * Tests that the summary reaches the sink however its level is set, as
+     * the dumped events do.
+     */
+    @Test public void summaryIgnoresDelegateLevel() {
+        context.getConfiguration().getLoggerConfig(sinkName).setLevel(Level.WARN);
+        context.updateLoggers();
+
+        append("<< \"chunk\"", 1000);
+        appender.dump();
+
+        List<String> messages = sink.messages();
+        assertEquals(2, messages.size());
+        assertTrue(messages.get(0), messages.get(0).startsWith("InMem dumping 1 events #1-#1"));
+        assertEquals("<< \"chunk\"", messages.get(1));
+    }
+
+    /**
+     * Tests that appends made while a dump is flushing find free slots.
+     */
+    @Test public void appendsDuringDump() throws Exception {
+        for (int i = 0; i < CAPACITY; i++) {
+            append("before " + i, i);
+        }
+        // the sink clears flushing once it is reached, so hold on to both
+        CountDownLatch flushing = new CountDownLatch(1);
+        CountDownLatch resume = new CountDownLatch(1);
+        sink.resume = resume;
+        sink.flushing = flushing;
+        final Throwable[] failure = new Throwable[1];
+        Thread dumper = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    appender.dump();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+        dumper.start();
+
+        try {
+            assertTrue(flushing.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < CAPACITY; i++) {
+                append("during " + i, i);
+            }
+        } finally {
+            resume.countDown();
+            dumper.join(10000);
+        }
+        assertEquals(null, failure[0]);
+        assertEquals(0, appender.getEvictedCount());
+
+        List<String> messages = sink.messages();
+        assertEquals(CAPACITY + 1, messages.size());
+        assertEquals("before " + (CAPACITY - 1), messages.get(CAPACITY));
+
+        appender.dump();
+        messages = sink.messages();
+        assertEquals(2 * (CAPACITY + 1), messages.size());
+        assertTrue(messages.get(CAPACITY + 1), messages.get(CAPACITY + 1).contains("#11-#20, 0 evicted"));
+        assertEquals("during 0", messages.get(CAPACITY + 2));
+    }
+
+    /**
+     * Tests that appending at capacity allocates nothing.
+     */
+    @Test public void appendIsGarbageFree() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        message.set("<< \"a chunk of wire data\"");
+        event.setMessage(message);
+        for (int i = 0; i < 20000; i++) {
+            appender.append(event);
+        }
+
+        int iterations = 200000;
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < iterations; i++) {
+            appender.append(event);
+        }
+        long perAppend = (threads.getThreadAllocatedBytes(thread) - before) / iterations;
+        assertTrue("append allocated " + perAppend + " bytes", perAppend == 0);
+    }
+
+    private void append(String text, long timeMillis) {
+        message.set(text);
+        event.setMessage(message);
+        event.setTimeMillis(timeMillis);
+        appender.append(event);
+    }
+
+    private static final class Sink extends AbstractAppender {
+        private final List<LogEvent> events = new ArrayList<LogEvent>();
+        // when set, the first event received blocks until resumed
+        private volatile CountDownLatch flushing;
+        private volatile CountDownLatch resume;
+
+        Sink() {
+            super("sink", null, null, true, Property.EMPTY_ARRAY);
+        }
+
+        public void append(LogEvent event) {
+            synchronized (events) {
+                events.add(event.toImmutable());
+            }
+            CountDownLatch latch = flushing;
+            if (latch != null) {
+                flushing = null;
+                latch.countDown();
+                try {
+                    resume.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        List<String> messages() {
+            List<String> messages = new ArrayList<String>();
+            synchronized (events) {
+                for (LogEvent e : events) {
+                    messages.add(e.getMessage().getFormattedMessage());
+                }
+            }
+            return messages;
+        }
+    }
+}